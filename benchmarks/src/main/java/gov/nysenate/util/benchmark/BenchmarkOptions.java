@@ -0,0 +1,38 @@
+package gov.nysenate.util.benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Options shared by the benchmark main() methods. Every run writes its results as JSON to
+ * target/jmh/ClassName-Nt.json, so that the numbers of two versions can be compared with
+ * any JMH result viewer or a diff of the score fields.
+ *
+ * Runs from the shaded jar pick the format on the command line instead:
+ *   java -jar target/benchmarks.jar ConfigReadBenchmark -t 8 -rf json -rff config-read.json
+ */
+final class BenchmarkOptions
+{
+    private BenchmarkOptions() {}
+
+    /**
+     * @param benchmark - Benchmark class to run.
+     * @param threads   - Number of benchmark threads.
+     * @return Options
+     */
+    static Options forThreads(Class<?> benchmark, int threads)
+    {
+        File results = new File("target/jmh", benchmark.getSimpleName() + "-" + threads + "t.json");
+        results.getParentFile().mkdirs();
+        return new OptionsBuilder()
+            .include(benchmark.getSimpleName())
+            .threads(threads)
+            .resultFormat(ResultFormatType.JSON)
+            .result(results.getPath())
+            .build();
+    }
+}
@@ -0,0 +1,122 @@
+package gov.nysenate.util.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+
+import gov.nysenate.util.Config;
+import gov.nysenate.util.ConfigView;
+
+
+/**
+ * Compares concurrent Config.getValue throughput against the legacy read path, and reads
+ * through a subset view against reads of the full key.
+ *
+ * Run a single thread count from the shaded jar with:
+ *   java -jar target/benchmarks.jar ConfigReadBenchmark -t 8
+ *
+ * or run main() to sweep 1, 8 and 64 reader threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigReadBenchmark
+{
+    private File propertyFile;
+    private LegacyConfig legacyConfig;
+    private Config config;
+    private ConfigView db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        propertyFile = writePropertyFile();
+        legacyConfig = new LegacyConfig(propertyFile.getAbsolutePath());
+        config = new Config(propertyFile.getAbsolutePath());
+        db = config.subset("db");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        propertyFile.delete();
+    }
+
+    @Benchmark
+    public String legacyPlainKey()
+    {
+        return legacyConfig.getValue("db.host");
+    }
+
+    @Benchmark
+    public String legacyInterpolatedKey()
+    {
+        return legacyConfig.getValue("db.url");
+    }
+
+    @Benchmark
+    public String snapshotPlainKey()
+    {
+        return config.getValue("db.host");
+    }
+
+    @Benchmark
+    public String snapshotInterpolatedKey()
+    {
+        return config.getValue("db.url");
+    }
+
+    @Benchmark
+    public String subsetPlainKey()
+    {
+        return db.getValue("host");
+    }
+
+    static File writePropertyFile() throws IOException
+    {
+        File file = File.createTempFile("benchmark", ".properties");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            out.println("db.host = localhost");
+            out.println("db.name = benchmark");
+            out.println("db.url = jdbc:mysql://{{db.host}}/{{db.name}}");
+            out.println("db.pool.maxActive = 50");
+            for (int i = 0; i < 200; i++) {
+                out.println("filler.key." + i + " = value " + i);
+            }
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        for (int threads : new int[] {1, 8, 64}) {
+            new Runner(BenchmarkOptions.forThreads(ConfigReadBenchmark.class, threads)).run();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package gov.nysenate.util.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+
+import gov.nysenate.util.Config;
+import gov.nysenate.util.ConfigView;
+
+
+/**
+ * Measures Config reads while the property file is rewritten and reloaded. Seven reader
+ * threads read plain, interpolated and subset keys while one thread rewrites the file and
+ * forces a reload every reloadPause milliseconds, so the readers keep crossing snapshot swaps.
+ * Compare the reader scores against ConfigReadBenchmark to see what reloading costs them.
+ *
+ * Run from the shaded jar with:
+ *   java -jar target/benchmarks.jar ConfigReloadBenchmark
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigReloadBenchmark
+{
+    @Param({"1", "20"})
+    public long reloadPause;
+
+    private File propertyFile;
+    private Config config;
+    private ConfigView db;
+    private int generation;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        propertyFile = ConfigReadBenchmark.writePropertyFile();
+        config = new Config(propertyFile.getAbsolutePath());
+        db = config.subset("db");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        config.close();
+        propertyFile.delete();
+    }
+
+    @Benchmark
+    @Group("reload")
+    @GroupThreads(3)
+    public String plainKey()
+    {
+        return config.getValue("db.host");
+    }
+
+    @Benchmark
+    @Group("reload")
+    @GroupThreads(2)
+    public String interpolatedKey()
+    {
+        return config.getValue("db.url");
+    }
+
+    @Benchmark
+    @Group("reload")
+    @GroupThreads(2)
+    public int subsetKey()
+    {
+        return db.getInt("pool.maxActive", 0);
+    }
+
+    /** Alternates db.host and the pool size so every reload publishes a changed snapshot. */
+    @Benchmark
+    @Group("reload")
+    @GroupThreads(1)
+    public void reloader() throws Exception
+    {
+        generation++;
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(propertyFile), StandardCharsets.UTF_8));
+        try {
+            out.println("db.host = host" + (generation % 2));
+            out.println("db.name = benchmark");
+            out.println("db.url = jdbc:mysql://{{db.host}}/{{db.name}}");
+            out.println("db.pool.maxActive = " + (50 + generation % 2));
+        }
+        finally {
+            out.close();
+        }
+        /** Moves the modification time forward so the reloading strategy always sees a change. */
+        propertyFile.setLastModified(System.currentTimeMillis() + generation * 1000L);
+        config.refresh();
+        Thread.sleep(reloadPause);
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(BenchmarkOptions.forThreads(ConfigReloadBenchmark.class, 8)).run();
+    }
+}
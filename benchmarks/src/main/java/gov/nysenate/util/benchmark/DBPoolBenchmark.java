@@ -0,0 +1,141 @@
+package gov.nysenate.util.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+
+import gov.nysenate.util.Config;
+import gov.nysenate.util.DB;
+
+
+/**
+ * Measures borrowing and returning DB connections against an in-memory H2 database, so the
+ * numbers reflect the pool and its interceptors rather than a network. checkout only borrows
+ * and returns a connection; query also runs a one row select on it. validation switches
+ * between validating on borrow and validating idle connections in the background.
+ *
+ * Run from the shaded jar with:
+ *   java -jar target/benchmarks.jar DBPoolBenchmark -t 8
+ *
+ * or run main() to sweep 1, 8 and 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBPoolBenchmark
+{
+    @Param({"borrow", "idle"})
+    public String validation;
+
+    private File propertyFile;
+    private DB db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        propertyFile = writePropertyFile(validation);
+        db = new DB(new Config(propertyFile.getAbsolutePath()), "db");
+        Connection connection = db.getConnection();
+        try {
+            connection.createStatement().execute("CREATE TABLE IF NOT EXISTS item (id INT PRIMARY KEY, name VARCHAR(40))");
+            connection.createStatement().execute("MERGE INTO item VALUES (1, 'benchmark')");
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        db.close();
+        propertyFile.delete();
+    }
+
+    @Benchmark
+    public boolean checkout() throws SQLException
+    {
+        Connection connection = db.getConnection();
+        try {
+            return connection.getAutoCommit();
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    public String query() throws SQLException
+    {
+        Connection connection = db.getConnection();
+        try {
+            PreparedStatement statement = connection.prepareStatement("SELECT name FROM item WHERE id = ?");
+            try {
+                statement.setInt(1, 1);
+                ResultSet results = statement.executeQuery();
+                return results.next() ? results.getString(1) : null;
+            }
+            finally {
+                statement.close();
+            }
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    static File writePropertyFile(String validation) throws IOException
+    {
+        File file = File.createTempFile("benchmark", ".properties");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            out.println("db.driver = org.h2.Driver");
+            out.println("db.url = jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+            out.println("db.user = sa");
+            out.println("db.pool.initialSize = 16");
+            out.println("db.pool.minIdle = 16");
+            out.println("db.pool.maxActive = 64");
+            out.println("db.pool.maxIdle = 64");
+            out.println("db.pool.validation = " + validation);
+            out.println("db.pool.jmxEnabled = false");
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        for (int threads : new int[] {1, 8, 64}) {
+            new Runner(BenchmarkOptions.forThreads(DBPoolBenchmark.class, threads)).run();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package gov.nysenate.util.benchmark;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
+
+
+/**
+ * Copy of the Config read path as it was before reads were served from snapshots. Every
+ * read goes through the synchronized PropertiesConfiguration, the reloading strategy check
+ * and the {{variable}} regex resolution. Kept only as a baseline for comparison.
+ */
+public class LegacyConfig
+{
+    private static final Pattern variablePattern = Pattern.compile("\\{\\{(.*?)\\}\\}");
+
+    private final PropertiesConfiguration config;
+
+    public LegacyConfig(String propertyFileName) throws ConfigurationException
+    {
+        this.config = new PropertiesConfiguration(propertyFileName);
+        this.config.setReloadingStrategy(new FileChangedReloadingStrategy());
+    }
+
+    public String getValue(String key)
+    {
+        String value = this.config.getString(key, "");
+        String resolvedValue = resolveVariables(value);
+        if (value != resolvedValue)
+        {
+            value = resolvedValue;
+            this.config.setProperty(key, value);
+        }
+        return value;
+    }
+
+    private String resolveVariables(String value)
+    {
+        Matcher variableMatcher = variablePattern.matcher(value);
+        while(variableMatcher.find()) {
+            String variable = variableMatcher.group(1);
+            String replacement = getValue(variable);
+            value = value.replace("{{"+variable+"}}", replacement);
+            variableMatcher = variablePattern.matcher(value);
+        }
+        return value;
+    }
+}
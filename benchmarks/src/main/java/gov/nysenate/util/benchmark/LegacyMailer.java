@@ -0,0 +1,61 @@
+package gov.nysenate.util.benchmark;
+
+import java.util.Properties;
+
+import jakarta.mail.Message;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+
+/**
+ * The Mailer send path before connections were pooled, kept as a baseline for
+ * MailerBenchmark: a new Properties and Session lookup per message and Transport.send(),
+ * which connects, logs in and disconnects for every message.
+ */
+public class LegacyMailer
+{
+    private final String host;
+    private final int port;
+    private final String user;
+    private final String pass;
+
+    public LegacyMailer(String host, int port, String user, String pass)
+    {
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.pass = pass;
+    }
+
+    public void sendMail(String to, String subject, String message) throws Exception
+    {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", host);
+        props.put("mail.smtp.auth", "true");
+        props.put("mail.debug", "false");
+        props.put("mail.smtp.port", String.valueOf(port));
+        props.put("mail.smtp.starttls.enable", "false");
+        props.put("mail.smtp.socketFactory.port", String.valueOf(port));
+        props.put("mail.smtp.socketFactory.fallback", "false");
+        props.put("mail.smtp.ssl.enable", "false");
+
+        Session session = Session.getDefaultInstance(props, new jakarta.mail.Authenticator() {
+            @Override
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(user, pass);
+            }
+        });
+
+        Message msg = new MimeMessage(session);
+        InternetAddress addressFrom = new InternetAddress(user);
+        addressFrom.setPersonal("SAGE");
+        msg.setFrom(addressFrom);
+        msg.setRecipients(Message.RecipientType.TO, new InternetAddress[] { new InternetAddress(to) });
+        msg.setSubject(subject);
+        msg.setContent(message, "text/html");
+        Transport.send(msg);
+    }
+}
@@ -0,0 +1,141 @@
+package gov.nysenate.util.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Minimal in-process SMTP server for benchmarks. Accepts any login and any message and only
+ * counts what it receives. The greeting can be delayed to stand in for the TCP, TLS and
+ * login round trips of a real mail server, which are what connection reuse saves.
+ */
+public class LocalSmtpServer
+{
+    private final ServerSocket server;
+    private final long connectDelayMillis;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong messages = new AtomicLong();
+
+    /**
+     * @param connectDelayMillis - Delay before greeting each new connection.
+     */
+    public LocalSmtpServer(long connectDelayMillis) throws IOException
+    {
+        this.connectDelayMillis = connectDelayMillis;
+        this.server = new ServerSocket(0, 200, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        Thread session = new Thread(new Runnable() {
+                            @Override
+                            public void run()
+                            {
+                                try {
+                                    converse(socket);
+                                }
+                                catch (IOException e) {
+                                    /** Client went away. */
+                                }
+                                catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                                finally {
+                                    try {
+                                        socket.close();
+                                    }
+                                    catch (IOException e) {}
+                                }
+                            }
+                        }, "local-smtp-session");
+                        session.setDaemon(true);
+                        session.start();
+                    }
+                }
+                catch (IOException e) {
+                    /** Server socket closed. */
+                }
+            }
+        }, "local-smtp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort()
+    {
+        return this.server.getLocalPort();
+    }
+
+    public int getConnectionCount()
+    {
+        return this.connections.get();
+    }
+
+    public long getMessageCount()
+    {
+        return this.messages.get();
+    }
+
+    public void close() throws IOException
+    {
+        this.server.close();
+    }
+
+    private void converse(Socket socket) throws IOException, InterruptedException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        OutputStream out = socket.getOutputStream();
+        if (this.connectDelayMillis > 0) {
+            Thread.sleep(this.connectDelayMillis);
+        }
+        reply(out, "220 localhost SMTP benchmark server");
+        String line;
+        while ((line = in.readLine()) != null) {
+            String command = line.toUpperCase();
+            if (command.startsWith("EHLO")) {
+                reply(out, "250-localhost\r\n250-AUTH PLAIN LOGIN\r\n250 8BITMIME");
+            }
+            else if (command.startsWith("AUTH LOGIN")) {
+                reply(out, "334 VXNlcm5hbWU6");
+                in.readLine();
+                reply(out, "334 UGFzc3dvcmQ6");
+                in.readLine();
+                reply(out, "235 Authenticated");
+            }
+            else if (command.startsWith("AUTH")) {
+                reply(out, "235 Authenticated");
+            }
+            else if (command.startsWith("DATA")) {
+                reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                while ((line = in.readLine()) != null && !line.equals(".")) {}
+                this.messages.incrementAndGet();
+                reply(out, "250 Queued");
+            }
+            else if (command.startsWith("QUIT")) {
+                reply(out, "221 Bye");
+                return;
+            }
+            else {
+                reply(out, "250 OK");
+            }
+        }
+    }
+
+    private static void reply(OutputStream out, String response) throws IOException
+    {
+        out.write((response + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,110 @@
+package gov.nysenate.util.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+
+import gov.nysenate.util.Config;
+import gov.nysenate.util.Mailer;
+
+
+/**
+ * Compares Mailer.sendMail throughput over pooled connections against the legacy path that
+ * connects for every message, both sending to an in-process SMTP server. connectDelay adds
+ * a delay before each greeting to stand in for the handshake cost of a remote server.
+ *
+ * Run from the shaded jar with:
+ *   java -jar target/benchmarks.jar MailerBenchmark -t 4
+ *
+ * or run main() to sweep 1 and 4 sender threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailerBenchmark
+{
+    @Param({"0", "5"})
+    public long connectDelay;
+
+    private LocalSmtpServer smtp;
+    private File propertyFile;
+    private LegacyMailer legacyMailer;
+    private Mailer mailer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        smtp = new LocalSmtpServer(connectDelay);
+        propertyFile = writePropertyFile(smtp.getPort());
+        legacyMailer = new LegacyMailer("127.0.0.1", smtp.getPort(), "sender@localhost", "secret");
+        mailer = new Mailer(new Config(propertyFile.getAbsolutePath()), "mail");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        mailer.close();
+        smtp.close();
+        propertyFile.delete();
+    }
+
+    @Benchmark
+    public void legacySend() throws Exception
+    {
+        legacyMailer.sendMail("someone@localhost", "Benchmark", "<p>Benchmark message</p>");
+    }
+
+    @Benchmark
+    public void pooledSend() throws Exception
+    {
+        mailer.sendMail("someone@localhost", "Benchmark", "<p>Benchmark message</p>");
+    }
+
+    static File writePropertyFile(int port) throws IOException
+    {
+        File file = File.createTempFile("benchmark", ".properties");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            out.println("mail.host = 127.0.0.1");
+            out.println("mail.port = " + port);
+            out.println("mail.active = true");
+            out.println("mail.user = sender@localhost");
+            out.println("mail.pass = secret");
+            out.println("mail.pool.maxSize = 8");
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        for (int threads : new int[] {1, 4}) {
+            new Runner(BenchmarkOptions.forThreads(MailerBenchmark.class, threads)).run();
+        }
+    }
+}
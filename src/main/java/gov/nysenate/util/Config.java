@@ -1,19 +1,28 @@
 package gov.nysenate.util;
 
 import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Observer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.configuration.AbstractFileConfiguration;
 import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.ConversionException;
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.commons.configuration.event.ConfigurationEvent;
+import org.apache.commons.configuration.event.ConfigurationListener;
 import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
+import org.apache.commons.configuration.reloading.ManagedReloadingStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import gov.nysenate.util.listener.ConfigChangeListener;
 import gov.nysenate.util.listener.NYSenateConfigurationListener;
 
 
@@ -29,8 +38,27 @@ import gov.nysenate.util.listener.NYSenateConfigurationListener;
  * In the event of property file modifications while the context is deployed
  * the NYSenateConfigurationListener instance supplied will intercept file change events
  * and notify the observers. To observe Config for changes simply call notifyOnChange()
- * which delegates the Observer to NYSenateConfigurationListener. File change modifications
- * are not checked continuously but rather any time the Config object is read from.
+ * which delegates the Observer to NYSenateConfigurationListener, or addChangeListener() to
+ * receive only the changed keys under a prefix. File change modifications
+ * are not checked continuously but rather when the Config object is read from, at most
+ * once per reloading strategy refresh delay. Alternatively watchForChanges() moves change
+ * detection to a background thread so that reads never touch the file system.
+ *
+ * Reads are served from an immutable {@link ConfigSnapshot} of the fully resolved values
+ * which is replaced as a whole whenever the property file is reloaded. Readers never lock
+ * and never see a partially reloaded configuration.
+ *
+ * A Config can also layer defaults, environment variables, system properties and a local
+ * override file around its property file, see {@link ConfigLayers}. getSource() reports
+ * which of them each value came from.
+ *
+ * Typed accessors such as getInt() parse a value once per snapshot and cache the result.
+ * For values read on hot paths, hold a {@link ConfigKey} obtained from key() instead. Any
+ * value that has been read through a typed accessor is parsed again when the file is
+ * reloaded and a reload with an unparsable value is rejected, keeping the previous values.
+ *
+ * Components configured under a prefix should read through subset(prefix), a
+ * {@link ConfigView} that leaves the prefix off each key and scopes change listeners to it.
  *
  */
 
@@ -38,23 +66,109 @@ public class Config
 {
     private static final Logger logger = LoggerFactory.getLogger(Config.class);
 
-    /** Pattern to replace {{variables}} used in the property file. */
-    private static final Pattern variablePattern = Pattern.compile("\\{\\{(.*?)\\}\\}");
-
     /** Provides access to the property file */
     private final PropertiesConfiguration config;
 
+    /** Sources merged with the property file, or null for the property file alone. */
+    private final ConfigLayers layers;
+
     /** Reference to listener that acts on configuration changes. */
     private final NYSenateConfigurationListener listener;
 
+    /** Resolved property values, replaced as a whole each time the property file is reloaded. */
+    private volatile ConfigSnapshot snapshot;
+
+    /** Minimum time between checks of the property file for modifications. */
+    private final long reloadCheckIntervalNanos;
+
+    /** System.nanoTime() after which the next read will check the property file for modifications. */
+    private volatile long nextReloadCheck;
+
+    /** Ensures only one reader at a time performs the modification check. */
+    private final AtomicBoolean reloadCheckInProgress = new AtomicBoolean(false);
+
+    /** Strategy used by readers to check for modifications when the file is not watched. */
+    private final FileChangedReloadingStrategy fileChangedStrategy;
+
+    /** False while a ConfigFileWatcher detects modifications instead of the readers. */
+    private volatile boolean checkOnRead = true;
+
+    /** Background file watcher, if enabled. Guarded by this. */
+    private ConfigFileWatcher watcher;
+
+    /** Registered with Lifecycle until the Config is closed. */
+    private final Lifecycle.Resource resource = new Lifecycle.Resource() {
+        @Override
+        public boolean drain(long timeoutMillis)
+        {
+            close();
+            return true;
+        }
+
+        @Override
+        public void forceClose()
+        {
+            close();
+        }
+    };
+
+    /** Default quiet period before a watched file change is reloaded. */
+    private static final Duration DEFAULT_WATCH_DEBOUNCE = Duration.ofMillis(500);
+
     /** Load the given property file and sets a listener to track file changes. */
     public Config(String propertyFileName) throws ConfigurationException
+    {
+        this(propertyFileName, null, new FileChangedReloadingStrategy());
+    }
+
+    /**
+     * Load the given property file with other sources layered around it, merged each time the
+     * file is loaded. The defaults and override files are read again when the file reloads.
+     *
+     * @param propertyFileName - The environment's property file.
+     * @param layers           - Defaults, environment variables, system properties and local override.
+     * @throws ConfigurationException if a file cannot be read or the variables cannot be resolved.
+     */
+    public Config(String propertyFileName, ConfigLayers layers) throws ConfigurationException
+    {
+        this(propertyFileName, layers, new FileChangedReloadingStrategy());
+    }
+
+    /**
+     * Load the given property file using a specific file change strategy. The modification
+     * check is performed by readers at most once per the strategy's refresh delay.
+     */
+    Config(String propertyFileName, FileChangedReloadingStrategy reloadingStrategy) throws ConfigurationException
+    {
+        this(propertyFileName, null, reloadingStrategy);
+    }
+
+    Config(String propertyFileName, ConfigLayers layers, FileChangedReloadingStrategy reloadingStrategy) throws ConfigurationException
     {
         logger.info("Loading configuration from: "+propertyFileName);
+        /** A copy of its own, since the layers record which of their files this Config last loaded. */
+        this.layers = (layers != null) ? layers.copy() : null;
         this.listener = new NYSenateConfigurationListener();
         this.config = new PropertiesConfiguration(propertyFileName);
-        this.config.setReloadingStrategy(new FileChangedReloadingStrategy());
-        this.config.addConfigurationListener(listener);
+        this.config.setReloadingStrategy(reloadingStrategy);
+        this.fileChangedStrategy = reloadingStrategy;
+        this.reloadCheckIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reloadingStrategy.getRefreshDelay());
+
+        /** Observers are only notified once the new snapshot is in place and only if a value
+         *  actually changed. Other configuration events are never forwarded to the listener. */
+        this.config.addConfigurationListener(new ConfigurationListener() {
+            @Override
+            public void configurationChanged(ConfigurationEvent event)
+            {
+                if (event.getType() == AbstractFileConfiguration.EVENT_RELOAD && !event.isBeforeUpdate()) {
+                    reloadSnapshot();
+                }
+            }
+        });
+        this.config.addErrorListener(listener);
+        this.snapshot = ConfigSnapshot.build(this.config, this.layers);
+        this.nextReloadCheck = System.nanoTime() + this.reloadCheckIntervalNanos;
+        Lifecycle.register("Config " + propertyFileName, this.resource);
         logger.debug("Loaded config for " + this.config.getPath());
     }
 
@@ -67,17 +181,25 @@ public class Config
      */
     public String getValue(String key)
     {
-        String value = this.config.getString(key, "");
-        logger.trace(String.format("Reading config[%s] = %s", key, value));
-        String resolvedValue = resolveVariables(value);
-        if (value != resolvedValue)
+        String value = currentSnapshot().getValue(key);
+        if (value == null)
         {
-            value = resolvedValue;
-            this.config.setProperty(key, value);
+            value = "";
         }
+        logger.trace("Reading config[{}] = {}", key, value);
         return value;
     }
 
+    /**
+     * @param key - Property key.
+     * @return String - Where the key's current value came from, such as "file app.properties" or
+     *                  "env APP_DB_HOST", or null if the key does not exist. See {@link ConfigLayers}.
+     */
+    public String getSource(String key)
+    {
+        return currentSnapshot().getSource(key);
+    }
+
     /**
      * Same behaviour as getValue(key) except a default value can be returned if the key
      * cannot be resolved.
@@ -105,15 +227,149 @@ public class Config
 
     /**
      * Reads property file and returns a list of values for a given key
-     * or the default value list if empty.
+     * or the default value list if empty. The returned list is unmodifiable.
      * @param key           - Property key to look up the value for.
      * @param defaultValues - Default array to return if list is empty.
      * @return  List<String>
      */
     public List<String> getList(String key, List<String> defaultValues)
     {
-        List<String> values = Arrays.asList(this.config.getStringArray(key));
-        return (!values.isEmpty()) ? values : defaultValues;
+        List<String> values = currentSnapshot().getList(key);
+        return (values != null && !values.isEmpty()) ? values : defaultValues;
+    }
+
+    /**
+     * @param prefix - Key prefix such as "db", matching "db" itself and keys starting with "db.".
+     * @return Set<String> - Unmodifiable set of the matching keys in sorted order.
+     */
+    public Set<String> getKeys(String prefix)
+    {
+        return Collections.unmodifiableSet(currentSnapshot().getKeys(prefix));
+    }
+
+    /**
+     * @param prefix - Key prefix such as "db" or "db.pool".
+     * @return ConfigView - View of the keys under the prefix, read without the prefix.
+     */
+    public ConfigView subset(String prefix)
+    {
+        return new ConfigView(this, prefix);
+    }
+
+    /**
+     * @param key          - Property key to look up the value for.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return int
+     * @throws ConversionException if the value is not an integer.
+     */
+    public int getInt(String key, int defaultValue)
+    {
+        Integer value = currentSnapshot().getParsed(key, ConfigParsers.INT);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Property key to look up the value for.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return long
+     * @throws ConversionException if the value is not an integer.
+     */
+    public long getLong(String key, long defaultValue)
+    {
+        Long value = currentSnapshot().getParsed(key, ConfigParsers.LONG);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Property key to look up the value for.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return double
+     * @throws ConversionException if the value is not a number.
+     */
+    public double getDouble(String key, double defaultValue)
+    {
+        Double value = currentSnapshot().getParsed(key, ConfigParsers.DOUBLE);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Property key to look up the value for.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return boolean - True for true/1/yes/on and false for false/0/no/off, in any case.
+     * @throws ConversionException if the value is not one of the above.
+     */
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        Boolean value = currentSnapshot().getParsed(key, ConfigParsers.BOOLEAN);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Property key to look up the value for, e.g. 30s or 500ms.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return Duration
+     * @throws ConversionException if the value is not a duration.
+     * @see ConfigParsers#DURATION
+     */
+    public Duration getDuration(String key, Duration defaultValue)
+    {
+        Duration value = currentSnapshot().getParsed(key, ConfigParsers.DURATION);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Property key to look up the value for, e.g. 512KB or 10MB.
+     * @param defaultValue - Number of bytes to return if the key is missing or empty.
+     * @return long - Number of bytes.
+     * @throws ConversionException if the value is not a data size.
+     * @see ConfigParsers#DATA_SIZE
+     */
+    public long getDataSize(String key, long defaultValue)
+    {
+        Long value = currentSnapshot().getParsed(key, ConfigParsers.DATA_SIZE);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Property key to look up the value for, matched ignoring case.
+     * @param enumClass    - Enum type of the value.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return E
+     * @throws ConversionException if the value is not a constant of enumClass.
+     */
+    public <E extends Enum<E>> E getEnum(String key, Class<E> enumClass, E defaultValue)
+    {
+        E value = currentSnapshot().getParsed(key, ConfigParsers.forEnum(enumClass));
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * Reads the list values of key and parses each one.
+     *
+     * @param key    - Property key to look up the values for.
+     * @param parser - Parser applied to each element.
+     * @return List<T> - Unmodifiable list, empty if the key is missing.
+     * @throws ConversionException if any element cannot be parsed.
+     */
+    public <T> List<T> getList(String key, ConfigParser<T> parser)
+    {
+        List<T> values = currentSnapshot().getParsed(key, ConfigParsers.listOf(parser));
+        return (values != null) ? values : Collections.<T>emptyList();
+    }
+
+    /**
+     * Creates a handle that reads a typed value in constant time. The value is parsed
+     * immediately so that an invalid value is reported to the caller up front.
+     *
+     * @param key          - Property key to look up the value for.
+     * @param parser       - Parser for the value type, see {@link ConfigParsers}.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return ConfigKey<T>
+     * @throws ConversionException if the current value cannot be parsed.
+     */
+    public <T> ConfigKey<T> key(String key, ConfigParser<T> parser, T defaultValue)
+    {
+        return new ConfigKey<T>(this, key, parser, defaultValue);
     }
 
     /**
@@ -122,6 +378,83 @@ public class Config
     public void refresh()
     {
         this.config.reload();
+        if (this.layers != null && this.layers.filesModified()) {
+            synchronized (this.config.getReloadLock()) {
+                reloadSnapshot();
+            }
+        }
+        this.nextReloadCheck = System.nanoTime() + this.reloadCheckIntervalNanos;
+    }
+
+    /**
+     * Detects property file modifications on a background thread using a WatchService
+     * instead of checking the file when the configuration is read. Changes are reloaded
+     * once the file has been quiet for 500 milliseconds. The defaults and override files of
+     * the {@link ConfigLayers}, if any, are watched as well.
+     *
+     * @throws IOException if the property file is not a file on disk or cannot be watched.
+     */
+    public void watchForChanges() throws IOException
+    {
+        watchForChanges(DEFAULT_WATCH_DEBOUNCE);
+    }
+
+    /**
+     * Same as watchForChanges() with a custom quiet period. Has no effect if the file is
+     * already being watched.
+     *
+     * @param debounce - How long the file must go without changes before it is reloaded.
+     * @throws IOException if the property file is not a file on disk or cannot be watched.
+     */
+    public synchronized void watchForChanges(Duration debounce) throws IOException
+    {
+        if (this.watcher != null) {
+            return;
+        }
+        final ManagedReloadingStrategy managedStrategy = new ManagedReloadingStrategy();
+        List<File> files = new ArrayList<File>();
+        files.add(getPropertyFile());
+        if (this.layers != null) {
+            files.addAll(this.layers.files());
+        }
+        this.watcher = new ConfigFileWatcher(files, debounce, new Runnable() {
+            @Override
+            public void run()
+            {
+                managedStrategy.refresh();
+            }
+        });
+        this.config.setReloadingStrategy(managedStrategy);
+        this.checkOnRead = false;
+        this.watcher.start();
+
+        /** Pick up anything that changed before the watch was registered. */
+        managedStrategy.refresh();
+    }
+
+    /**
+     * Stops the background file watcher, if any, and goes back to checking the file for
+     * modifications when the configuration is read.
+     */
+    public synchronized void stopWatching()
+    {
+        if (this.watcher != null) {
+            this.watcher.close();
+            this.watcher = null;
+            this.config.setReloadingStrategy(this.fileChangedStrategy);
+            this.checkOnRead = true;
+        }
+    }
+
+    /**
+     * Stops the file watcher and change notifications. Values can still be read, but changes
+     * to the property file are no longer delivered to listeners.
+     */
+    public void close()
+    {
+        Lifecycle.unregister(this.resource);
+        stopWatching();
+        this.listener.shutdown();
     }
 
     /**
@@ -133,6 +466,26 @@ public class Config
         this.listener.addObserver(o);
     }
 
+    /**
+     * Subscribes to the keys changed by reloads of the property file. Listeners are called
+     * on a dispatch thread, never on the thread reading or reloading the configuration.
+     *
+     * @param prefix   - Only changes to keys equal to the prefix or starting with "prefix." are delivered.
+     * @param listener - Listener to call with the changed keys.
+     */
+    public void addChangeListener(String prefix, ConfigChangeListener listener)
+    {
+        this.listener.addChangeListener(prefix, listener);
+    }
+
+    /**
+     * @param listener - Listener to unsubscribe.
+     */
+    public void removeChangeListener(ConfigChangeListener listener)
+    {
+        this.listener.removeChangeListener(listener);
+    }
+
     /**
      * @return File - A File object containing the property file loaded.
      */
@@ -142,19 +495,52 @@ public class Config
     }
 
     /**
-     * Resolves variables in the property value.
-     * @param value
-     * @return
+     * Replaces the snapshot after the property file has been reloaded and notifies the
+     * listener of the keys that changed, if any. Called with the configuration's reload lock held.
      */
-    private String resolveVariables(String value)
+    private void reloadSnapshot()
     {
-        Matcher variableMatcher = variablePattern.matcher(value);
-        while(variableMatcher.find()) {
-            String variable = variableMatcher.group(1);
-            String replacement = getValue(variable);
-            value = value.replace("{{"+variable+"}}", replacement);
-            variableMatcher = variablePattern.matcher(value);
+        ConfigSnapshot reloaded;
+        try {
+            reloaded = ConfigSnapshot.build(this.config, this.layers);
         }
-        return value;
+        catch (ConfigurationException e) {
+            logger.error("Keeping previous configuration, reloaded file is invalid: " + e.getMessage());
+            return;
+        }
+
+        ConfigSnapshot previous = this.snapshot;
+        if (reloaded.hasSameValues(previous)) {
+            logger.debug("Property file reloaded without changes to " + this.config.getPath());
+            return;
+        }
+        try {
+            reloaded.parseKeysOf(previous);
+        }
+        catch (ConfigurationException e) {
+            logger.error("Keeping previous configuration, reloaded file is invalid: " + e.getMessage());
+            return;
+        }
+        this.snapshot = reloaded;
+        this.listener.configurationReloaded(reloaded.changesSince(previous));
+    }
+
+    /**
+     * Returns the current snapshot, first checking the property file for modifications if
+     * the refresh delay has elapsed. Only one caller performs the check while every other
+     * caller proceeds with the snapshot it already has.
+     */
+    ConfigSnapshot currentSnapshot()
+    {
+        if (this.checkOnRead && System.nanoTime() - this.nextReloadCheck >= 0
+                && this.reloadCheckInProgress.compareAndSet(false, true)) {
+            try {
+                refresh();
+            }
+            finally {
+                this.reloadCheckInProgress.set(false);
+            }
+        }
+        return this.snapshot;
     }
 }
@@ -0,0 +1,171 @@
+package gov.nysenate.util;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Watches a property file, and the layer files around it, from a daemon thread and runs a
+ * callback once they have stopped changing for the debounce period. Editors and deploy
+ * scripts often write a file in several steps (truncate, write, rename) and the debounce
+ * collapses those into one reload. A file that does not exist yet is watched for its
+ * creation, provided its directory exists.
+ *
+ * Watchers are started through {@link Config#watchForChanges()} and stopped when the Config is
+ * closed, which {@link Lifecycle#shutdownAll(java.time.Duration)} does when the context is
+ * destroyed.
+ */
+public final class ConfigFileWatcher implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger(ConfigFileWatcher.class);
+
+    private final Path file;
+    private final Set<Path> files = new HashSet<Path>();
+    private final long debounceNanos;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * @param files    - Files to watch. The first is the property file, which must exist.
+     * @param debounce - How long the files must go without changes before onChange runs.
+     * @param onChange - Called on the watcher thread after the files change.
+     * @throws IOException if the property file is not a file on disk or cannot be watched.
+     */
+    ConfigFileWatcher(List<File> files, Duration debounce, Runnable onChange) throws IOException
+    {
+        File file = files.get(0);
+        if (file == null || !file.isFile()) {
+            throw new IOException("Property file " + file + " cannot be watched, it is not a file on disk.");
+        }
+        this.file = file.toPath().toAbsolutePath();
+        this.debounceNanos = debounce.toNanos();
+        this.onChange = onChange;
+        this.watchService = this.file.getFileSystem().newWatchService();
+        Set<Path> directories = new HashSet<Path>();
+        for (File watched : files) {
+            Path path = watched.toPath().toAbsolutePath();
+            Path directory = path.getParent();
+            if (directory == null || !Files.isDirectory(directory)) {
+                logger.warn("Not watching " + path + ", its directory does not exist.");
+                continue;
+            }
+            this.files.add(path);
+            if (directories.add(directory)) {
+                directory.register(this.watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            }
+        }
+        this.thread = new Thread(this, "config-watcher-" + this.file.getFileName());
+        this.thread.setDaemon(true);
+    }
+
+    void start()
+    {
+        this.thread.start();
+        logger.info("Watching " + this.file + " for changes.");
+    }
+
+    void close()
+    {
+        if (!this.closed) {
+            this.closed = true;
+            try {
+                this.watchService.close();
+            }
+            catch (IOException e) {
+                logger.warn("Failed to close watch service for " + this.file, e);
+            }
+            this.thread.interrupt();
+            logger.info("Stopped watching " + this.file);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        boolean pending = false;
+        long deadline = 0;
+        try {
+            while (!this.closed) {
+                WatchKey key;
+                if (pending) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        pending = false;
+                        fireChange();
+                        continue;
+                    }
+                    key = this.watchService.poll(remaining, TimeUnit.NANOSECONDS);
+                }
+                else {
+                    key = this.watchService.take();
+                }
+                if (key == null) {
+                    continue;
+                }
+                if (affectsFile(key)) {
+                    pending = true;
+                    deadline = System.nanoTime() + this.debounceNanos;
+                }
+                if (!key.reset() && key.watchable().equals(this.file.getParent())) {
+                    logger.error("Directory of " + this.file + " is no longer accessible, stopped watching.");
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ClosedWatchServiceException e) {
+            /** Closed by close() */
+        }
+    }
+
+    private boolean affectsFile(WatchKey key)
+    {
+        Path directory = (Path) key.watchable();
+        boolean affected = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                affected = true;
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            /** A deleted layer file drops its values; the property file is only ever replaced. */
+            if (this.files.contains(path) && !(event.kind() == ENTRY_DELETE && path.equals(this.file))) {
+                affected = true;
+            }
+        }
+        return affected;
+    }
+
+    private void fireChange()
+    {
+        try {
+            this.onChange.run();
+        }
+        catch (RuntimeException e) {
+            logger.error("Failed to reload " + this.file, e);
+        }
+    }
+}
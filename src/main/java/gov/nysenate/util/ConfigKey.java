@@ -0,0 +1,74 @@
+package gov.nysenate.util;
+
+
+/**
+ * A handle to a single typed configuration value. Obtain one from
+ * {@link Config#key(String, ConfigParser, Object)} and hold on to it; get() returns the
+ * value parsed from the current configuration and only does more than a couple of field
+ * reads on the first call after the property file has been reloaded.
+ *
+ *   private final ConfigKey<Integer> port = config.key("mailer.port", ConfigParsers.INT, 25);
+ *   ...
+ *   int p = port.get();
+ *
+ * @param <T> - Type of the value.
+ */
+public final class ConfigKey<T>
+{
+    private final Config config;
+    private final String key;
+    private final ConfigParser<T> parser;
+    private final T defaultValue;
+
+    /** The value most recently read and the snapshot it was read from. */
+    private volatile Binding<T> binding;
+
+    ConfigKey(Config config, String key, ConfigParser<T> parser, T defaultValue)
+    {
+        this.config = config;
+        this.key = key;
+        this.parser = parser;
+        this.defaultValue = defaultValue;
+        bind(config.currentSnapshot());
+    }
+
+    /**
+     * @return T - Value of the property or the default value if it is missing or empty.
+     */
+    public T get()
+    {
+        ConfigSnapshot snapshot = this.config.currentSnapshot();
+        Binding<T> current = this.binding;
+        return (current.snapshot == snapshot) ? current.value : bind(snapshot);
+    }
+
+    /**
+     * @return String - Property key this handle reads.
+     */
+    public String getKey()
+    {
+        return this.key;
+    }
+
+    private T bind(ConfigSnapshot snapshot)
+    {
+        T value = snapshot.getParsed(this.key, this.parser);
+        if (value == null) {
+            value = this.defaultValue;
+        }
+        this.binding = new Binding<T>(snapshot, value);
+        return value;
+    }
+
+    private static final class Binding<T>
+    {
+        final ConfigSnapshot snapshot;
+        final T value;
+
+        Binding(ConfigSnapshot snapshot, T value)
+        {
+            this.snapshot = snapshot;
+            this.value = value;
+        }
+    }
+}
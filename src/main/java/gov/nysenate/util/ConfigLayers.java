@@ -0,0 +1,249 @@
+package gov.nysenate.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+
+
+/**
+ * The sources layered around a Config's property file, so that one property file can serve
+ * every environment with only the differences supplied elsewhere. From lowest to highest
+ * precedence:
+ *
+ *   defaults     - a property file of default values
+ *   file         - the Config's own property file
+ *   env          - environment variables
+ *   system       - Java system properties
+ *   override     - a local property file, skipped if it does not exist
+ *
+ * Environment variables and system properties only override keys defined in one of the
+ * property files, so that unrelated variables never become configuration. The environment
+ * variable for a key is the prefix followed by the key in upper case with dots and dashes
+ * replaced by underscores, e.g. db.pool.maxActive is APP_DB_POOL_MAXACTIVE with prefix APP_.
+ * The system property for a key is the key itself. List values in either are comma separated.
+ *
+ * The layers are merged into one snapshot each time the property file is loaded, so reads
+ * stay a single map lookup. Config.getSource() reports which layer each value came from.
+ * Edits to the defaults and override files are picked up like edits to the property file:
+ * when the configuration is read after the refresh delay, or by the background watcher of
+ * Config.watchForChanges(), which watches them too. Changes to environment variables and
+ * system properties are only seen when one of the files is reloaded.
+ *
+ * Each Config takes a copy of the layers it is given, so one ConfigLayers can be shared by
+ * several Configs and changing it afterwards does not affect them.
+ *
+ *   new Config("app.properties", new ConfigLayers()
+ *       .defaults("/etc/app/defaults.properties")
+ *       .environmentVariables("APP_")
+ *       .systemProperties()
+ *       .localOverride("/etc/app/local.properties"));
+ */
+public final class ConfigLayers
+{
+    private String defaultsFile = null;
+    private String environmentPrefix = null;
+    private boolean systemProperties = false;
+    private String overrideFile = null;
+
+    /** Environment to read variables from. */
+    private final Map<String, String> environment;
+
+    /** Defaults file as last loaded, null if it is not a file on disk. Set on a Config's copy only. */
+    private volatile File loadedDefaults = null;
+
+    /** Modification times of the defaults and override files when last merged, 0 if absent. */
+    private volatile long defaultsModified = 0;
+    private volatile long overrideModified = 0;
+
+    public ConfigLayers()
+    {
+        this(System.getenv());
+    }
+
+    /**
+     * @param environment - Environment variables to read in place of System.getenv().
+     */
+    ConfigLayers(Map<String, String> environment)
+    {
+        this.environment = environment;
+    }
+
+    /**
+     * @param fileName - Property file of default values, resolved like the Config's own file.
+     * @return ConfigLayers - This object.
+     */
+    public ConfigLayers defaults(String fileName)
+    {
+        this.defaultsFile = fileName;
+        return this;
+    }
+
+    /**
+     * @param prefix - Prefix of the environment variable names, may be empty.
+     * @return ConfigLayers - This object.
+     */
+    public ConfigLayers environmentVariables(String prefix)
+    {
+        this.environmentPrefix = prefix;
+        return this;
+    }
+
+    /**
+     * @return ConfigLayers - This object.
+     */
+    public ConfigLayers systemProperties()
+    {
+        this.systemProperties = true;
+        return this;
+    }
+
+    /**
+     * @param fileName - Path of a property file whose values override every other layer.
+     * @return ConfigLayers - This object.
+     */
+    public ConfigLayers localOverride(String fileName)
+    {
+        this.overrideFile = fileName;
+        return this;
+    }
+
+    /**
+     * @return ConfigLayers - The same layers with nothing loaded yet, for a Config to merge
+     *         and track on its own.
+     */
+    ConfigLayers copy()
+    {
+        ConfigLayers copy = new ConfigLayers(this.environment);
+        copy.defaultsFile = this.defaultsFile;
+        copy.environmentPrefix = this.environmentPrefix;
+        copy.systemProperties = this.systemProperties;
+        copy.overrideFile = this.overrideFile;
+        return copy;
+    }
+
+    /**
+     * @param key - Property key.
+     * @return String - Name of the environment variable that overrides the key.
+     */
+    String environmentName(String key)
+    {
+        return this.environmentPrefix + key.toUpperCase(Locale.ROOT).replace('.', '_').replace('-', '_');
+    }
+
+    /**
+     * Collects the raw values of every layer, later layers replacing earlier ones.
+     *
+     * @param file    - The Config's loaded property file.
+     * @param values  - Receives the raw value of each key.
+     * @param lists   - Receives the list values of each key.
+     * @param sources - Receives the layer each key's value came from, e.g. "env APP_DB_HOST".
+     * @throws ConfigurationException if the defaults or override file cannot be read.
+     */
+    void merge(PropertiesConfiguration file, Map<String, String> values, Map<String, List<String>> lists,
+               Map<String, String> sources) throws ConfigurationException
+    {
+        if (this.defaultsFile != null) {
+            PropertiesConfiguration defaults = new PropertiesConfiguration(this.defaultsFile);
+            this.loadedDefaults = defaults.getFile();
+            this.defaultsModified = lastModified(this.loadedDefaults);
+            copy(defaults, "defaults " + this.defaultsFile, values, lists, sources);
+        }
+        copy(file, "file " + file.getPath(), values, lists, sources);
+
+        if (this.environmentPrefix != null) {
+            for (String key : new ArrayList<String>(values.keySet())) {
+                String name = environmentName(key);
+                String value = this.environment.get(name);
+                if (value != null) {
+                    put(key, value, "env " + name, values, lists, sources);
+                }
+            }
+        }
+        if (this.systemProperties) {
+            Properties properties = System.getProperties();
+            for (String key : new ArrayList<String>(values.keySet())) {
+                String value = properties.getProperty(key);
+                if (value != null) {
+                    put(key, value, "system " + key, values, lists, sources);
+                }
+            }
+        }
+        if (this.overrideFile != null) {
+            this.overrideModified = lastModified(new File(this.overrideFile));
+            if (new File(this.overrideFile).isFile()) {
+                copy(new PropertiesConfiguration(this.overrideFile), "override " + this.overrideFile, values, lists, sources);
+            }
+        }
+    }
+
+    /**
+     * @return boolean - Whether the defaults or override file has been modified, created or
+     *         deleted since the layers were last merged.
+     */
+    boolean filesModified()
+    {
+        if (this.defaultsFile != null && lastModified(this.loadedDefaults) != this.defaultsModified) {
+            return true;
+        }
+        return this.overrideFile != null && lastModified(new File(this.overrideFile)) != this.overrideModified;
+    }
+
+    /**
+     * @return List<File> - The defaults and override files to watch for changes. The override
+     *         file is included even if it does not exist yet.
+     */
+    List<File> files()
+    {
+        List<File> files = new ArrayList<File>();
+        if (this.loadedDefaults != null) {
+            files.add(this.loadedDefaults);
+        }
+        if (this.overrideFile != null) {
+            files.add(new File(this.overrideFile));
+        }
+        return files;
+    }
+
+    /** @return long - The file's modification time, 0 if it is null or does not exist. */
+    private static long lastModified(File file)
+    {
+        return (file == null) ? 0 : file.lastModified();
+    }
+
+    /**
+     * Copies every key of a property file, as the single file Config has always read.
+     */
+    static void copy(PropertiesConfiguration config, String source, Map<String, String> values,
+                     Map<String, List<String>> lists, Map<String, String> sources)
+    {
+        Iterator<String> keys = config.getKeys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            values.put(key, config.getString(key, ""));
+            lists.put(key, Collections.unmodifiableList(Arrays.asList(config.getStringArray(key))));
+            sources.put(key, source);
+        }
+    }
+
+    private static void put(String key, String value, String source, Map<String, String> values,
+                            Map<String, List<String>> lists, Map<String, String> sources)
+    {
+        List<String> list = new ArrayList<String>();
+        /** A limit of -1 keeps empty elements, so "," is two empty values rather than none. */
+        for (String element : value.split(",", -1)) {
+            list.add(element.trim());
+        }
+        values.put(key, list.get(0));
+        lists.put(key, Collections.unmodifiableList(list));
+        sources.put(key, source);
+    }
+}
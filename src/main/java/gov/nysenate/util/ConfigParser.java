@@ -0,0 +1,19 @@
+package gov.nysenate.util;
+
+
+/**
+ * Converts a resolved property value into a typed value. Parsers are used as cache keys
+ * by the Config snapshots, so a parser should either be a shared constant or implement
+ * equals() and hashCode(). See {@link ConfigParsers} for the parsers provided.
+ *
+ * @param <T> - Type of the parsed value.
+ */
+public interface ConfigParser<T>
+{
+    /**
+     * @param value - Non-empty property value with all {{variables}} resolved.
+     * @return T - Parsed value, never null.
+     * @throws IllegalArgumentException if the value cannot be parsed.
+     */
+    T parse(String value) throws IllegalArgumentException;
+}
@@ -0,0 +1,252 @@
+package gov.nysenate.util;
+
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Standard parsers for the typed Config accessors.
+ *
+ *  INT, LONG    - Decimal numbers, e.g. 25
+ *  DOUBLE       - Decimal or scientific notation numbers, e.g. 2.5 or 1e3
+ *  BOOLEAN      - true/false, 1/0, yes/no or on/off in any case
+ *  DURATION     - A number with a ms, s, m, h or d unit (e.g. 30s), an ISO-8601
+ *                 duration (e.g. PT30S) or a plain number of milliseconds
+ *  DATA_SIZE    - A number of bytes with an optional B, KB, MB, GB or TB unit using
+ *                 powers of 1024 (e.g. 64MB)
+ *
+ * Surrounding whitespace is ignored by all parsers.
+ */
+public final class ConfigParsers
+{
+    private ConfigParsers() {}
+
+    /** Parser of each enum class, shared so that reads do not allocate one. */
+    private static final ConcurrentHashMap<Class<?>, ConfigParser<?>> enumParsers = new ConcurrentHashMap<Class<?>, ConfigParser<?>>();
+
+    public static final ConfigParser<String> STRING = new ConfigParser<String>() {
+        @Override
+        public String parse(String value)
+        {
+            return value;
+        }
+    };
+
+    public static final ConfigParser<Integer> INT = new ConfigParser<Integer>() {
+        @Override
+        public Integer parse(String value)
+        {
+            return Integer.valueOf(value.trim());
+        }
+    };
+
+    public static final ConfigParser<Long> LONG = new ConfigParser<Long>() {
+        @Override
+        public Long parse(String value)
+        {
+            return Long.valueOf(value.trim());
+        }
+    };
+
+    public static final ConfigParser<Double> DOUBLE = new ConfigParser<Double>() {
+        @Override
+        public Double parse(String value)
+        {
+            return Double.valueOf(value.trim());
+        }
+    };
+
+    public static final ConfigParser<Boolean> BOOLEAN = new ConfigParser<Boolean>() {
+        @Override
+        public Boolean parse(String value)
+        {
+            String trimmed = value.trim().toLowerCase(Locale.ROOT);
+            if (trimmed.equals("true") || trimmed.equals("1") || trimmed.equals("yes") || trimmed.equals("on")) {
+                return Boolean.TRUE;
+            }
+            if (trimmed.equals("false") || trimmed.equals("0") || trimmed.equals("no") || trimmed.equals("off")) {
+                return Boolean.FALSE;
+            }
+            throw new IllegalArgumentException("Not a boolean: " + value);
+        }
+    };
+
+    public static final ConfigParser<Duration> DURATION = new ConfigParser<Duration>() {
+        @Override
+        public Duration parse(String value)
+        {
+            String trimmed = value.trim().toLowerCase(Locale.ROOT);
+            if (trimmed.startsWith("p")) {
+                try {
+                    return Duration.parse(trimmed);
+                }
+                catch (DateTimeParseException e) {
+                    throw new IllegalArgumentException("Not a duration: " + value, e);
+                }
+            }
+            int unitStart = unitStart(trimmed);
+            long amount = Long.parseLong(trimmed.substring(0, unitStart).trim());
+            String unit = trimmed.substring(unitStart);
+            if (unit.isEmpty() || unit.equals("ms")) return Duration.ofMillis(amount);
+            if (unit.equals("s")) return Duration.ofSeconds(amount);
+            if (unit.equals("m")) return Duration.ofMinutes(amount);
+            if (unit.equals("h")) return Duration.ofHours(amount);
+            if (unit.equals("d")) return Duration.ofDays(amount);
+            throw new IllegalArgumentException("Unknown duration unit: " + value);
+        }
+    };
+
+    /** Data sizes are parsed to a number of bytes. */
+    public static final ConfigParser<Long> DATA_SIZE = new ConfigParser<Long>() {
+        @Override
+        public Long parse(String value)
+        {
+            String trimmed = value.trim().toUpperCase(Locale.ROOT);
+            int unitStart = unitStart(trimmed);
+            long amount = Long.parseLong(trimmed.substring(0, unitStart).trim());
+            String unit = trimmed.substring(unitStart);
+            if (unit.endsWith("B")) {
+                unit = unit.substring(0, unit.length() - 1);
+            }
+            int shift;
+            if (unit.isEmpty()) shift = 0;
+            else if (unit.equals("K")) shift = 10;
+            else if (unit.equals("M")) shift = 20;
+            else if (unit.equals("G")) shift = 30;
+            else if (unit.equals("T")) shift = 40;
+            else throw new IllegalArgumentException("Unknown data size unit: " + value);
+            if (amount > (Long.MAX_VALUE >> shift)) {
+                throw new IllegalArgumentException("Data size too large: " + value);
+            }
+            return amount << shift;
+        }
+    };
+
+    /**
+     * @param enumClass - Enum to parse constants of. Values are matched ignoring case.
+     * @return ConfigParser<E> - The same parser on every call for the class.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends Enum<E>> ConfigParser<E> forEnum(Class<E> enumClass)
+    {
+        ConfigParser<?> parser = enumParsers.get(enumClass);
+        if (parser == null) {
+            parser = new EnumParser<E>(enumClass);
+            ConfigParser<?> existing = enumParsers.putIfAbsent(enumClass, parser);
+            if (existing != null) {
+                parser = existing;
+            }
+        }
+        return (ConfigParser<E>) parser;
+    }
+
+    /**
+     * Parses every element of a list property. Lists are split using the property file's
+     * list delimiter and are not {{variable}} resolved, matching Config.getList().
+     *
+     * @param elementParser - Parser applied to each element.
+     * @return ConfigParser<List<T>>
+     */
+    public static <T> ConfigParser<List<T>> listOf(ConfigParser<T> elementParser)
+    {
+        return new ListParser<T>(elementParser);
+    }
+
+    /** Returns the index of the first character of the unit following a leading number. */
+    private static int unitStart(String value)
+    {
+        int i = 0;
+        while (i < value.length() && (Character.isDigit(value.charAt(i)) || (i == 0 && value.charAt(i) == '-'))) {
+            i++;
+        }
+        if (i == 0) {
+            throw new IllegalArgumentException("Missing number: " + value);
+        }
+        int unitStart = i;
+        while (unitStart < value.length() && Character.isWhitespace(value.charAt(unitStart))) {
+            unitStart++;
+        }
+        return unitStart;
+    }
+
+    private static final class EnumParser<E extends Enum<E>> implements ConfigParser<E>
+    {
+        private final Class<E> enumClass;
+
+        EnumParser(Class<E> enumClass)
+        {
+            this.enumClass = enumClass;
+        }
+
+        @Override
+        public E parse(String value)
+        {
+            String trimmed = value.trim();
+            for (E constant : enumClass.getEnumConstants()) {
+                if (constant.name().equalsIgnoreCase(trimmed)) {
+                    return constant;
+                }
+            }
+            throw new IllegalArgumentException("Not a " + enumClass.getSimpleName() + ": " + value);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof EnumParser && ((EnumParser<?>) o).enumClass == enumClass;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return enumClass.hashCode();
+        }
+    }
+
+    /**
+     * Marks a parser that applies to the list values of a key instead of its single value.
+     * Config snapshots recognize this type and pass each list element to the element parser.
+     */
+    static final class ListParser<T> implements ConfigParser<List<T>>
+    {
+        private final ConfigParser<T> elementParser;
+
+        ListParser(ConfigParser<T> elementParser)
+        {
+            this.elementParser = elementParser;
+        }
+
+        /** Parses a single value as a list of one element. */
+        @Override
+        public List<T> parse(String value)
+        {
+            return parseAll(Collections.singletonList(value));
+        }
+
+        List<T> parseAll(List<String> values)
+        {
+            List<T> parsed = new ArrayList<T>(values.size());
+            for (String value : values) {
+                parsed.add(elementParser.parse(value));
+            }
+            return Collections.unmodifiableList(parsed);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof ListParser && ((ListParser<?>) o).elementParser.equals(elementParser);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * elementParser.hashCode() + 1;
+        }
+    }
+}
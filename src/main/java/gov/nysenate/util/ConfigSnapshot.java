@@ -0,0 +1,266 @@
+package gov.nysenate.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.ConversionException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+
+import gov.nysenate.util.listener.ConfigChangeEvent;
+
+
+/**
+ * An immutable, fully resolved copy of the property file values at a point in time.
+ *
+ * Snapshots are built once when the property file is (re)loaded and are never modified
+ * afterwards, so any number of threads can read from one without synchronization. The
+ * Config class publishes the current snapshot through a volatile reference and swaps in
+ * a new one whenever the property file is reloaded.
+ *
+ * Typed values are parsed on first request and cached in the snapshot they were parsed
+ * from. When a snapshot replaces another, every key that had been parsed from the previous
+ * one is parsed again up front so that invalid values are reported at reload time.
+ */
+final class ConfigSnapshot
+{
+    /** Property values with all {{variables}} resolved. */
+    private final Map<String, String> values;
+
+    /** Raw list values for each key, as split by the configuration's list delimiter. */
+    private final Map<String, List<String>> lists;
+
+    /** Layer each key's value came from, see {@link ConfigLayers}. */
+    private final Map<String, String> sources;
+
+    /** Every key in sorted order, so the keys under a prefix are one contiguous range. */
+    private final NavigableSet<String> sortedKeys;
+
+    /** Parsed values by parser and key. Keys that are missing or empty map to MISSING. */
+    private final ConcurrentHashMap<ConfigParser<?>, ConcurrentHashMap<String, Object>> parsed =
+        new ConcurrentHashMap<ConfigParser<?>, ConcurrentHashMap<String, Object>>();
+
+    /** Keys under each prefix asked for by getRelativeKeys(), relative to the prefix. */
+    private final ConcurrentHashMap<String, Set<String>> relativeKeys = new ConcurrentHashMap<String, Set<String>>();
+
+    /** Placeholder for keys without a value, since ConcurrentHashMap cannot hold null. */
+    private static final Object MISSING = new Object();
+
+    private ConfigSnapshot(Map<String, String> values, Map<String, List<String>> lists, Map<String, String> sources)
+    {
+        this.values = values;
+        this.lists = lists;
+        this.sources = sources;
+        this.sortedKeys = Collections.unmodifiableNavigableSet(new TreeSet<String>(values.keySet()));
+    }
+
+    /**
+     * Copies every key out of the given configuration and its layers and resolves the
+     * variables of the merged values. Must be called either before the configuration is
+     * shared or while its reload lock is held (e.g. from within a reload event) so that a
+     * consistent view is copied.
+     *
+     * @param config - Loaded property file configuration.
+     * @param layers - Sources layered around the property file, or null for none.
+     * @return ConfigSnapshot
+     * @throws ConfigurationException if a layer cannot be read or the {{variables}} cannot be resolved.
+     */
+    static ConfigSnapshot build(PropertiesConfiguration config, ConfigLayers layers) throws ConfigurationException
+    {
+        Map<String, String> rawValues = new HashMap<String, String>();
+        Map<String, List<String>> lists = new HashMap<String, List<String>>();
+        Map<String, String> sources = new HashMap<String, String>();
+        if (layers != null) {
+            layers.merge(config, rawValues, lists, sources);
+        }
+        else {
+            ConfigLayers.copy(config, "file " + config.getPath(), rawValues, lists, sources);
+        }
+
+        Map<String, String> values = VariableResolver.resolveAll(rawValues);
+        return new ConfigSnapshot(Collections.unmodifiableMap(values), Collections.unmodifiableMap(lists),
+                                  Collections.unmodifiableMap(sources));
+    }
+
+    /**
+     * @param key - Property key to look up the value for.
+     * @return String - Resolved value or null if the key does not exist.
+     */
+    String getValue(String key)
+    {
+        return this.values.get(key);
+    }
+
+    /**
+     * @param key - Property key.
+     * @return String - Layer the key's value came from, or null if the key does not exist.
+     */
+    String getSource(String key)
+    {
+        return this.sources.get(key);
+    }
+
+    /**
+     * @param key - Property key to look up the values for.
+     * @return List<String> - Unmodifiable list of values or null if the key does not exist.
+     */
+    List<String> getList(String key)
+    {
+        return this.lists.get(key);
+    }
+
+    /**
+     * Keys starting with "prefix." sort between "prefix." and "prefix/", since '/' follows '.',
+     * so they are read as a range of the sorted keys rather than by scanning every key.
+     *
+     * @param prefix - Key prefix such as "db", matching "db" itself and keys starting with "db.".
+     *                 An empty prefix matches every key.
+     * @return SortedSet<String> - Unmodifiable matching keys in sorted order.
+     */
+    SortedSet<String> getKeys(String prefix)
+    {
+        if (prefix.isEmpty()) {
+            return this.sortedKeys;
+        }
+        SortedSet<String> children = this.sortedKeys.subSet(prefix + ".", true, prefix + "/", false);
+        if (!this.values.containsKey(prefix)) {
+            return children;
+        }
+        SortedSet<String> keys = new TreeSet<String>(children);
+        keys.add(prefix);
+        return Collections.unmodifiableSortedSet(keys);
+    }
+
+    /**
+     * @param prefix - Key prefix such as "db", or empty for every key.
+     * @return Set<String> - Unmodifiable keys under the prefix with "prefix." left off, in
+     *                       sorted order, built on first request and cached.
+     */
+    Set<String> getRelativeKeys(String prefix)
+    {
+        Set<String> relative = this.relativeKeys.get(prefix);
+        if (relative == null) {
+            if (prefix.isEmpty()) {
+                relative = this.sortedKeys;
+            }
+            else {
+                SortedSet<String> keys = new TreeSet<String>();
+                for (String key : getKeys(prefix)) {
+                    if (key.length() > prefix.length()) {
+                        keys.add(key.substring(prefix.length() + 1));
+                    }
+                }
+                relative = Collections.unmodifiableSortedSet(keys);
+            }
+            Set<String> existing = this.relativeKeys.putIfAbsent(prefix, relative);
+            if (existing != null) {
+                relative = existing;
+            }
+        }
+        return relative;
+    }
+
+    /**
+     * @param other - Snapshot to compare against.
+     * @return boolean - True if both snapshots contain the same keys, values and lists.
+     */
+    boolean hasSameValues(ConfigSnapshot other)
+    {
+        return this.values.equals(other.values) && this.lists.equals(other.lists);
+    }
+
+    /**
+     * @param previous - Snapshot being replaced by this one.
+     * @return ConfigChangeEvent - Keys whose value or list values differ between the snapshots.
+     */
+    ConfigChangeEvent changesSince(ConfigSnapshot previous)
+    {
+        Map<String, String> oldValues = new HashMap<String, String>();
+        Map<String, String> newValues = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : this.values.entrySet()) {
+            String key = entry.getKey();
+            if (!Objects.equals(entry.getValue(), previous.values.get(key))
+                    || !Objects.equals(this.lists.get(key), previous.lists.get(key))) {
+                oldValues.put(key, previous.values.get(key));
+                newValues.put(key, entry.getValue());
+            }
+        }
+        for (String key : previous.values.keySet()) {
+            if (!this.values.containsKey(key)) {
+                oldValues.put(key, previous.values.get(key));
+                newValues.put(key, null);
+            }
+        }
+        return new ConfigChangeEvent(oldValues, newValues);
+    }
+
+    /**
+     * Returns the parsed value of key, parsing and caching it on first request.
+     *
+     * @param key    - Property key to look up the value for.
+     * @param parser - Parser for the value type.
+     * @return T - Parsed value or null if the key is missing or empty.
+     * @throws ConversionException if the value cannot be parsed.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T getParsed(String key, ConfigParser<T> parser)
+    {
+        ConcurrentHashMap<String, Object> byKey = this.parsed.get(parser);
+        if (byKey == null) {
+            byKey = new ConcurrentHashMap<String, Object>();
+            ConcurrentHashMap<String, Object> existing = this.parsed.putIfAbsent(parser, byKey);
+            if (existing != null) {
+                byKey = existing;
+            }
+        }
+        Object value = byKey.get(key);
+        if (value == null) {
+            value = parse(key, parser);
+            byKey.putIfAbsent(key, value);
+        }
+        return (value != MISSING) ? (T) value : null;
+    }
+
+    /**
+     * Parses every key that had been parsed from the previous snapshot.
+     *
+     * @param previous - Snapshot being replaced by this one.
+     * @throws ConfigurationException if any of those keys no longer parses.
+     */
+    void parseKeysOf(ConfigSnapshot previous) throws ConfigurationException
+    {
+        for (Map.Entry<ConfigParser<?>, ConcurrentHashMap<String, Object>> entry : previous.parsed.entrySet()) {
+            for (String key : entry.getValue().keySet()) {
+                try {
+                    getParsed(key, entry.getKey());
+                }
+                catch (ConversionException e) {
+                    throw new ConfigurationException(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private Object parse(String key, ConfigParser<?> parser)
+    {
+        try {
+            if (parser instanceof ConfigParsers.ListParser) {
+                List<String> list = this.lists.get(key);
+                return (list != null && !list.isEmpty()) ? ((ConfigParsers.ListParser<?>) parser).parseAll(list) : MISSING;
+            }
+            String value = this.values.get(key);
+            return (value != null && !value.isEmpty()) ? parser.parse(value) : MISSING;
+        }
+        catch (IllegalArgumentException e) {
+            throw new ConversionException("Invalid value for config[" + key + "]: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package gov.nysenate.util;
+
+import gov.nysenate.util.listener.ConfigChangeListener;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.configuration.ConversionException;
+
+
+/**
+ * The keys of a Config under one prefix, read with the prefix left off. Obtain one from
+ * {@link Config#subset(String)} and hold on to it:
+ *
+ *   ConfigView db = config.subset("db");
+ *   String host = db.getValue("host");               // reads db.host
+ *   int maxActive = db.subset("pool").getInt("maxActive", 100);  // reads db.pool.maxActive
+ *
+ * A view holds no values of its own; every read goes to the Config's current snapshot, so
+ * views always see the latest reload. The full key for each relative key is built once and
+ * remembered, for up to 256 keys, so repeated reads do not allocate. Change listeners added through a view are
+ * only called for changes under its prefix.
+ */
+public final class ConfigView
+{
+    private final Config config;
+    private final String prefix;
+
+    /** Most full keys remembered, beyond which they are built on each read. */
+    private static final int MAX_FULL_KEYS = 256;
+
+    /** Full key of each relative key read so far, up to MAX_FULL_KEYS of them. */
+    private final ConcurrentHashMap<String, String> fullKeys = new ConcurrentHashMap<String, String>();
+
+    ConfigView(Config config, String prefix)
+    {
+        this.config = config;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return String - Prefix of this view's keys, e.g. "db" or "db.pool".
+     */
+    public String getPrefix()
+    {
+        return this.prefix;
+    }
+
+    /**
+     * @return Config - Configuration this view reads from.
+     */
+    public Config getConfig()
+    {
+        return this.config;
+    }
+
+    /**
+     * @param key - Key relative to this view, e.g. "pool" for db.pool.
+     * @return ConfigView - View of the keys under the given key.
+     */
+    public ConfigView subset(String key)
+    {
+        return new ConfigView(this.config, fullKey(key));
+    }
+
+    /**
+     * @param key - Key relative to this view.
+     * @return String - Full property key, e.g. "db.host" for "host".
+     */
+    public String fullKey(String key)
+    {
+        String fullKey = this.fullKeys.get(key);
+        if (fullKey == null) {
+            fullKey = this.prefix.isEmpty() ? key : this.prefix + "." + key;
+            if (this.fullKeys.size() < MAX_FULL_KEYS) {
+                this.fullKeys.putIfAbsent(key, fullKey);
+            }
+        }
+        return fullKey;
+    }
+
+    /**
+     * @param key - Key relative to this view.
+     * @return String - Value of the property or empty string if not found.
+     */
+    public String getValue(String key)
+    {
+        String value = this.config.currentSnapshot().getValue(fullKey(key));
+        return (value != null) ? value : "";
+    }
+
+    /**
+     * @param key          - Key relative to this view.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return String
+     */
+    public String getValue(String key, String defaultValue)
+    {
+        String value = this.config.currentSnapshot().getValue(fullKey(key));
+        return (value != null && !value.isEmpty()) ? value : defaultValue;
+    }
+
+    /**
+     * @param key - Key relative to this view.
+     * @return List<String> - Unmodifiable list of values, empty if the key is missing.
+     */
+    public List<String> getList(String key)
+    {
+        List<String> values = this.config.currentSnapshot().getList(fullKey(key));
+        return (values != null) ? values : Collections.<String>emptyList();
+    }
+
+    /**
+     * @param key          - Key relative to this view.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return int
+     * @throws ConversionException if the value is not an integer.
+     */
+    public int getInt(String key, int defaultValue)
+    {
+        Integer value = this.config.currentSnapshot().getParsed(fullKey(key), ConfigParsers.INT);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Key relative to this view.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return long
+     * @throws ConversionException if the value is not a long.
+     */
+    public long getLong(String key, long defaultValue)
+    {
+        Long value = this.config.currentSnapshot().getParsed(fullKey(key), ConfigParsers.LONG);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Key relative to this view.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return double
+     * @throws ConversionException if the value is not a number.
+     */
+    public double getDouble(String key, double defaultValue)
+    {
+        Double value = this.config.currentSnapshot().getParsed(fullKey(key), ConfigParsers.DOUBLE);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Key relative to this view.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return boolean
+     * @throws ConversionException if the value is not true or false.
+     */
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        Boolean value = this.config.currentSnapshot().getParsed(fullKey(key), ConfigParsers.BOOLEAN);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Key relative to this view.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return Duration
+     * @throws ConversionException if the value is not a duration.
+     */
+    public Duration getDuration(String key, Duration defaultValue)
+    {
+        Duration value = this.config.currentSnapshot().getParsed(fullKey(key), ConfigParsers.DURATION);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Key relative to this view.
+     * @param defaultValue - Number of bytes to return if the key is missing or empty.
+     * @return long - Number of bytes.
+     * @throws ConversionException if the value is not a data size.
+     */
+    public long getDataSize(String key, long defaultValue)
+    {
+        Long value = this.config.currentSnapshot().getParsed(fullKey(key), ConfigParsers.DATA_SIZE);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @param key          - Key relative to this view.
+     * @param enumClass    - Enum type, matched case insensitively against the constant names.
+     * @param defaultValue - Value to return if the key is missing or empty.
+     * @return E
+     * @throws ConversionException if the value is not one of the enum's constants.
+     */
+    public <E extends Enum<E>> E getEnum(String key, Class<E> enumClass, E defaultValue)
+    {
+        E value = this.config.currentSnapshot().getParsed(fullKey(key), ConfigParsers.forEnum(enumClass));
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @return Set<String> - Unmodifiable set of the keys under this view, relative to it, in
+     *                       sorted order. Built once per snapshot and shared between calls.
+     */
+    public Set<String> getKeys()
+    {
+        return this.config.currentSnapshot().getRelativeKeys(this.prefix);
+    }
+
+    /**
+     * @param listener - Called with the changes under this view's prefix, full keys included.
+     */
+    public void addChangeListener(ConfigChangeListener listener)
+    {
+        this.config.addChangeListener(this.prefix, listener);
+    }
+
+    /**
+     * @param listener - Listener to stop calling.
+     */
+    public void removeChangeListener(ConfigChangeListener listener)
+    {
+        this.config.removeChangeListener(listener);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ConfigView{" + this.prefix + "}";
+    }
+}
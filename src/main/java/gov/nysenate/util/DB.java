@@ -1,12 +1,23 @@
 package gov.nysenate.util;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Observable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.tomcat.jdbc.pool.DataSource;
 import org.apache.tomcat.jdbc.pool.PoolProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import gov.nysenate.util.listener.ConfigChangeEvent;
+import gov.nysenate.util.listener.ConfigChangeListener;
+
 
 /**
  * Database class to configure and wrap a DataSource instance for performing queries. Uses
@@ -19,20 +30,133 @@ import org.slf4j.LoggerFactory;
  *  prefix.pass =
  *  prefix.host = localhost
  *  prefix.name = database_name
+ *  prefix.url = (optional) full JDBC url, used instead of type, host and name
+ *
+ * The pool can be tuned per prefix with the following optional keys, shown with their
+ * defaults. Durations take a unit (500ms, 30s, 5m); a plain number is milliseconds.
+ *
+ *  prefix.pool.initialSize = 10
+ *  prefix.pool.maxActive = 100
+ *  prefix.pool.minIdle = 10
+ *  prefix.pool.maxIdle = 100
+ *  prefix.pool.maxWait = 10s
+ *  prefix.pool.maxAge = 0 (connections are never retired for age)
+ *  prefix.pool.defaultAutoCommit = true
+ *  prefix.pool.validation = borrow (validate on borrow) or idle (validate idle connections in the background)
+ *  prefix.pool.validationQuery = SELECT 1
+ *  prefix.pool.validationQueryTimeout = (none)
+ *  prefix.pool.validationInterval = 30s
+ *  prefix.pool.testOnBorrow, testOnReturn, testWhileIdle = (derived from validation)
+ *  prefix.pool.timeBetweenEvictionRuns = 30s
+ *  prefix.pool.minEvictableIdleTime = 30s
+ *  prefix.pool.logAbandoned = true
+ *  prefix.pool.removeAbandoned = true
+ *  prefix.pool.removeAbandonedTimeout = 60s
+ *  prefix.pool.jmxEnabled = true
+ *  prefix.pool.jdbcInterceptors = ConnectionState;StatementFinalizer (fully qualified)
+ *
+ * Prepared statements are cached per pooled connection, so repeated SQL is only parsed by
+ * the server once per connection. Closing a statement returns it to the cache. When a
+ * connection's cache is full, eviction = lru closes its longest cached statement to make
+ * room and eviction = none closes the statement being returned instead:
+ *
+ *  prefix.statementCache.maxPerConnection = 50 (0 disables the cache)
+ *  prefix.statementCache.eviction = lru
+ *  prefix.statementCache.callable = false (also cache prepareCall statements)
+ *
+ * Pool and statement statistics are available from getMetrics(). Statements slower than
+ * the threshold are counted and logged at warn level, and a summary can be logged
+ * periodically:
+ *
+ *  prefix.metrics.slowQueryThreshold = 1s
+ *  prefix.metrics.logInterval = 0 (no periodic summary)
+ *
+ * When a connection, prefix.pool.* or prefix.statementCache.* value changes the DB builds
+ * and warms up a replacement pool, switches new borrows over to it and closes the previous
+ * pool once its borrowed connections have been returned. Borrow through getConnection(), or
+ * call getDataSource() for each use, rather than holding on to the DataSource across a
+ * configuration change. The prefix.metrics.*, prefix.query.* and prefix.cache.* keys apply
+ * without replacing the pool.
+ *
+ * Large imports and exports should go through query(), see {@link DBQuery}:
+ *
+ *  prefix.query.batchSize = 500
+ *  prefix.query.fetchSize = 1000
+ *
+ * Results of queries against rarely changing tables can be cached with cache(), see
+ * {@link QueryCache} for the prefix.cache.* keys.
+ *
+ * Call close() when the DB is no longer needed. DBs still open when the context is destroyed
+ * are drained and closed by {@link Lifecycle#shutdownAll(java.time.Duration)}.
  *
  */
-public class DB
+public class DB implements ConfigChangeListener
 {
     private static final Logger logger = LoggerFactory.getLogger(DB.class);
 
-    private DataSource ds;
-    private final Config config;
-    private String prefix;
+    /** How pooled connections are validated, see prefix.pool.validation. */
+    public enum Validation
+    {
+        /** Validate a connection when it is borrowed, at most once per validation interval. */
+        BORROW,
+        /** Validate idle connections from the pool cleaner between eviction runs. */
+        IDLE
+    }
+
+    /** How often a replaced pool is checked for connections that are still borrowed. */
+    private static final long DRAIN_POLL_MILLIS = 100;
+
+    /** Keys under prefix that the pool is built from, a change to any of them replaces the pool. */
+    private static final String[] POOL_KEYS = {
+        "url", "type", "host", "name", "driver", "user", "pass", "pool", "statementCache"
+    };
+
+    private volatile DataSource ds;
+    private final ConfigView config;
+    private final ConfigView poolConfig;
+    private final ConfigView statementCacheConfig;
+    private final String prefix;
+    private final DBMetrics metrics;
+    private final DBQuery query;
+    private final QueryCache cache;
+
+    /** Threads closing replaced pools, interrupted by close() so they close them at once. */
+    private final Set<Thread> drainers = ConcurrentHashMap.<Thread>newKeySet();
+
+    /** Set once shutdown has begun, after which no connections are handed out. */
+    private volatile boolean closing = false;
+    private boolean closed = false;
+
+    /** Registered with Lifecycle until the DB is closed. */
+    private final Lifecycle.Resource resource = new Lifecycle.Resource() {
+        @Override
+        public boolean drain(long timeoutMillis)
+        {
+            return drainAndClose(timeoutMillis);
+        }
+
+        @Override
+        public void forceClose()
+        {
+            close();
+        }
+    };
 
     public DB(Config config, String dbPrefix)
     {
-        this.config = config;
-        this.buildDataSource(dbPrefix);
+        this.config = config.subset(dbPrefix);
+        this.poolConfig = this.config.subset("pool");
+        this.statementCacheConfig = this.config.subset("statementCache");
+        this.prefix = dbPrefix;
+        this.metrics = new DBMetrics(dbPrefix);
+        this.query = new DBQuery(this, this.config);
+        this.cache = new QueryCache(this, this.config);
+        this.ds = this.buildDataSource();
+        /** The pool starts on first use, when the interceptor reports it to the metrics. */
+        this.metrics.attach(this.ds.getPoolProperties(), null);
+        applyMetricsSettings();
+        this.config.addChangeListener(this);
+        Lifecycle.register("DB " + dbPrefix, this.resource);
     }
 
     public DataSource getDataSource()
@@ -40,77 +164,349 @@ public class DB
         return this.ds;
     }
 
+    /**
+     * @return DBMetrics - Statistics for this database, kept across pool replacements.
+     */
+    public DBMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+
+    /**
+     * @return DBQuery - Batched writes and streaming reads on this database's connections.
+     */
+    public DBQuery query()
+    {
+        return this.query;
+    }
+
+    /**
+     * @return QueryCache - Read-through cache of query results, disabled unless
+     *                      prefix.cache.maxEntries is set.
+     */
+    public QueryCache cache()
+    {
+        return this.cache;
+    }
+
+    /**
+     * @return Connection - A connection borrowed from the current pool. Close it to return it.
+     * @throws SQLException if no connection could be obtained.
+     */
+    public Connection getConnection() throws SQLException
+    {
+        if (this.closing) {
+            throw new SQLException("DB " + this.prefix + " has been closed.");
+        }
+        long start = System.nanoTime();
+        try {
+            return this.ds.getConnection();
+        }
+        finally {
+            this.metrics.getBorrowWait().record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Opens the pool's initial connections and borrows up to minIdle connections at once,
+     * checking each is valid, so the first requests after startup find them ready.
+     *
+     * @throws SQLException if a connection cannot be opened or is not valid.
+     */
+    public void warmUp() throws SQLException
+    {
+        DataSource current = this.ds;
+        current.createPool();
+        int count = Math.max(1, Math.min(current.getMinIdle(), current.getMaxActive()));
+        List<Connection> held = new ArrayList<Connection>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                Connection connection = current.getConnection();
+                held.add(connection);
+                if (!connection.isValid(Math.max(0, current.getValidationQueryTimeout()))) {
+                    throw new SQLException("Connection for " + this.prefix + " is not valid");
+                }
+            }
+        }
+        finally {
+            for (Connection connection : held) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the pool from the current configuration.
+     * @deprecated DB now subscribes to its own configuration changes.
+     */
+    @Deprecated
     public void update(Observable o, Object arg)
     {
-        if (this.prefix != null) {
-            buildDataSource(this.prefix);
+        rebuildDataSource();
+    }
+
+    /**
+     * Called on the configuration dispatch thread when a prefix.* value changes. Only a change
+     * to the connection, prefix.pool.* or prefix.statementCache.* keys replaces the pool; the
+     * metrics settings are applied in place and the query and cache keys are read as they are used.
+     */
+    @Override
+    public synchronized void configChanged(ConfigChangeEvent event)
+    {
+        if (this.closed) {
+            return;
         }
-    };
+        logger.info("Configuration changed for " + this.prefix + " " + event.getChangedKeys());
+        for (String key : POOL_KEYS) {
+            if (event.hasChangesUnder(this.prefix + "." + key)) {
+                rebuildDataSource();
+                return;
+            }
+        }
+        if (event.hasChangesUnder(this.prefix + ".metrics")) {
+            applyMetricsSettings();
+        }
+    }
+
+    /**
+     * Stops following configuration changes and closes the connection pool, including any
+     * connections that are still borrowed.
+     */
+    public synchronized void close()
+    {
+        if (this.closed) {
+            return;
+        }
+        this.closing = true;
+        this.closed = true;
+        Lifecycle.unregister(this.resource);
+        this.config.removeChangeListener(this);
+        for (Thread drainer : this.drainers) {
+            drainer.interrupt();
+        }
+        this.ds.close(true);
+        this.metrics.close();
+    }
+
+    /**
+     * Stops handing out connections, waits for the borrowed ones to be returned and closes.
+     *
+     * @param timeoutMillis - Longest time to wait for borrowed connections.
+     * @return boolean - True if the pool was closed with none borrowed, false if the wait timed out.
+     */
+    private boolean drainAndClose(long timeoutMillis)
+    {
+        this.closing = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (this.metrics.getActive() > 0) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Builds and warms up a replacement pool, then switches to it and drains the previous one.
+     * If the replacement cannot connect the current pool is kept.
+     */
+    private synchronized void rebuildDataSource()
+    {
+        if (this.closed) {
+            return;
+        }
+        DataSource replacement = buildDataSource();
+        try {
+            /** Opens the initial connections so the first borrows do not wait on them. */
+            replacement.createPool();
+        }
+        catch (SQLException e) {
+            logger.error("Unable to connect with the new configuration for " + this.prefix + ", keeping the current pool.", e);
+            replacement.close(true);
+            return;
+        }
+        DataSource previous = this.ds;
+        this.ds = replacement;
+        /** Only now that the replacement is in use do the metrics follow it and its settings. */
+        this.metrics.attach(replacement.getPoolProperties(), replacement.getPool());
+        applyMetricsSettings();
+        /** The new configuration may point at another database, so cached results are dropped. */
+        this.cache.invalidateAll();
+        drain(previous);
+    }
+
+    /**
+     * Closes a replaced pool from a background thread once none of its connections are
+     * borrowed. Connections still borrowed after the abandoned timeout are closed regardless.
+     */
+    private void drain(final DataSource previous)
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(previous.getRemoveAbandonedTimeout());
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    while (previous.getActive() > 0 && System.nanoTime() - deadline < 0) {
+                        Thread.sleep(DRAIN_POLL_MILLIS);
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (previous.getActive() > 0) {
+                    logger.warn("Closing " + previous.getActive() + " connections still borrowed from the replaced " + prefix + " pool.");
+                }
+                previous.close(true);
+                drainers.remove(Thread.currentThread());
+                logger.info("Closed the replaced " + prefix + " pool.");
+            }
+        }, "db-pool-drain-" + this.prefix);
+        drainer.setDaemon(true);
+        this.drainers.add(drainer);
+        drainer.start();
+    }
 
     /**
      * Set up the data source.
-     * The dbPrefix parameter specifies the prefix used in the properties file.
-     * Thus for creating a data source for configuration db.name, db.host,..
-     * set dbPrefix = "db". This is to allow for multiple databases.
+     * The keys are read under the DB's prefix in the properties file.
+     * Thus a DB created with dbPrefix = "db" reads db.name, db.host,..
+     * This is to allow for multiple databases.
      *
      * See the documentation for details:
      * http://people.apache.org/~fhanik/jdbc-pool/jdbc-pool.html
      */
-    private void buildDataSource(String dbPrefix)
+    private DataSource buildDataSource()
     {
-        this.ds = new DataSource();
-        this.prefix = dbPrefix;
+        DataSource ds = new DataSource();
 
         PoolProperties p = new PoolProperties();
 
         /** Basic connection parameters. */
-        String url = String.format("jdbc:%s://%s/%s", config.getValue(dbPrefix + ".type"), config.getValue(dbPrefix + ".host"), config.getValue(dbPrefix + ".name"));
+        String url = config.getValue("url");
+        if (url.isEmpty()) {
+            url = String.format("jdbc:%s://%s/%s", config.getValue("type"), config.getValue("host"), config.getValue("name"));
+        }
         logger.info("Connecting to: "+url);
         p.setUrl(url);
-        p.setDriverClassName(config.getValue(dbPrefix + ".driver"));
-        p.setUsername(config.getValue(dbPrefix + ".user"));
-        p.setPassword(config.getValue(dbPrefix + ".pass"));
+        p.setDriverClassName(config.getValue("driver"));
+        p.setUsername(config.getValue("user"));
+        p.setPassword(config.getValue("pass"));
+
+        ConfigView pool = this.poolConfig;
 
         /** How big should the connection pool be? How big can it get? */
-        p.setInitialSize(10);
-        p.setMaxActive(100);
-        p.setMinIdle(10);
-        p.setMaxIdle(100);
+        p.setInitialSize(pool.getInt("initialSize", 10));
+        p.setMaxActive(pool.getInt("maxActive", 100));
+        p.setMinIdle(pool.getInt("minIdle", 10));
+        p.setMaxIdle(pool.getInt("maxIdle", 100));
 
-        p.setDefaultAutoCommit(true);
+        p.setDefaultAutoCommit(pool.getBoolean("defaultAutoCommit", true));
 
         /** Allow for 30 seconds between validating idle connections and cleaning abandoned connections. */
-        p.setValidationInterval(30000);
-        p.setTimeBetweenEvictionRunsMillis(30000);
-        p.setMinEvictableIdleTimeMillis(30000);
+        p.setValidationInterval(millis(pool, "validationInterval", 30000));
+        p.setTimeBetweenEvictionRunsMillis((int) millis(pool, "timeBetweenEvictionRuns", 30000));
+        p.setMinEvictableIdleTimeMillis((int) millis(pool, "minEvictableIdleTime", 30000));
+        p.setMaxAge(millis(pool, "maxAge", 0));
 
-        /** Configure the connection validation testing. */
-        p.setTestOnBorrow(true);
-        p.setTestOnReturn(false);
-        p.setTestWhileIdle(false);
-        p.setValidationQuery("SELECT 1");
+        /**
+         * Configure the connection validation testing. By default connections are validated when
+         * borrowed, at most once per validation interval. With validation = idle they are instead
+         * validated by the pool cleaner between eviction runs, keeping the query off the borrow path.
+         */
+        Validation validation = pool.getEnum("validation", Validation.class, Validation.BORROW);
+        p.setTestOnBorrow(pool.getBoolean("testOnBorrow", validation == Validation.BORROW));
+        p.setTestOnReturn(pool.getBoolean("testOnReturn", false));
+        p.setTestWhileIdle(pool.getBoolean("testWhileIdle", validation == Validation.IDLE));
+        p.setValidationQuery(pool.getValue("validationQuery", "SELECT 1"));
+        p.setValidationQueryTimeout((int) seconds(pool, "validationQueryTimeout", -1));
+        p.setValidator(new MetricsValidator(this.metrics, p.getValidationQuery(), p.getValidationQueryTimeout()));
 
         /**
          * Connections are considered abandoned after staying open for 60+ seconds
          * This should be set to longer than the longest expected query!
          */
-        p.setLogAbandoned(true);
-        p.setRemoveAbandoned(true);
-        p.setRemoveAbandonedTimeout(60);
+        p.setLogAbandoned(pool.getBoolean("logAbandoned", true));
+        p.setRemoveAbandoned(pool.getBoolean("removeAbandoned", true));
+        p.setRemoveAbandonedTimeout((int) seconds(pool, "removeAbandonedTimeout", 60));
 
         /** How long should we wait for a connection before throwing an exception? */
-        p.setMaxWait(10000);
+        p.setMaxWait((int) millis(pool, "maxWait", 10000));
 
-        /** Not sure what JMX is... */
-        p.setJmxEnabled(true);
+        /** Exposes the pool statistics as MBeans. */
+        p.setJmxEnabled(pool.getBoolean("jmxEnabled", true));
 
         /** Interceptors implement hooks into the query process; like Tomcat filters.
          *  ConnectionState - Caches connection state information to avoid redundant queries.
          *  StatementFinalizer - Finalizes all related statements when a connection is closed.
          */
-        p.setJdbcInterceptors("org.apache.tomcat.jdbc.pool.interceptor.ConnectionState;" +
-                "org.apache.tomcat.jdbc.pool.interceptor.StatementFinalizer");
+        p.setJdbcInterceptors(pool.getValue("jdbcInterceptors",
+                "org.apache.tomcat.jdbc.pool.interceptor.ConnectionState;" +
+                "org.apache.tomcat.jdbc.pool.interceptor.StatementFinalizer") +
+                statementCacheInterceptor(p.getMaxActive()) +
+                ";" + StatementTimingInterceptor.class.getName() +
+                "(" + StatementTimingInterceptor.METRICS_PROPERTY + "=" + this.metrics.getId() + ")");
+
+        /** Physical connections are opened through a factory that times them. */
+        p.setDataSource(new TimedConnectionFactory(p.getDriverClassName(), p.getUrl(), p.getUsername(), p.getPassword(),
+                this.metrics.getConnectionCreate()));
+
+        ds.setPoolProperties(p);
+        return ds;
+    }
+
+    /**
+     * Applies the statement timing threshold and the optional periodic summary to the
+     * metrics. Called once the pool built from the same configuration is in use.
+     */
+    private void applyMetricsSettings()
+    {
+        this.metrics.setSlowQueryThreshold(config.getDuration("metrics.slowQueryThreshold", Duration.ofSeconds(1)));
+        this.metrics.scheduleReport(config.getDuration("metrics.logInterval", Duration.ZERO));
+    }
 
-        this.ds.setPoolProperties(p);
+    /**
+     * Prepared statements are cached per connection unless prefix.statementCache.maxPerConnection
+     * is 0. The cache comes before the timing interceptor so that cached statements are timed.
+     *
+     * @param maxActive - Largest pool size, which bounds the statements cached across the pool.
+     * @return String - Interceptor definition prefixed with ';', or empty if caching is disabled.
+     */
+    private String statementCacheInterceptor(int maxActive)
+    {
+        int maxPerConnection = this.statementCacheConfig.getInt("maxPerConnection", 50);
+        if (maxPerConnection <= 0) {
+            return "";
+        }
+        StatementCacheInterceptor.Eviction eviction = this.statementCacheConfig.getEnum("eviction",
+            StatementCacheInterceptor.Eviction.class, StatementCacheInterceptor.Eviction.LRU);
+        return ";" + StatementCacheInterceptor.class.getName() + "("
+            + "prepared=true,callable=" + this.statementCacheConfig.getBoolean("callable", false)
+            + ",max=" + Math.min(Integer.MAX_VALUE, (long) maxPerConnection * maxActive + 1)
+            + "," + StatementCacheInterceptor.MAX_PER_CONNECTION_PROPERTY + "=" + maxPerConnection
+            + "," + StatementCacheInterceptor.EVICTION_PROPERTY + "=" + eviction.name().toLowerCase()
+            + "," + StatementCacheInterceptor.METRICS_PROPERTY + "=" + this.metrics.getId() + ")";
+    }
+
+    /** Reads a duration key in milliseconds. Negative defaults pass through unchanged. */
+    private static long millis(ConfigView view, String key, long defaultMillis)
+    {
+        Duration value = view.getDuration(key, null);
+        return (value != null) ? value.toMillis() : defaultMillis;
+    }
+
+    /** Reads a duration key in whole seconds. Negative defaults pass through unchanged. */
+    private static long seconds(ConfigView view, String key, long defaultSeconds)
+    {
+        Duration value = view.getDuration(key, null);
+        return (value != null) ? value.getSeconds() : defaultSeconds;
     }
 }
@@ -0,0 +1,476 @@
+package gov.nysenate.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.PoolConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Connection pool and statement statistics for a {@link DB}, obtained from DB.getMetrics().
+ *
+ * Pool sizes are read from the current pool. Latencies are kept in {@link LatencyHistogram}s
+ * for borrowing a connection through DB.getConnection(), opening a new physical connection
+ * and executing statements. Statement latencies are also kept per SQL shape, which is the
+ * statement text with literals replaced by ? and whitespace collapsed, for up to 500 shapes.
+ *
+ * Statement cache hits, misses and evictions are counted by the
+ * {@link StatementCacheInterceptor} when the statement cache is enabled.
+ *
+ * The statistics are collected by the {@link StatementTimingInterceptor} and the validator
+ * and connection factory DB installs in every pool, and carry over when the pool is
+ * replaced after a configuration change. Pool sizes only follow the pool DB has attached,
+ * so a replacement that fails to start never takes the metrics from the current pool.
+ */
+public final class DBMetrics
+{
+    private static final Logger logger = LoggerFactory.getLogger(DBMetrics.class);
+
+    /** Metrics by id, used by interceptors to find the metrics of the pool they belong to. */
+    private static final Map<String, DBMetrics> registry = new ConcurrentHashMap<String, DBMetrics>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /** Shared thread for the optional periodic reports. */
+    private static ScheduledExecutorService reporter;
+
+    private static final int MAX_SQL_SHAPES = 500;
+    static final String OTHER_SHAPE = "(other)";
+    static final String UNKNOWN_SHAPE = "(unknown)";
+
+    private final String id;
+    private final String prefix;
+
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+    private final LatencyHistogram connectionCreate = new LatencyHistogram();
+    private final LatencyHistogram statements = new LatencyHistogram();
+
+    /** Histograms by SQL shape, and by exact SQL text to skip normalizing repeated statements. */
+    private final ConcurrentHashMap<String, LatencyHistogram> byShape = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, LatencyHistogram> bySql = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder slowQueries = new LongAdder();
+    private final LongAdder failedQueries = new LongAdder();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final LongAdder statementCacheEvictions = new LongAdder();
+
+    /** Abandoned connection removals from pools that have since been closed. */
+    private final AtomicLong retiredAbandonedRemovals = new AtomicLong();
+
+    /** Properties of the pool DB is using, whose pool is read once it has started. */
+    private volatile PoolConfiguration owner;
+    private volatile ConnectionPool pool;
+    private volatile long slowQueryThresholdNanos = TimeUnit.SECONDS.toNanos(1);
+    private ScheduledFuture<?> reportTask;
+
+    DBMetrics(String prefix)
+    {
+        this.prefix = prefix;
+        this.id = prefix + "-" + nextId.incrementAndGet();
+        registry.put(this.id, this);
+    }
+
+    static DBMetrics forId(String id)
+    {
+        return registry.get(id);
+    }
+
+    String getId()
+    {
+        return this.id;
+    }
+
+    /** Stops the periodic report and releases the metrics for garbage collection. */
+    synchronized void close()
+    {
+        scheduleReport(Duration.ZERO);
+        registry.remove(this.id);
+    }
+
+    /** @return int - Connections currently borrowed. */
+    public int getActive()
+    {
+        ConnectionPool current = this.pool;
+        return (current != null) ? current.getActive() : 0;
+    }
+
+    /** @return int - Connections open and waiting to be borrowed. */
+    public int getIdle()
+    {
+        ConnectionPool current = this.pool;
+        return (current != null) ? current.getIdle() : 0;
+    }
+
+    /** @return int - Threads currently waiting for a connection. */
+    public int getWaiting()
+    {
+        ConnectionPool current = this.pool;
+        return (current != null) ? current.getWaitCount() : 0;
+    }
+
+    /** @return LatencyHistogram - Time to borrow a connection through DB.getConnection(). */
+    public LatencyHistogram getBorrowWait()
+    {
+        return this.borrowWait;
+    }
+
+    /** @return LatencyHistogram - Time to open a new physical connection to the database. */
+    public LatencyHistogram getConnectionCreate()
+    {
+        return this.connectionCreate;
+    }
+
+    /** @return LatencyHistogram - Execution time of every statement. */
+    public LatencyHistogram getStatements()
+    {
+        return this.statements;
+    }
+
+    /** @return Map<String, LatencyHistogram> - Live, unmodifiable view of statement execution time by SQL shape. */
+    public Map<String, LatencyHistogram> getStatementsByShape()
+    {
+        return Collections.unmodifiableMap(this.byShape);
+    }
+
+    /** @return long - Connections that failed validation. */
+    public long getValidationFailures()
+    {
+        return this.validationFailures.sum();
+    }
+
+    /** @return long - Connections removed from the pool after being held past the abandoned timeout. */
+    public long getAbandonedRemovals()
+    {
+        ConnectionPool current = this.pool;
+        return this.retiredAbandonedRemovals.get() + ((current != null) ? current.getRemoveAbandonedCount() : 0);
+    }
+
+    /** @return long - Statements that took longer than prefix.metrics.slowQueryThreshold. */
+    public long getSlowQueries()
+    {
+        return this.slowQueries.sum();
+    }
+
+    /** @return long - Statements that threw an exception. */
+    public long getFailedQueries()
+    {
+        return this.failedQueries.sum();
+    }
+
+    /** @return long - Prepared statements served from the statement cache. */
+    public long getStatementCacheHits()
+    {
+        return this.statementCacheHits.sum();
+    }
+
+    /** @return long - Prepared statements that were not in the statement cache and were prepared. */
+    public long getStatementCacheMisses()
+    {
+        return this.statementCacheMisses.sum();
+    }
+
+    /** @return long - Cached statements closed to make room for another. */
+    public long getStatementCacheEvictions()
+    {
+        return this.statementCacheEvictions.sum();
+    }
+
+    /**
+     * @return String - Multi-line summary of all statistics, with the 10 slowest SQL shapes by p99.
+     */
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Pool ").append(this.prefix)
+          .append(": active=").append(getActive())
+          .append(" idle=").append(getIdle())
+          .append(" waiting=").append(getWaiting())
+          .append(" validationFailures=").append(getValidationFailures())
+          .append(" abandonedRemovals=").append(getAbandonedRemovals())
+          .append(" slowQueries=").append(getSlowQueries())
+          .append(" failedQueries=").append(getFailedQueries())
+          .append(" statementCacheHits=").append(getStatementCacheHits())
+          .append(" statementCacheMisses=").append(getStatementCacheMisses())
+          .append(" statementCacheEvictions=").append(getStatementCacheEvictions());
+        sb.append("\n  borrow wait: ").append(this.borrowWait);
+        sb.append("\n  connection create: ").append(this.connectionCreate);
+        sb.append("\n  statements: ").append(this.statements);
+
+        List<Map.Entry<String, LatencyHistogram>> shapes = new ArrayList<Map.Entry<String, LatencyHistogram>>(this.byShape.entrySet());
+        final Map<String, Long> p99 = new HashMap<String, Long>();
+        for (Map.Entry<String, LatencyHistogram> entry : shapes) {
+            p99.put(entry.getKey(), entry.getValue().getPercentile(99));
+        }
+        Collections.sort(shapes, new Comparator<Map.Entry<String, LatencyHistogram>>() {
+            @Override
+            public int compare(Map.Entry<String, LatencyHistogram> a, Map.Entry<String, LatencyHistogram> b)
+            {
+                return Long.compare(p99.get(b.getKey()), p99.get(a.getKey()));
+            }
+        });
+        for (Map.Entry<String, LatencyHistogram> entry : shapes.subList(0, Math.min(10, shapes.size()))) {
+            sb.append("\n  ").append(entry.getValue()).append(" : ").append(entry.getKey());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Logs report() at info level every interval. A zero interval stops the report.
+     */
+    synchronized void scheduleReport(Duration interval)
+    {
+        if (this.reportTask != null) {
+            this.reportTask.cancel(false);
+            this.reportTask = null;
+        }
+        if (!interval.isZero() && !interval.isNegative()) {
+            long millis = interval.toMillis();
+            this.reportTask = reporter().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run()
+                {
+                    logger.info(report());
+                }
+            }, millis, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void setSlowQueryThreshold(Duration threshold)
+    {
+        this.slowQueryThresholdNanos = threshold.toNanos();
+    }
+
+    /**
+     * Makes the pool built from the properties the one pool sizes are read from. Called by DB
+     * for its first pool and again once a replacement has started and been switched to.
+     *
+     * @param properties - Properties of the pool DB is now using.
+     * @param started    - That pool if it has already started, otherwise null until poolStarted().
+     */
+    void attach(PoolConfiguration properties, ConnectionPool started)
+    {
+        this.owner = properties;
+        this.pool = started;
+    }
+
+    /** Called by the interceptor of every pool that starts, attaching only the owner's pool. */
+    void poolStarted(ConnectionPool started)
+    {
+        if (started.getPoolProperties() == this.owner) {
+            this.pool = started;
+        }
+    }
+
+    void poolClosed(ConnectionPool closed)
+    {
+        this.retiredAbandonedRemovals.addAndGet(closed.getRemoveAbandonedCount());
+        if (this.pool == closed) {
+            this.pool = null;
+        }
+    }
+
+    void validationFailed()
+    {
+        this.validationFailures.increment();
+    }
+
+    void statementFailed()
+    {
+        this.failedQueries.increment();
+    }
+
+    void statementCacheLookup(boolean hit)
+    {
+        (hit ? this.statementCacheHits : this.statementCacheMisses).increment();
+    }
+
+    void statementCacheEvicted()
+    {
+        this.statementCacheEvictions.increment();
+    }
+
+    void statementExecuted(String sql, long nanos)
+    {
+        this.statements.record(nanos);
+        histogramFor(sql).record(nanos);
+        if (nanos > this.slowQueryThresholdNanos) {
+            this.slowQueries.increment();
+            logger.warn(String.format("Slow query on %s (%d ms): %s", this.prefix, TimeUnit.NANOSECONDS.toMillis(nanos), sql));
+        }
+    }
+
+    private LatencyHistogram histogramFor(String sql)
+    {
+        if (sql == null) {
+            sql = UNKNOWN_SHAPE;
+        }
+        LatencyHistogram histogram = this.bySql.get(sql);
+        if (histogram == null) {
+            String shape = shapeOf(sql);
+            histogram = this.byShape.get(shape);
+            if (histogram == null) {
+                if (this.byShape.size() < MAX_SQL_SHAPES) {
+                    this.byShape.putIfAbsent(shape, new LatencyHistogram());
+                    histogram = this.byShape.get(shape);
+                }
+                else {
+                    this.byShape.putIfAbsent(OTHER_SHAPE, new LatencyHistogram());
+                    histogram = this.byShape.get(OTHER_SHAPE);
+                }
+            }
+            if (this.bySql.size() >= MAX_SQL_SHAPES * 4) {
+                /** Starts over once full, so the statements in use are cached again rather than normalized on every run. */
+                this.bySql.clear();
+            }
+            this.bySql.putIfAbsent(sql, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Normalizes SQL so that statements differing only in literal values share a shape.
+     * String and numeric literals become ?, runs of whitespace become a single space and
+     * lists of placeholders such as IN (?, ?, ?) become IN (?...).
+     */
+    static String shapeOf(String sql)
+    {
+        StringBuilder sb = new StringBuilder(sql.length());
+        int i = 0;
+        int length = sql.length();
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                appendPlaceholder(sb);
+            }
+            else if (Character.isDigit(c) && !endsWithIdentifier(sb)) {
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                appendPlaceholder(sb);
+            }
+            else if (c == '?') {
+                i++;
+                appendPlaceholder(sb);
+            }
+            else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (sb.length() > 0 && i < length) {
+                    sb.append(' ');
+                }
+            }
+            else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean endsWithIdentifier(StringBuilder sb)
+    {
+        if (sb.length() == 0) {
+            return false;
+        }
+        char last = sb.charAt(sb.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '.';
+    }
+
+    /** @return boolean - True if the first end characters of sb end with suffix, without copying them. */
+    private static boolean endsWith(StringBuilder sb, int end, String suffix)
+    {
+        int start = end - suffix.length();
+        if (start < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (sb.charAt(start + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Appends ?, folding it into a preceding "?, " so that lists collapse to "?...". */
+    private static void appendPlaceholder(StringBuilder sb)
+    {
+        int end = sb.length();
+        if (end > 0 && sb.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end > 0 && sb.charAt(end - 1) == ',') {
+            int before = end - 1;
+            if (before > 0 && sb.charAt(before - 1) == ' ') {
+                before--;
+            }
+            if (endsWith(sb, before, "?...")) {
+                sb.setLength(before);
+                return;
+            }
+            if (endsWith(sb, before, "?")) {
+                sb.setLength(before);
+                sb.append("...");
+                return;
+            }
+        }
+        sb.append('?');
+    }
+
+    /**
+     * Stops the shared metrics reporting thread. It is started again if it is needed after this.
+     */
+    static synchronized void shutdownReporter()
+    {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService reporter()
+    {
+        if (reporter == null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "db-metrics-report");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return reporter;
+    }
+}
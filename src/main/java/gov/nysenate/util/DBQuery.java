@@ -0,0 +1,395 @@
+package gov.nysenate.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Batched writes and streaming reads against a {@link DB}, for imports and exports that must
+ * run in constant memory. Obtain one from {@link DB#query()}.
+ *
+ * batchUpdate() binds rows from an Iterable as they are needed and sends them in batches,
+ * all within one transaction that is rolled back if any batch fails:
+ *
+ *   long inserted = db.query().batchUpdate("INSERT INTO bill (id, title) VALUES (?, ?)", bills,
+ *       new DBQuery.Binder<Bill>() {
+ *           public void bind(PreparedStatement statement, Bill bill) throws SQLException
+ *           {
+ *               statement.setString(1, bill.getId());
+ *               statement.setString(2, bill.getTitle());
+ *           }
+ *       });
+ *
+ * stream() and forEach() read through a forward-only, read-only cursor with a fetch size, so
+ * only one fetch of rows is held at a time. The Stream reads rows as it is consumed and
+ * returns its connection once it is exhausted or closed; use it in try-with-resources when it
+ * may not be read to the end. Rows must be mapped to values before the next one is read.
+ *
+ * Sizes are read under the DB's prefix, shown with their defaults:
+ *
+ *  prefix.query.batchSize = 500
+ *  prefix.query.fetchSize = 1000
+ *
+ * Reads are made with auto-commit off, which PostgreSQL requires to honour the fetch size.
+ * MySQL only honours it with useCursorFetch=true in the url.
+ */
+public final class DBQuery
+{
+    private static final Logger logger = LoggerFactory.getLogger(DBQuery.class);
+
+    private final DB db;
+    private final ConfigView config;
+
+    DBQuery(DB db, ConfigView config)
+    {
+        this.db = db;
+        this.config = config;
+    }
+
+    /**
+     * Sets the parameters of a statement from one row.
+     *
+     * @param <T> - Type of the rows.
+     */
+    public interface Binder<T>
+    {
+        void bind(PreparedStatement statement, T row) throws SQLException;
+    }
+
+    /**
+     * Maps the current row of a result set to a value. Must not advance the result set.
+     *
+     * @param <T> - Type of the values.
+     */
+    public interface RowMapper<T>
+    {
+        T map(ResultSet results) throws SQLException;
+    }
+
+    /**
+     * Called with each row of a result set. Must not advance the result set.
+     */
+    public interface RowCallback
+    {
+        void processRow(ResultSet results) throws SQLException;
+    }
+
+    /**
+     * Thrown from a Stream when reading the next row fails. getCause() is the SQLException.
+     */
+    public static final class UncheckedSQLException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public UncheckedSQLException(String message, SQLException cause)
+        {
+            super(message, cause);
+        }
+
+        @Override
+        public SQLException getCause()
+        {
+            return (SQLException) super.getCause();
+        }
+    }
+
+    /**
+     * @param sql    - Statement with a parameter for each bound value.
+     * @param rows   - Rows to bind, read as they are sent.
+     * @param binder - Sets the statement parameters from a row.
+     * @return long - Number of rows affected, counting each row the driver did not report on as one.
+     * @throws SQLException if a batch fails, after rolling back every batch sent.
+     */
+    public <T> long batchUpdate(String sql, Iterable<? extends T> rows, Binder<? super T> binder) throws SQLException
+    {
+        return batchUpdate(sql, rows, binder, this.config.getInt("query.batchSize", 500));
+    }
+
+    /**
+     * @param sql       - Statement with a parameter for each bound value.
+     * @param rows      - Rows to bind, read as they are sent.
+     * @param binder    - Sets the statement parameters from a row.
+     * @param batchSize - Number of rows sent to the database at once.
+     * @return long - Number of rows affected, counting each row the driver did not report on as one.
+     * @throws SQLException if a batch fails, after rolling back every batch sent.
+     */
+    public <T> long batchUpdate(String sql, Iterable<? extends T> rows, Binder<? super T> binder, int batchSize)
+        throws SQLException
+    {
+        batchSize = Math.max(1, batchSize);
+        Connection connection = this.db.getConnection();
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            boolean committed = false;
+            Throwable failure = null;
+            connection.setAutoCommit(false);
+            try {
+                long affected = 0;
+                PreparedStatement statement = connection.prepareStatement(sql);
+                try {
+                    int pending = 0;
+                    for (T row : rows) {
+                        binder.bind(statement, row);
+                        statement.addBatch();
+                        if (++pending == batchSize) {
+                            affected += count(statement.executeBatch());
+                            pending = 0;
+                        }
+                    }
+                    if (pending > 0) {
+                        affected += count(statement.executeBatch());
+                    }
+                }
+                finally {
+                    statement.close();
+                }
+                connection.commit();
+                committed = true;
+                return affected;
+            }
+            catch (Throwable e) {
+                failure = e;
+                throw e;
+            }
+            finally {
+                /** Rolls back after any failure, Errors included, since restoring auto-commit
+                 *  would otherwise commit the batches already sent. */
+                if (!committed) {
+                    rollback(connection, failure);
+                }
+                try {
+                    connection.setAutoCommit(autoCommit);
+                }
+                catch (SQLException e) {
+                    /** Reported with the batch failure rather than in place of it. */
+                    if (failure == null) {
+                        throw e;
+                    }
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Calls the callback with each row, holding at most one fetch of rows in memory.
+     *
+     * @param sql        - Query with a parameter for each of params.
+     * @param callback   - Called with each row in turn.
+     * @param params     - Query parameters, set with setObject.
+     * @return long - Number of rows read.
+     * @throws SQLException if the query or the callback fails.
+     */
+    public long forEach(String sql, RowCallback callback, Object... params) throws SQLException
+    {
+        Cursor cursor = open(sql, params);
+        try {
+            long rows = 0;
+            while (cursor.results.next()) {
+                callback.processRow(cursor.results);
+                rows++;
+            }
+            return rows;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Runs the query and returns its rows as a sequential Stream that reads them as it is
+     * consumed. The connection is returned once the Stream is exhausted or closed.
+     *
+     * @param sql    - Query with a parameter for each of params.
+     * @param mapper - Maps each row to a value.
+     * @param params - Query parameters, set with setObject.
+     * @return Stream<T> - Mapped rows. Reading throws UncheckedSQLException if a row cannot be read.
+     * @throws SQLException if the query cannot be run.
+     */
+    public <T> Stream<T> stream(String sql, final RowMapper<T> mapper, Object... params) throws SQLException
+    {
+        final Cursor cursor = open(sql, params);
+        Spliterator<T> rows = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action)
+            {
+                if (cursor.closed) {
+                    return false;
+                }
+                try {
+                    if (!cursor.results.next()) {
+                        cursor.close();
+                        return false;
+                    }
+                    action.accept(mapper.map(cursor.results));
+                    return true;
+                }
+                catch (SQLException e) {
+                    cursor.close();
+                    throw new UncheckedSQLException("Unable to read the next row of " + cursor.sql, e);
+                }
+                catch (RuntimeException e) {
+                    cursor.close();
+                    throw e;
+                }
+            }
+        };
+        return StreamSupport.stream(rows, false).onClose(new Runnable() {
+            @Override
+            public void run()
+            {
+                cursor.close();
+            }
+        });
+    }
+
+    /**
+     * Borrows a connection and runs the query through a forward-only, read-only cursor.
+     */
+    private Cursor open(String sql, Object[] params) throws SQLException
+    {
+        Connection connection = this.db.getConnection();
+        Cursor cursor = null;
+        try {
+            cursor = new Cursor(sql, connection, connection.getAutoCommit());
+            connection.setAutoCommit(false);
+            cursor.statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            cursor.statement.setFetchSize(this.config.getInt("query.fetchSize", 1000));
+            for (int i = 0; i < params.length; i++) {
+                cursor.statement.setObject(i + 1, params[i]);
+            }
+            cursor.results = cursor.statement.executeQuery();
+            return cursor;
+        }
+        catch (SQLException | RuntimeException e) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            else {
+                connection.close();
+            }
+            throw e;
+        }
+    }
+
+    /** Sums the update counts of a batch, counting SUCCESS_NO_INFO as one row. */
+    private static long count(int[] updateCounts)
+    {
+        long affected = 0;
+        for (int updateCount : updateCounts) {
+            affected += (updateCount == Statement.SUCCESS_NO_INFO) ? 1 : Math.max(0, updateCount);
+        }
+        return affected;
+    }
+
+    /**
+     * @param failure - Failure of the batch, which a failure to roll back is added to.
+     */
+    private static void rollback(Connection connection, Throwable failure)
+    {
+        try {
+            connection.rollback();
+        }
+        catch (SQLException e) {
+            logger.warn("Unable to roll back the failed batch", e);
+            if (failure != null) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    /**
+     * The connection, statement and result set of an open query, released together.
+     */
+    private static final class Cursor
+    {
+        final String sql;
+        final Connection connection;
+        final boolean autoCommit;
+        PreparedStatement statement;
+        ResultSet results;
+        volatile boolean closed = false;
+
+        Cursor(String sql, Connection connection, boolean autoCommit)
+        {
+            this.sql = sql;
+            this.connection = connection;
+            this.autoCommit = autoCommit;
+        }
+
+        /**
+         * Ends the read-only transaction and returns the connection. Safe to call twice. Each
+         * step runs even if an earlier one failed, so auto-commit is restored before the
+         * connection goes back to the pool, and the failures are logged together.
+         */
+        synchronized void close()
+        {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            SQLException failure = null;
+            try {
+                if (this.results != null) {
+                    this.results.close();
+                }
+            }
+            catch (SQLException e) {
+                failure = suppress(failure, e);
+            }
+            try {
+                if (this.statement != null) {
+                    this.statement.close();
+                }
+            }
+            catch (SQLException e) {
+                failure = suppress(failure, e);
+            }
+            try {
+                this.connection.rollback();
+            }
+            catch (SQLException e) {
+                failure = suppress(failure, e);
+            }
+            try {
+                this.connection.setAutoCommit(this.autoCommit);
+            }
+            catch (SQLException e) {
+                failure = suppress(failure, e);
+            }
+            try {
+                this.connection.close();
+            }
+            catch (SQLException e) {
+                failure = suppress(failure, e);
+            }
+            if (failure != null) {
+                logger.warn("Unable to release the cursor for " + this.sql, failure);
+            }
+        }
+
+        /** @return SQLException - The first failure, with any later one added to it as suppressed. */
+        private static SQLException suppress(SQLException first, SQLException later)
+        {
+            if (first == null) {
+                return later;
+            }
+            first.addSuppressed(later);
+            return first;
+        }
+    }
+}
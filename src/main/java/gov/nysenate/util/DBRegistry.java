@@ -0,0 +1,481 @@
+package gov.nysenate.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tomcat.jdbc.pool.PoolExhaustedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.nysenate.util.listener.ConfigChangeEvent;
+import gov.nysenate.util.listener.ConfigChangeListener;
+
+
+/**
+ * Builds a primary database and any number of read replicas declared under a common prefix
+ * and routes connections between them. Each database is a {@link DB} configured with the
+ * usual DB keys under its own prefix:
+ *
+ *  prefix.primary.url = jdbc:mysql://primary/database_name
+ *  prefix.replica.1.url = jdbc:mysql://replica-1/database_name
+ *  prefix.replica.2.url = jdbc:mysql://replica-2/database_name
+ *
+ * Replica names are the key segment following "replica." and may be any word. Replicas are
+ * checked in the background by borrowing a connection and calling Connection.isValid():
+ *
+ *  prefix.health.interval = 5s
+ *  prefix.health.timeout = 2s
+ *
+ * getConnection() always borrows from the primary. getReadConnection() borrows a read-only
+ * connection from the healthy replica with the fewest connections currently handed out by
+ * this registry. A replica that fails to provide a connection is ejected until a health
+ * check succeeds, and when no replica can provide one the read is served by the primary.
+ *
+ * Replicas added to or removed from the configuration are picked up on reload. A removed
+ * replica stops receiving reads immediately and is closed once its connections are returned.
+ */
+public class DBRegistry implements ConfigChangeListener
+{
+    private static final Logger logger = LoggerFactory.getLogger(DBRegistry.class);
+
+    private final Config config;
+    private final ConfigView replicaConfig;
+    private final String prefix;
+    private final DB primary;
+
+    /** Replicas in name order, replaced as a whole when the replica names change. */
+    private volatile List<Replica> replicas = Collections.emptyList();
+
+    /** Replicas removed from the configuration that still have connections handed out, closed
+     *  as soon as the last of them is returned. Guarded by this. */
+    private final List<Replica> retired = new ArrayList<Replica>();
+
+    /** Spreads ties between equally loaded replicas. */
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private final ScheduledExecutorService healthChecker;
+    private final int healthTimeoutSeconds;
+
+    /** Registered with Lifecycle until the registry is closed. Its databases register themselves. */
+    private final Lifecycle.Resource resource = new Lifecycle.Resource() {
+        @Override
+        public boolean drain(long timeoutMillis)
+        {
+            stopMonitoring();
+            return true;
+        }
+
+        @Override
+        public void forceClose()
+        {
+            close();
+        }
+    };
+
+    /**
+     * @param config   - Configuration holding the database keys.
+     * @param dbPrefix - Prefix of the primary and replica keys, e.g. "db" for db.primary.* and db.replica.*.
+     */
+    public DBRegistry(Config config, String dbPrefix)
+    {
+        this.config = config;
+        this.replicaConfig = config.subset(dbPrefix + ".replica");
+        this.prefix = dbPrefix;
+        this.primary = new DB(config, dbPrefix + ".primary");
+        ConfigView health = config.subset(dbPrefix + ".health");
+        this.healthTimeoutSeconds = (int) Math.max(1, health.getDuration("timeout", Duration.ofSeconds(2)).getSeconds());
+        updateReplicas();
+        this.replicaConfig.addChangeListener(this);
+
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "db-health-" + prefix);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = health.getDuration("interval", Duration.ofSeconds(5)).toMillis();
+        if (interval > 0) {
+            this.healthChecker.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run()
+                {
+                    checkHealth();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        Lifecycle.register("DBRegistry " + dbPrefix, this.resource);
+    }
+
+    /**
+     * @return DB - The primary database.
+     */
+    public DB getPrimary()
+    {
+        return this.primary;
+    }
+
+    /**
+     * @param name - Replica name, e.g. "1" for prefix.replica.1.
+     * @return DB - The replica database or null if no such replica is configured.
+     */
+    public DB getReplica(String name)
+    {
+        for (Replica replica : this.replicas) {
+            if (replica.name.equals(name)) {
+                return replica.db;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Map<String, Boolean> - Health of each configured replica by name.
+     */
+    public Map<String, Boolean> getReplicaHealth()
+    {
+        Map<String, Boolean> health = new LinkedHashMap<String, Boolean>();
+        for (Replica replica : this.replicas) {
+            health.put(replica.name, replica.healthy);
+        }
+        return Collections.unmodifiableMap(health);
+    }
+
+    /**
+     * Warms up the primary and each healthy replica, see {@link DB#warmUp()}. A replica that
+     * fails is ejected until the health check finds it healthy again.
+     *
+     * @throws SQLException if the primary cannot be warmed up.
+     */
+    public void warmUp() throws SQLException
+    {
+        this.primary.warmUp();
+        for (Replica replica : this.replicas) {
+            if (!replica.healthy) {
+                continue;
+            }
+            try {
+                replica.db.warmUp();
+            }
+            catch (SQLException e) {
+                logger.warn("Replica " + replica.name + " of " + this.prefix + " failed to warm up, ejecting it.", e);
+                replica.healthy = false;
+            }
+        }
+    }
+
+    /**
+     * @return Connection - A connection borrowed from the primary. Close it to return it.
+     * @throws SQLException if no connection could be obtained.
+     */
+    public Connection getConnection() throws SQLException
+    {
+        return this.primary.getConnection();
+    }
+
+    /**
+     * @return Connection - A read-only connection borrowed from the least loaded healthy replica,
+     *                      or from the primary if none can provide one. Close it to return it.
+     * @throws SQLException if no connection could be obtained from the primary either.
+     */
+    public Connection getReadConnection() throws SQLException
+    {
+        List<Replica> candidates = this.replicas;
+        int count = candidates.size();
+        boolean[] tried = new boolean[count];
+        for (int attempt = 0; attempt < count; attempt++) {
+            Replica replica = leastLoaded(candidates, tried);
+            if (replica == null) {
+                break;
+            }
+            tried[candidates.indexOf(replica)] = true;
+            Connection connection = borrow(replica);
+            if (connection != null) {
+                return connection;
+            }
+        }
+
+        Connection connection = this.primary.getConnection();
+        try {
+            connection.setReadOnly(true);
+        }
+        catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return wrap(connection, null);
+    }
+
+    /**
+     * Called on the configuration dispatch thread when a prefix.replica.* value changes.
+     * Changes within a replica are handled by its DB; only added and removed replicas matter here.
+     */
+    @Override
+    public void configChanged(ConfigChangeEvent event)
+    {
+        updateReplicas();
+    }
+
+    /**
+     * Stops the health checks and following configuration changes, then closes every database.
+     */
+    public synchronized void close()
+    {
+        stopMonitoring();
+        for (Replica replica : this.replicas) {
+            replica.db.close();
+        }
+        for (Replica replica : this.retired) {
+            replica.db.close();
+        }
+        this.replicas = Collections.emptyList();
+        this.retired.clear();
+        this.primary.close();
+    }
+
+    /**
+     * Stops the health checks and following configuration changes, leaving the databases open.
+     */
+    private void stopMonitoring()
+    {
+        Lifecycle.unregister(this.resource);
+        this.replicaConfig.removeChangeListener(this);
+        this.healthChecker.shutdownNow();
+    }
+
+    /**
+     * Checks every replica, re-admitting ejected replicas that respond and ejecting those
+     * that do not.
+     */
+    void checkHealth()
+    {
+        for (Replica replica : this.replicas) {
+            boolean healthy;
+            try {
+                Connection connection = replica.db.getConnection();
+                try {
+                    healthy = connection.isValid(this.healthTimeoutSeconds);
+                }
+                finally {
+                    connection.close();
+                }
+            }
+            catch (SQLException e) {
+                logger.debug("Health check failed for replica " + replica.name + " of " + this.prefix + ": " + e.getMessage());
+                healthy = false;
+            }
+            if (healthy && !replica.healthy) {
+                logger.info("Replica " + replica.name + " of " + this.prefix + " is healthy again.");
+            }
+            else if (!healthy && replica.healthy) {
+                logger.warn("Replica " + replica.name + " of " + this.prefix + " failed its health check, ejecting it.");
+            }
+            replica.healthy = healthy;
+        }
+    }
+
+    /**
+     * Picks the untried healthy replica with the fewest outstanding connections, starting
+     * from a rotating position so that ties are spread across replicas.
+     */
+    private Replica leastLoaded(List<Replica> candidates, boolean[] tried)
+    {
+        int count = candidates.size();
+        int start = (count > 0) ? (this.nextReplica.getAndIncrement() & Integer.MAX_VALUE) % count : 0;
+        Replica best = null;
+        for (int i = 0; i < count; i++) {
+            int index = (start + i) % count;
+            Replica replica = candidates.get(index);
+            if (!tried[index] && replica.healthy && (best == null || replica.outstanding.get() < best.outstanding.get())) {
+                best = replica;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return Connection - A read-only connection from the replica or null if it could not provide one.
+     */
+    private Connection borrow(Replica replica)
+    {
+        replica.outstanding.incrementAndGet();
+        Connection connection = null;
+        try {
+            connection = replica.db.getConnection();
+            connection.setReadOnly(true);
+            return wrap(connection, replica);
+        }
+        catch (PoolExhaustedException e) {
+            /** A busy replica is not an unhealthy one, try the next without ejecting it. */
+            logger.debug("Replica " + replica.name + " of " + this.prefix + " has no free connections.");
+        }
+        catch (SQLException e) {
+            logger.warn("Replica " + replica.name + " of " + this.prefix + " could not provide a connection, ejecting it.", e);
+            replica.healthy = false;
+        }
+        release(replica);
+        if (connection != null) {
+            try {
+                connection.close();
+            }
+            catch (SQLException e) {
+                logger.debug("Unable to return a connection to replica " + replica.name + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wraps a read connection so that closing it releases its replica's outstanding count,
+     * or for the primary resets the read-only flag before the connection is returned.
+     */
+    private Connection wrap(Connection connection, Replica replica)
+    {
+        return (Connection) Proxy.newProxyInstance(DBRegistry.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, new ReadConnection(connection, replica));
+    }
+
+    /**
+     * Releases a replica's outstanding count, closing the replica if it was removed from the
+     * configuration and this was its last connection.
+     */
+    private void release(Replica replica)
+    {
+        if (replica.outstanding.decrementAndGet() == 0 && replica.retired) {
+            closeRetired();
+        }
+    }
+
+    /**
+     * Builds replicas for newly configured names and retires replicas whose keys were removed.
+     */
+    private synchronized void updateReplicas()
+    {
+        Set<String> names = new TreeSet<String>();
+        for (String key : this.replicaConfig.getKeys()) {
+            int end = key.indexOf('.');
+            if (end > 0) {
+                names.add(key.substring(0, end));
+            }
+        }
+
+        List<Replica> updated = new ArrayList<Replica>();
+        for (String name : names) {
+            Replica existing = null;
+            for (Replica replica : this.replicas) {
+                if (replica.name.equals(name)) {
+                    existing = replica;
+                }
+            }
+            if (existing == null) {
+                logger.info("Adding replica " + name + " to " + this.prefix);
+                existing = new Replica(name, new DB(this.config, this.replicaConfig.fullKey(name)));
+            }
+            updated.add(existing);
+        }
+        for (Replica replica : this.replicas) {
+            if (!names.contains(replica.name)) {
+                logger.info("Removing replica " + replica.name + " from " + this.prefix);
+                replica.retired = true;
+                this.retired.add(replica);
+            }
+        }
+        this.replicas = Collections.unmodifiableList(updated);
+        closeRetired();
+    }
+
+    private synchronized void closeRetired()
+    {
+        for (Replica replica : new ArrayList<Replica>(this.retired)) {
+            if (replica.outstanding.get() == 0) {
+                replica.db.close();
+                this.retired.remove(replica);
+            }
+        }
+    }
+
+    private static final class Replica
+    {
+        final String name;
+        final DB db;
+        final AtomicInteger outstanding = new AtomicInteger();
+        volatile boolean healthy = true;
+        volatile boolean retired = false;
+
+        Replica(String name, DB db)
+        {
+            this.name = name;
+            this.db = db;
+        }
+    }
+
+    /** Connection proxy for connections handed out by getReadConnection(). */
+    private final class ReadConnection implements InvocationHandler
+    {
+        private final Connection connection;
+        private final Replica replica;
+        private boolean closed = false;
+
+        ReadConnection(Connection connection, Replica replica)
+        {
+            this.connection = connection;
+            this.replica = replica;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (method.getName().equals("close")) {
+                if (this.closed) {
+                    return null;
+                }
+                this.closed = true;
+                try {
+                    if (this.replica == null) {
+                        this.connection.setReadOnly(false);
+                    }
+                }
+                finally {
+                    try {
+                        this.connection.close();
+                    }
+                    finally {
+                        /** After the connection is back in the pool, so a retired replica can close. */
+                        if (this.replica != null) {
+                            release(this.replica);
+                        }
+                    }
+                }
+                return null;
+            }
+            if (method.getName().equals("isClosed") && this.closed) {
+                return true;
+            }
+            try {
+                return method.invoke(this.connection, args);
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package gov.nysenate.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A lock-free latency histogram with log-linear buckets. Each power of two is split into
+ * eight buckets, so reported percentiles are within 12.5% of the recorded values while
+ * the whole range of a long fits in under 500 counters. Recording a value is a handful of
+ * atomic increments and never allocates.
+ *
+ * Values are recorded in nanoseconds. Reads are not synchronized with concurrent writes,
+ * so a percentile may not reflect values recorded while it is being computed.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos - Latency to record, negative values are recorded as zero.
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        this.counts.incrementAndGet(bucketOf(nanos));
+        this.count.increment();
+        this.total.add(nanos);
+        long current;
+        while (nanos > (current = this.max.get()) && !this.max.compareAndSet(current, nanos)) {}
+    }
+
+    /**
+     * @return long - Number of values recorded.
+     */
+    public long getCount()
+    {
+        return this.count.sum();
+    }
+
+    /**
+     * @return long - Mean of the recorded values in nanoseconds, 0 if none were recorded.
+     */
+    public long getMean()
+    {
+        long n = this.count.sum();
+        return (n > 0) ? this.total.sum() / n : 0;
+    }
+
+    /**
+     * @return long - Largest recorded value in nanoseconds.
+     */
+    public long getMax()
+    {
+        return this.max.get();
+    }
+
+    /**
+     * @param percentile - Percentile between 0 and 100, e.g. 99.9
+     * @return long - Upper bound in nanoseconds of the bucket holding the percentile, 0 if
+     *                no values were recorded.
+     */
+    public long getPercentile(double percentile)
+    {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return String - Count, mean, median, 99th percentile and max in milliseconds.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", getCount(),
+            millis(getMean()), millis(getPercentile(50)), millis(getPercentile(99)), millis(getMax()));
+    }
+
+    static int bucketOf(long nanos)
+    {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long upper = (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+        return (upper > 0) ? upper - 1 : Long.MAX_VALUE;
+    }
+
+    private static double millis(long nanos)
+    {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,262 @@
+package gov.nysenate.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Registry of the open Configs, DBs, DBRegistries and Mailers, so that undeploying an
+ * application releases their threads and connections even when the application does not
+ * close them itself. Each of them registers when it is created and unregisters when it is
+ * closed.
+ *
+ * shutdownAll(), which NYSenateContextListener calls when the context is destroyed, shuts
+ * the registered resources down in three steps:
+ *
+ *   1. Every resource stops accepting work and drains what is in progress, all in parallel,
+ *      until the deadline.
+ *   2. Resources that did not finish draining by the deadline are closed immediately.
+ *   3. The threads shared between resources are stopped, and any library thread still alive
+ *      is reported as leaked.
+ */
+public final class Lifecycle
+{
+    private static final Logger logger = LoggerFactory.getLogger(Lifecycle.class);
+
+    /** Name prefixes of the threads this library starts, used to find leaked threads. */
+    private static final String[] THREAD_PREFIXES = {
+        "config-watcher-", "config-change-dispatch", "db-", "mail-", "lifecycle-shutdown-"
+    };
+
+    /** How long stopped threads are given to exit before they are reported as leaked. */
+    private static final long THREAD_EXIT_MILLIS = 1000;
+
+    /** Registered resources in registration order. Guarded by the map. */
+    private static final Map<Resource, String> registered = new LinkedHashMap<Resource, String>();
+
+    private Lifecycle() {}
+
+    /**
+     * Something holding threads or connections that must be released on undeploy.
+     */
+    public interface Resource
+    {
+        /**
+         * Stops accepting new work and waits for the work in progress to finish.
+         *
+         * @param timeoutMillis - Longest time to wait.
+         * @return boolean - True if everything finished and the resource is closed.
+         */
+        boolean drain(long timeoutMillis);
+
+        /**
+         * Closes the resource immediately, abandoning any work still in progress.
+         */
+        void forceClose();
+    }
+
+    /**
+     * @param name     - Name used in the shutdown report, e.g. "DB db".
+     * @param resource - Resource to shut down with shutdownAll().
+     */
+    public static void register(String name, Resource resource)
+    {
+        synchronized (registered) {
+            registered.put(resource, name);
+        }
+    }
+
+    /**
+     * @param resource - Resource that has been closed and no longer needs shutting down.
+     */
+    public static void unregister(Resource resource)
+    {
+        synchronized (registered) {
+            registered.remove(resource);
+        }
+    }
+
+    /**
+     * @return List<String> - Names of the registered resources in registration order.
+     */
+    public static List<String> getRegistered()
+    {
+        synchronized (registered) {
+            return Collections.unmodifiableList(new ArrayList<String>(registered.values()));
+        }
+    }
+
+    /**
+     * Drains every registered resource in parallel, force closes those that miss the deadline,
+     * and stops the shared threads. Resources registered while this runs are not included.
+     *
+     * @param timeout - Time allowed for draining.
+     * @return Report - What was drained, what had to be forced closed and what leaked.
+     */
+    public static Report shutdownAll(Duration timeout)
+    {
+        Map<Resource, String> resources;
+        synchronized (registered) {
+            resources = new LinkedHashMap<Resource, String>(registered);
+            registered.clear();
+        }
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        Report report = new Report();
+
+        if (!resources.isEmpty()) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(resources.size(), 8), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "lifecycle-shutdown-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            Map<Resource, Future<Boolean>> drains = new LinkedHashMap<Resource, Future<Boolean>>();
+            for (final Resource resource : resources.keySet()) {
+                drains.put(resource, executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call()
+                    {
+                        return resource.drain(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                    }
+                }));
+            }
+            executor.shutdown();
+
+            for (Map.Entry<Resource, Future<Boolean>> drain : drains.entrySet()) {
+                String name = resources.get(drain.getKey());
+                String problem;
+                try {
+                    if (drain.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                        report.drained.add(name);
+                        continue;
+                    }
+                    problem = "not drained";
+                }
+                catch (TimeoutException e) {
+                    problem = "drain timed out";
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    problem = "interrupted";
+                }
+                catch (Exception e) {
+                    logger.warn("Unable to drain " + name, e);
+                    problem = String.valueOf(e.getCause());
+                }
+                try {
+                    drain.getKey().forceClose();
+                }
+                catch (RuntimeException e) {
+                    logger.warn("Unable to close " + name, e);
+                    problem += ", close failed: " + e;
+                }
+                report.forced.put(name, problem);
+            }
+            executor.shutdownNow();
+        }
+
+        MailQueue.shutdownRetryTimer();
+        TransportPool.shutdownEvictor();
+        DBMetrics.shutdownReporter();
+        report.leakedThreads.addAll(liveThreads());
+
+        if (report.forced.isEmpty() && report.leakedThreads.isEmpty()) {
+            logger.info(report.toString());
+        }
+        else {
+            logger.warn(report.toString());
+        }
+        return report;
+    }
+
+    /**
+     * @return List<String> - Names of this library's threads, other than the current one,
+     *                        still alive after giving them time to exit.
+     */
+    private static List<String> liveThreads()
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(THREAD_EXIT_MILLIS);
+        while (true) {
+            List<String> live = new ArrayList<String>();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread != Thread.currentThread() && thread.isAlive() && isLibraryThread(thread.getName())) {
+                    live.add(thread.getName());
+                }
+            }
+            if (live.isEmpty() || System.nanoTime() - deadline >= 0) {
+                Collections.sort(live);
+                return live;
+            }
+            try {
+                Thread.sleep(20);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return live;
+            }
+        }
+    }
+
+    private static boolean isLibraryThread(String name)
+    {
+        for (String prefix : THREAD_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Outcome of shutdownAll().
+     */
+    public static final class Report
+    {
+        private final List<String> drained = new ArrayList<String>();
+        private final Map<String, String> forced = new LinkedHashMap<String, String>();
+        private final List<String> leakedThreads = new ArrayList<String>();
+
+        /** @return List<String> - Resources that drained and closed within the deadline. */
+        public List<String> getDrained()
+        {
+            return Collections.unmodifiableList(this.drained);
+        }
+
+        /** @return Map<String, String> - Resources that had to be force closed, with the reason. */
+        public Map<String, String> getForced()
+        {
+            return Collections.unmodifiableMap(this.forced);
+        }
+
+        /** @return List<String> - Library threads still alive after shutdown. */
+        public List<String> getLeakedThreads()
+        {
+            return Collections.unmodifiableList(this.leakedThreads);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Shutdown drained " + this.drained + ", forced " + this.forced + ", leaked threads " + this.leakedThreads;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package gov.nysenate.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Bounded queue of outgoing messages drained by a few worker threads, behind
+ * Mailer.sendMailAsync(). Each worker takes up to batchSize queued messages at a time and
+ * sends them one after another over a single pooled SMTP connection.
+ *
+ * Messages the server rejects with a transient 4xx reply, or that fail because the server
+ * could not be reached, are retried with exponential backoff up to maxAttempts times.
+ * Permanent 5xx rejections fail immediately. The future returned for each message completes
+ * once the message has been accepted by the server or has finally failed.
+ *
+ * With a {@link MailSpool} every message is written to disk before it is queued and marked
+ * done once it has been delivered or has permanently failed, so that messages still queued
+ * when the JVM stops are sent after the next start.
+ *
+ * Queues are drained when the Mailer is closed, including by
+ * {@link Lifecycle#shutdownAll(java.time.Duration)} when the context is destroyed.
+ */
+public final class MailQueue
+{
+    private static final Logger logger = LoggerFactory.getLogger(MailQueue.class);
+
+    /** What sendMailAsync() does when the queue is full, see prefix.queue.overflow. */
+    public enum Overflow
+    {
+        /** Wait up to the offer timeout for space, then fail as FAIL does. */
+        BLOCK,
+        /** Discard the message with a warning. The returned future fails, the caller is not interrupted. */
+        DROP,
+        /** Throw RejectedExecutionException to the caller. */
+        FAIL
+    }
+
+    /** Shared thread that puts messages back on their queue once their retry backoff has passed. */
+    private static ScheduledExecutorService retryTimer;
+
+    private volatile TransportPool transports;
+    private final String name;
+    private final ArrayBlockingQueue<QueuedMessage> queue;
+    private final int workerCount;
+    private final int batchSize;
+    private final Overflow overflow;
+    private final long offerTimeoutMillis;
+    private final int maxAttempts;
+    private final long retryBackoffMillis;
+    private final long maxRetryBackoffMillis;
+    private final long drainTimeoutMillis;
+    private final MailSpool spool;
+
+    /** Messages accepted and not yet sent or failed, including those waiting to be retried. */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Set<QueuedMessage> retrying = ConcurrentHashMap.<QueuedMessage>newKeySet();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /** Worker threads, started with the first message. Guarded by this. */
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private volatile boolean closed = false;
+
+    MailQueue(TransportPool transports, String name, int capacity, int workerCount, int batchSize, Overflow overflow,
+              long offerTimeoutMillis, int maxAttempts, long retryBackoffMillis, long maxRetryBackoffMillis, long drainTimeoutMillis,
+              MailSpool spool)
+    {
+        this.transports = transports;
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<QueuedMessage>(Math.max(1, capacity));
+        this.workerCount = Math.max(1, workerCount);
+        this.batchSize = Math.max(1, batchSize);
+        this.overflow = overflow;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.spool = spool;
+    }
+
+    /**
+     * @param message - Message with its recipients set.
+     * @return CompletableFuture<Void> - Completes when the message has been sent, or exceptionally
+     *                                   with the last failure once it will not be retried.
+     * @throws RejectedExecutionException if the queue is full and the overflow policy is FAIL or BLOCK
+     *                                    timed out, or the queue has been closed.
+     */
+    CompletableFuture<Void> submit(Message message)
+    {
+        if (this.closed) {
+            throw new RejectedExecutionException("Mail queue for " + this.name + " is closed");
+        }
+        startWorkers();
+
+        QueuedMessage queued = new QueuedMessage(message);
+        try {
+            /** Gives the message the Message-ID that the spooled copy and every attempt keep. */
+            TransportPool.saveChanges(message);
+        }
+        catch (MessagingException e) {
+            queued.future.completeExceptionally(e);
+            return queued.future;
+        }
+        if (this.spool != null) {
+            try {
+                queued.spoolId = this.spool.append(toBytes(message));
+            }
+            catch (IOException e) {
+                queued.future.completeExceptionally(new MessagingException("Unable to spool message for " + this.name, e));
+                return queued.future;
+            }
+            catch (MessagingException e) {
+                queued.future.completeExceptionally(e);
+                return queued.future;
+            }
+        }
+        this.outstanding.incrementAndGet();
+        boolean accepted;
+        try {
+            if (this.overflow == Overflow.BLOCK) {
+                accepted = this.queue.offer(queued, this.offerTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            else {
+                accepted = this.queue.offer(queued);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        }
+        if (accepted) {
+            if (this.closed && this.queue.remove(queued)) {
+                fail(queued, new MessagingException("Mail queue for " + this.name + " is closed"), true);
+            }
+            return queued.future;
+        }
+
+        this.outstanding.decrementAndGet();
+        if (queued.spoolId > 0) {
+            this.spool.done(queued.spoolId);
+        }
+        RejectedExecutionException rejected = new RejectedExecutionException(
+            "Mail queue for " + this.name + " is full (" + this.queue.size() + " messages)");
+        if (this.overflow == Overflow.DROP) {
+            this.dropped.increment();
+            logger.warn("Dropping message, " + rejected.getMessage());
+            queued.future.completeExceptionally(rejected);
+            return queued.future;
+        }
+        throw rejected;
+    }
+
+    /**
+     * Queues the messages recovered from the spool on a background thread, ignoring the
+     * overflow policy. Recovered messages have no caller waiting on them.
+     *
+     * @param session - Session to read the spooled messages with.
+     */
+    void replaySpooled(final Session session)
+    {
+        if (this.spool == null) {
+            return;
+        }
+        final List<MailSpool.SpooledMessage> recovered = this.spool.takeRecovered();
+        if (recovered.isEmpty()) {
+            return;
+        }
+        startWorkers();
+        Thread replay = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                for (MailSpool.SpooledMessage spooled : recovered) {
+                    QueuedMessage queued;
+                    try {
+                        queued = new QueuedMessage(new MimeMessage(session, new ByteArrayInputStream(spooled.payload)));
+                    }
+                    catch (MessagingException e) {
+                        logger.error("Discarding unreadable spooled message " + spooled.id + " for " + name, e);
+                        spool.done(spooled.id);
+                        continue;
+                    }
+                    queued.spoolId = spooled.id;
+                    outstanding.incrementAndGet();
+                    try {
+                        while (!closed && !queue.offer(queued, 100, TimeUnit.MILLISECONDS)) {}
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (closed && !queue.remove(queued)) {
+                        outstanding.decrementAndGet();
+                        return;
+                    }
+                }
+                logger.info("Queued " + recovered.size() + " spooled messages for " + name);
+            }
+        }, "mail-spool-replay-" + this.name);
+        replay.setDaemon(true);
+        replay.start();
+    }
+
+    /**
+     * @param transports - Pool to send the following batches over, after a configuration change.
+     */
+    void setTransports(TransportPool transports)
+    {
+        this.transports = transports;
+    }
+
+    /** @return int - Messages waiting to be sent, not counting those waiting to be retried. */
+    public int size()
+    {
+        return this.queue.size();
+    }
+
+    /** @return long - Messages sent since the queue was created. */
+    public long getSentCount()
+    {
+        return this.sent.sum();
+    }
+
+    /** @return long - Messages that failed after their last attempt. */
+    public long getFailedCount()
+    {
+        return this.failed.sum();
+    }
+
+    /** @return long - Messages discarded because the queue was full. */
+    public long getDroppedCount()
+    {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Stops accepting messages and waits up to the drain timeout for the queued ones, including
+     * any waiting to be retried, to be sent. Messages still unsent after that are failed, and
+     * stay in the spool if there is one to be sent after the next start.
+     *
+     * @return boolean - True if every message was sent or finally failed before the timeout.
+     */
+    boolean close()
+    {
+        return close(this.drainTimeoutMillis);
+    }
+
+    /**
+     * Same as close() with a different time to wait for the queued messages.
+     *
+     * @param timeoutMillis - Longest time to wait, 0 to fail the queued messages at once.
+     * @return boolean - True if every message was sent or finally failed before the timeout.
+     */
+    boolean close(long timeoutMillis)
+    {
+        this.closed = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (this.outstanding.get() > 0 && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean drained = this.outstanding.get() == 0;
+
+        List<Thread> stopping;
+        synchronized (this) {
+            stopping = new ArrayList<Thread>(this.workers);
+        }
+        for (Thread worker : stopping) {
+            worker.interrupt();
+        }
+        /** A worker still sending marks its messages done in the spool, which must stay open for it. */
+        try {
+            for (Thread worker : stopping) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    break;
+                }
+                worker.join(remainingMillis);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<QueuedMessage> remaining = new ArrayList<QueuedMessage>();
+        this.queue.drainTo(remaining);
+        remaining.addAll(this.retrying);
+        for (QueuedMessage queued : remaining) {
+            if (queued.retry != null) {
+                queued.retry.cancel(false);
+            }
+            fail(queued, new MessagingException("Mail queue for " + this.name + " closed before the message was sent", queued.lastFailure), true);
+        }
+        if (!drained) {
+            logger.warn("Mail queue for " + this.name + " closed with " + remaining.size() + " unsent messages"
+                + ((this.spool != null) ? ", they remain spooled." : "."));
+        }
+        if (this.spool != null) {
+            this.spool.close();
+        }
+        return drained;
+    }
+
+    private synchronized void startWorkers()
+    {
+        if (!this.workers.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < this.workerCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    work();
+                }
+            }, "mail-queue-" + this.name + "-" + (i + 1));
+            worker.setDaemon(true);
+            this.workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /** Takes batches off the queue and sends each over one connection until the worker is interrupted by close(). */
+    private void work()
+    {
+        List<QueuedMessage> batch = new ArrayList<QueuedMessage>(this.batchSize);
+        List<Message> messages = new ArrayList<Message>(this.batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch, this.batchSize - 1);
+                for (QueuedMessage queued : batch) {
+                    messages.add(queued.message);
+                }
+
+                MessagingException[] failures = this.transports.sendAll(messages);
+                for (int i = 0; i < failures.length; i++) {
+                    QueuedMessage queued = batch.get(i);
+                    if (failures[i] == null) {
+                        if (queued.finished.compareAndSet(false, true)) {
+                            if (queued.spoolId > 0) {
+                                this.spool.done(queued.spoolId);
+                            }
+                            this.sent.increment();
+                            this.outstanding.decrementAndGet();
+                            queued.future.complete(null);
+                        }
+                    }
+                    else {
+                        failed(queued, failures[i]);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e) {
+                logger.error("Unexpected failure sending mail for " + this.name, e);
+                for (QueuedMessage queued : batch) {
+                    if (!queued.finished.get()) {
+                        fail(queued, new MessagingException("Unexpected failure sending mail", e), true);
+                    }
+                }
+            }
+            finally {
+                batch.clear();
+                messages.clear();
+            }
+        }
+    }
+
+    /** Schedules a retry for transient failures, otherwise fails the message. */
+    private void failed(final QueuedMessage queued, MessagingException failure)
+    {
+        queued.lastFailure = failure;
+        queued.attempts++;
+        boolean retry = queued.attempts < this.maxAttempts && isTransient(failure);
+        if (this.closed || !retry) {
+            logger.warn("Unable to send mail for " + this.name + " after " + queued.attempts + " attempts: " + failure.getMessage());
+            fail(queued, failure, retry);
+            return;
+        }
+        long backoff = Math.min(this.maxRetryBackoffMillis, this.retryBackoffMillis << Math.min(queued.attempts - 1, 30));
+        logger.debug("Retrying mail for " + this.name + " in " + backoff + "ms: " + failure.getMessage());
+        scheduleRetry(queued, backoff);
+    }
+
+    private void scheduleRetry(final QueuedMessage queued, final long delayMillis)
+    {
+        this.retrying.add(queued);
+        queued.retry = retryTimer().schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+                if (closed || !retrying.remove(queued)) {
+                    return;
+                }
+                /** Retries skip the overflow policy, waiting another backoff if the queue is full. */
+                if (!queue.offer(queued)) {
+                    scheduleRetry(queued, delayMillis);
+                }
+                else if (closed && queue.remove(queued)) {
+                    fail(queued, queued.lastFailure, true);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param keepSpooled - True to leave the message in the spool to be sent after the next start,
+     *                      false if it will never be sent.
+     */
+    private void fail(QueuedMessage queued, MessagingException failure, boolean keepSpooled)
+    {
+        this.retrying.remove(queued);
+        if (queued.finished.compareAndSet(false, true)) {
+            if (queued.spoolId > 0 && !keepSpooled) {
+                this.spool.done(queued.spoolId);
+            }
+            /** Counted before completing so that callers waiting on the future see the count. */
+            this.failed.increment();
+            this.outstanding.decrementAndGet();
+            queued.future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * @return boolean - True for 4xx SMTP replies and for failures without an SMTP reply, such
+     *                   as a server that could not be reached.
+     */
+    static boolean isTransient(MessagingException failure)
+    {
+        int code = TransportPool.replyCode(failure);
+        return (code == -1) || (code >= 400 && code < 500);
+    }
+
+    private static byte[] toBytes(Message message) throws MessagingException, IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Stops the shared retry timer thread. It is started again if it is needed after this.
+     */
+    static synchronized void shutdownRetryTimer()
+    {
+        if (retryTimer != null) {
+            retryTimer.shutdownNow();
+            retryTimer = null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService retryTimer()
+    {
+        if (retryTimer == null) {
+            retryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "mail-queue-retry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return retryTimer;
+    }
+
+    private static final class QueuedMessage
+    {
+        final Message message;
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        int attempts = 0;
+        MessagingException lastFailure;
+        volatile ScheduledFuture<?> retry;
+        long spoolId = 0;
+
+        QueuedMessage(Message message)
+        {
+            this.message = message;
+        }
+    }
+}
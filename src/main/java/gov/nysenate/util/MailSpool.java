@@ -0,0 +1,562 @@
+package gov.nysenate.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Append-only journal of queued messages, so that mail accepted by sendMailAsync() survives
+ * a restart or an unreachable relay. The journal is a series of segment files in one
+ * directory, each a sequence of records:
+ *
+ *   int length, int crc32, byte type, long id, byte[] payload
+ *
+ * An ENQUEUE record holds a message in MIME format and a DONE record marks the message with
+ * the same id as delivered, or as permanently failed. Only the newest segment is written to;
+ * a new one is started once it reaches the segment size.
+ *
+ * append() returns once the record has been forced to disk. Concurrent appends share one
+ * force (group commit): whichever caller forces first also covers every record written
+ * before it started, and the others only wait for it. DONE records are not forced, a crash
+ * right after a delivery may at worst send that message again.
+ *
+ * Segments are deleted oldest first once every message in them is done. When more than
+ * maxSealedSegments older segments are kept alive by a few undelivered messages, those
+ * messages are copied into the newest segment so the oldest can be deleted (compaction).
+ *
+ * On startup the segments are read back in order, a torn record at the end of a segment
+ * left by a crash is truncated away, and the messages without a DONE record are returned
+ * by takeRecovered() to be queued again.
+ */
+final class MailSpool
+{
+    private static final Logger logger = LoggerFactory.getLogger(MailSpool.class);
+
+    private static final byte ENQUEUE = 1;
+    private static final byte DONE = 2;
+    private static final int HEADER_BYTES = 4 + 4;
+    private static final int BODY_HEADER_BYTES = 1 + 8;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final long segmentBytes;
+    private final int maxSealedSegments;
+
+    /** Guards the segments, the current channel and the record locations. */
+    private final Object lock = new Object();
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<Long, Location> locations = new HashMap<Long, Location>();
+    private Segment current;
+    private long nextId = 1;
+    private boolean compacting = false;
+
+    /** Records written and records known to be on disk, for group commit. Guarded by syncLock. */
+    private final Object syncLock = new Object();
+    private long writtenSeq = 0;
+    private long durableSeq = 0;
+    private boolean syncing = false;
+
+    private List<SpooledMessage> recovered;
+    private boolean closed = false;
+
+    /**
+     * @param directory         - Directory holding the segments, created if missing. Use one per Mailer.
+     * @param segmentBytes      - Size after which a new segment is started.
+     * @param maxSealedSegments - Older segments kept before their undelivered messages are compacted.
+     * @throws IOException if the directory or its segments cannot be read.
+     */
+    MailSpool(File directory, long segmentBytes, int maxSealedSegments) throws IOException
+    {
+        this.directory = directory;
+        this.segmentBytes = Math.max(1024, segmentBytes);
+        this.maxSealedSegments = Math.max(1, maxSealedSegments);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create mail spool directory " + directory);
+        }
+        synchronized (this.lock) {
+            this.recovered = recover();
+            startSegment();
+            deleteFinishedSegments();
+        }
+        if (!this.recovered.isEmpty()) {
+            logger.info("Recovered " + this.recovered.size() + " undelivered messages from " + directory);
+        }
+    }
+
+    /**
+     * @return List<SpooledMessage> - Messages found undelivered on startup, in the order they
+     *                                were appended. Returned once, later calls return an empty list.
+     */
+    List<SpooledMessage> takeRecovered()
+    {
+        synchronized (this.lock) {
+            List<SpooledMessage> messages = this.recovered;
+            this.recovered = new ArrayList<SpooledMessage>();
+            return messages;
+        }
+    }
+
+    /**
+     * Appends a message and waits until it, and any record appended before it, is on disk.
+     *
+     * @param payload - Message in MIME format.
+     * @return long - Id of the record, to pass to done() once the message is delivered.
+     * @throws IOException if the record could not be written or forced to disk.
+     */
+    long append(byte[] payload) throws IOException
+    {
+        long id;
+        long seq;
+        synchronized (this.lock) {
+            id = this.nextId++;
+            seq = write(ENQUEUE, id, payload, 0, payload.length);
+        }
+        awaitDurable(seq);
+        return id;
+    }
+
+    /**
+     * Marks a message as delivered or permanently failed so it is not recovered again, and
+     * deletes or compacts the segments that no longer hold undelivered messages.
+     *
+     * @param id - Id returned by append().
+     */
+    void done(long id)
+    {
+        synchronized (this.lock) {
+            Location location = this.locations.remove(id);
+            if (location == null || this.closed) {
+                return;
+            }
+            location.segment.live--;
+            try {
+                write(DONE, id, null, 0, 0);
+            }
+            catch (IOException e) {
+                logger.warn("Unable to record delivery of spooled message " + id + ", it may be sent again after a restart.", e);
+            }
+            deleteFinishedSegments();
+        }
+    }
+
+    /** @return int - Messages appended and not yet done, including recovered ones. */
+    int getPendingCount()
+    {
+        synchronized (this.lock) {
+            return this.locations.size();
+        }
+    }
+
+    /**
+     * Forces and closes the current segment. Undelivered messages stay in the spool.
+     */
+    void close()
+    {
+        synchronized (this.lock) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                this.current.channel.force(false);
+                this.current.channel.close();
+            }
+            catch (IOException e) {
+                logger.warn("Unable to close mail spool segment " + this.current.file, e);
+            }
+        }
+    }
+
+    /**
+     * Writes a record to the current segment, starting a new segment first if it is full.
+     * Called with the lock held.
+     *
+     * @return long - Sequence number of the record for awaitDurable().
+     */
+    private long write(byte type, long id, byte[] payload, int offset, int length) throws IOException
+    {
+        if (this.closed) {
+            throw new ClosedChannelException();
+        }
+        if (this.current.size >= this.segmentBytes && !this.compacting) {
+            rollSegment();
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + BODY_HEADER_BYTES + length);
+        record.putInt(BODY_HEADER_BYTES + length);
+        record.putInt(0);
+        record.put(type);
+        record.putLong(id);
+        if (length > 0) {
+            record.put(payload, offset, length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_BYTES, BODY_HEADER_BYTES + length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        long position = this.current.size;
+        try {
+            FileChannel channel = openChannel();
+            while (record.hasRemaining()) {
+                channel.write(record, position + record.position());
+            }
+        }
+        catch (IOException e) {
+            /** Drop whatever part of the record made it into the file. */
+            truncateCurrent();
+            throw e;
+        }
+        this.current.size = position + record.limit();
+        if (type == ENQUEUE) {
+            Location previous = this.locations.put(id, new Location(this.current, position));
+            if (previous != null) {
+                previous.segment.live--;
+            }
+            this.current.live++;
+        }
+        synchronized (this.syncLock) {
+            return ++this.writtenSeq;
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number has been forced to disk, forcing
+     * it along with every other record written so far if no other caller is doing so already.
+     */
+    private void awaitDurable(long seq) throws IOException
+    {
+        while (true) {
+            synchronized (this.syncLock) {
+                while (this.syncing && this.durableSeq < seq) {
+                    try {
+                        this.syncLock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for the mail spool to be written", e);
+                    }
+                }
+                if (this.durableSeq >= seq) {
+                    return;
+                }
+                this.syncing = true;
+            }
+
+            long target = 0;
+            boolean forced = false;
+            try {
+                FileChannel channel;
+                synchronized (this.lock) {
+                    channel = openChannel();
+                    synchronized (this.syncLock) {
+                        target = this.writtenSeq;
+                    }
+                }
+                try {
+                    channel.force(false);
+                }
+                catch (ClosedChannelException e) {
+                    /** The segment was rolled or closed, which forces it first. */
+                }
+                forced = true;
+            }
+            finally {
+                synchronized (this.syncLock) {
+                    this.syncing = false;
+                    if (forced) {
+                        this.durableSeq = Math.max(this.durableSeq, target);
+                    }
+                    this.syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reopens the current segment if an interrupted thread closed its channel. Called with the lock held.
+     */
+    private FileChannel openChannel() throws IOException
+    {
+        if (!this.current.channel.isOpen()) {
+            if (this.closed) {
+                throw new ClosedChannelException();
+            }
+            this.current.channel = FileChannel.open(this.current.file.toPath(), StandardOpenOption.WRITE);
+            this.current.channel.truncate(this.current.size);
+        }
+        return this.current.channel;
+    }
+
+    private void truncateCurrent()
+    {
+        try {
+            openChannel().truncate(this.current.size);
+        }
+        catch (IOException e) {
+            logger.warn("Unable to truncate mail spool segment " + this.current.file, e);
+        }
+    }
+
+    /**
+     * Seals the current segment, compacting the oldest segments if too many are kept alive,
+     * and starts a new one. Called with the lock held.
+     */
+    private void rollSegment() throws IOException
+    {
+        Segment sealed = this.current;
+        sealed.channel.force(false);
+        sealed.channel.close();
+        synchronized (this.syncLock) {
+            this.durableSeq = this.writtenSeq;
+        }
+        startSegment();
+        deleteFinishedSegments();
+
+        if (this.segments.size() - 1 > this.maxSealedSegments) {
+            compact(this.segments.firstEntry().getValue());
+        }
+    }
+
+    /**
+     * Copies the undelivered messages of the oldest segment into the current one, forces
+     * them to disk and deletes the oldest segment. Called with the lock held.
+     */
+    private void compact(Segment oldest) throws IOException
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (Map.Entry<Long, Location> entry : this.locations.entrySet()) {
+            if (entry.getValue().segment == oldest) {
+                ids.add(entry.getKey());
+            }
+        }
+        FileChannel in = FileChannel.open(oldest.file.toPath(), StandardOpenOption.READ);
+        this.compacting = true;
+        try {
+            for (Long id : ids) {
+                byte[] payload = readPayload(in, this.locations.get(id).position);
+                write(ENQUEUE, id, payload, 0, payload.length);
+            }
+        }
+        finally {
+            this.compacting = false;
+            in.close();
+        }
+        openChannel().force(false);
+        synchronized (this.syncLock) {
+            this.durableSeq = this.writtenSeq;
+        }
+        logger.info("Compacted " + ids.size() + " undelivered messages out of " + oldest.file);
+        deleteSegment(oldest);
+    }
+
+    /**
+     * Deletes sealed segments from the oldest on while they hold no undelivered messages.
+     * Newer segments are kept even when empty so that their DONE records keep applying to
+     * the older ones. Called with the lock held.
+     */
+    private void deleteFinishedSegments()
+    {
+        Iterator<Segment> it = this.segments.values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == this.current || segment.live > 0) {
+                break;
+            }
+            it.remove();
+            if (!segment.file.delete()) {
+                logger.warn("Unable to delete mail spool segment " + segment.file);
+            }
+        }
+    }
+
+    private void deleteSegment(Segment segment)
+    {
+        this.segments.remove(segment.number);
+        if (!segment.file.delete()) {
+            logger.warn("Unable to delete mail spool segment " + segment.file);
+        }
+    }
+
+    private void startSegment() throws IOException
+    {
+        long number = this.segments.isEmpty() ? 1 : this.segments.lastKey() + 1;
+        File file = new File(this.directory, String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        Segment segment = new Segment(number, file);
+        segment.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        this.segments.put(number, segment);
+        this.current = segment;
+    }
+
+    /**
+     * Reads every segment in order, truncating torn records, and returns the messages that
+     * were appended and never marked done. Called with the lock held.
+     */
+    private List<SpooledMessage> recover() throws IOException
+    {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list mail spool directory " + this.directory);
+        }
+        Arrays.sort(files);
+
+        Map<Long, SpooledMessage> pending = new LinkedHashMap<Long, SpooledMessage>();
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long number;
+            try {
+                number = Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = new Segment(number, file);
+            this.segments.put(number, segment);
+            readSegment(segment, pending);
+        }
+
+        for (SpooledMessage message : pending.values()) {
+            this.nextId = Math.max(this.nextId, message.id + 1);
+        }
+        for (Segment segment : this.segments.values()) {
+            segment.live = 0;
+        }
+        for (Location location : this.locations.values()) {
+            location.segment.live++;
+        }
+        return new ArrayList<SpooledMessage>(pending.values());
+    }
+
+    private void readSegment(Segment segment, Map<Long, SpooledMessage> pending) throws IOException
+    {
+        FileChannel in = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = in.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (position < size) {
+                header.clear();
+                if (!readFully(in, header, position)) {
+                    break;
+                }
+                int length = header.getInt(0);
+                int checksum = header.getInt(4);
+                if (length < BODY_HEADER_BYTES || position + HEADER_BYTES + length > size) {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                if (!readFully(in, body, position + HEADER_BYTES)) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(body.array(), 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                byte type = body.get(0);
+                long id = body.getLong(1);
+                this.nextId = Math.max(this.nextId, id + 1);
+                if (type == ENQUEUE) {
+                    pending.put(id, new SpooledMessage(id, Arrays.copyOfRange(body.array(), BODY_HEADER_BYTES, length)));
+                    this.locations.put(id, new Location(segment, position));
+                }
+                else if (type == DONE) {
+                    pending.remove(id);
+                    this.locations.remove(id);
+                }
+                position += HEADER_BYTES + length;
+            }
+            if (position < size) {
+                logger.warn("Truncating " + (size - position) + " bytes of incomplete records from " + segment.file);
+                in.truncate(position);
+            }
+            segment.size = position;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readPayload(FileChannel in, long position) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        if (!readFully(in, header, position)) {
+            throw new IOException("Spooled record at " + position + " is incomplete");
+        }
+        ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+        if (!readFully(in, body, position + HEADER_BYTES)) {
+            throw new IOException("Spooled record at " + position + " is incomplete");
+        }
+        return Arrays.copyOfRange(body.array(), BODY_HEADER_BYTES, body.capacity());
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** An undelivered message read back from the spool. */
+    static final class SpooledMessage
+    {
+        final long id;
+        final byte[] payload;
+
+        SpooledMessage(long id, byte[] payload)
+        {
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Segment
+    {
+        final long number;
+        final File file;
+        FileChannel channel;
+        long size = 0;
+        int live = 0;
+
+        Segment(long number, File file)
+        {
+            this.number = number;
+            this.file = file;
+        }
+    }
+
+    private static final class Location
+    {
+        final Segment segment;
+        final long position;
+
+        Location(Segment segment, long position)
+        {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package gov.nysenate.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+
+
+/**
+ * A message layout loaded from a template directory and compiled once, so that sending it
+ * again only fills in the variables.
+ *
+ * A template called name is read from up to three files:
+ *
+ * name.subject - the subject line, required
+ * name.txt     - the plain text body
+ * name.html    - the HTML body
+ *
+ * At least one body is required; with both the message is sent as multipart/alternative so
+ * that mail clients show the HTML and fall back to the text. Variables are written as
+ * {{variable}}, the same as in property files. Values are HTML escaped in the HTML body and
+ * the subject and text are filled in as is. Variables without a value render as empty.
+ */
+public final class MailTemplate
+{
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    /** Render buffer reused by each thread, dropped when a large message has grown it. */
+    private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue()
+        {
+            return new StringBuilder(1024);
+        }
+    };
+
+    private final String name;
+    private final VariableResolver.Template subject;
+    private final VariableResolver.Template text;
+    private final VariableResolver.Template html;
+
+    private MailTemplate(String name, VariableResolver.Template subject, VariableResolver.Template text, VariableResolver.Template html)
+    {
+        this.name = name;
+        this.subject = subject;
+        this.text = text;
+        this.html = html;
+    }
+
+    /**
+     * Reads and compiles the template's files.
+     *
+     * @param directory - Directory holding the template files.
+     * @param name      - Template name, the file names without extension.
+     * @return MailTemplate
+     * @throws FileNotFoundException if the subject or both bodies are missing.
+     * @throws IOException if a file cannot be read.
+     */
+    static MailTemplate load(File directory, String name) throws IOException
+    {
+        if (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.startsWith(".")) {
+            throw new FileNotFoundException("Invalid mail template name: " + name);
+        }
+        VariableResolver.Template subject = compile(new File(directory, name + ".subject"));
+        VariableResolver.Template text = compile(new File(directory, name + ".txt"));
+        VariableResolver.Template html = compile(new File(directory, name + ".html"));
+        if (subject == null) {
+            throw new FileNotFoundException("Mail template " + name + " has no " + name + ".subject in " + directory);
+        }
+        if (text == null && html == null) {
+            throw new FileNotFoundException("Mail template " + name + " has neither " + name + ".txt nor "
+                + name + ".html in " + directory);
+        }
+        return new MailTemplate(name, subject, text, html);
+    }
+
+    /**
+     * @return VariableResolver.Template - The compiled file, or null if it does not exist.
+     */
+    private static VariableResolver.Template compile(File file) throws IOException
+    {
+        if (!file.isFile()) {
+            return null;
+        }
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        if (file.getName().endsWith(".subject")) {
+            content = content.trim();
+        }
+        VariableResolver.Template template = VariableResolver.Template.parse(content);
+        return template != null ? template : VariableResolver.Template.literal(content);
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Sets the subject and body of the message from this template.
+     *
+     * @param message   - Message to fill in.
+     * @param variables - Values for the template's variables.
+     * @throws MessagingException if the content cannot be set.
+     */
+    void writeTo(MimeMessage message, Map<String, String> variables) throws MessagingException
+    {
+        message.setSubject(render(this.subject, variables, false), "UTF-8");
+        if (this.text != null && this.html != null) {
+            MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText(render(this.text, variables, false), "UTF-8");
+            MimeBodyPart htmlPart = new MimeBodyPart();
+            htmlPart.setText(render(this.html, variables, true), "UTF-8", "html");
+            message.setContent(new MimeMultipart("alternative", textPart, htmlPart));
+        }
+        else if (this.html != null) {
+            message.setText(render(this.html, variables, true), "UTF-8", "html");
+        }
+        else {
+            message.setText(render(this.text, variables, false), "UTF-8");
+        }
+    }
+
+    /**
+     * @param template  - Compiled template.
+     * @param variables - Values for the template's variables.
+     * @param escape    - Whether to HTML escape the values.
+     * @return String - The template with its variables filled in.
+     */
+    static String render(VariableResolver.Template template, Map<String, String> variables, boolean escape)
+    {
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+        sb.append(template.literals[0]);
+        for (int i = 0; i < template.references.length; i++) {
+            String value = variables.get(template.references[i]);
+            if (value != null) {
+                if (escape) {
+                    appendEscaped(sb, value);
+                }
+                else {
+                    sb.append(value);
+                }
+            }
+            sb.append(template.literals[i + 1]);
+        }
+        String rendered = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_BUFFER) {
+            buffers.remove();
+        }
+        return rendered;
+    }
+
+    private static void appendEscaped(StringBuilder sb, String value)
+    {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '&': sb.append("&amp;"); break;
+                case '"': sb.append("&quot;"); break;
+                case '\'': sb.append("&#39;"); break;
+                default: sb.append(c);
+            }
+        }
+    }
+}
@@ -1,18 +1,33 @@
 package gov.nysenate.util;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import jakarta.mail.Message;
 import jakarta.mail.PasswordAuthentication;
 import jakarta.mail.Session;
-import jakarta.mail.Transport;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import gov.nysenate.util.listener.ConfigChangeEvent;
+import gov.nysenate.util.listener.ConfigChangeListener;
+
 
 /**
  * Can send mail.
@@ -20,79 +35,406 @@ import org.slf4j.LoggerFactory;
  * prefix.host =
  * prefix.debug = 0 (off) or 1 (on)
  * prefix.active = 0 (off) or 1 (on)
+ * prefix.tls.enable = true or false
+ * prefix.ssl.enable = true or false
  * prefix.port =
  * prefix.user =
  * prefix.pass =
  * prefix.admin =
  *
+ * Messages are sent over a pool of SMTP connections that stay open between sends, tuned with
+ * the following optional keys, shown with their defaults:
+ *
+ * prefix.pool.maxSize = 4 (connections open at a time)
+ * prefix.pool.maxWait = 30s (wait for a free connection before failing the send)
+ * prefix.pool.idleTimeout = 60s (close connections unused for this long)
+ * prefix.pool.validationInterval = 5s (check connections idle for this long with NOOP before reuse)
+ *
+ * sendMailAsync() queues the message and returns immediately. Queued messages are sent in
+ * batches over the pooled connections by background workers, and transient failures are
+ * retried with exponential backoff. The queue is tuned with these keys:
+ *
+ * prefix.queue.capacity = 1000 (messages waiting to be sent)
+ * prefix.queue.workers = 2
+ * prefix.queue.batchSize = 20 (messages sent over one connection per batch)
+ * prefix.queue.overflow = block, drop or fail (what to do when the queue is full)
+ * prefix.queue.offerTimeout = 10s (how long block waits for space)
+ * prefix.queue.maxAttempts = 5
+ * prefix.queue.retryBackoff = 1s (doubled after each failed attempt)
+ * prefix.queue.maxRetryBackoff = 5m
+ * prefix.queue.drainTimeout = 30s (how long close() waits for queued messages)
+ *
+ * Queued messages can also be written to an on-disk spool before sendMailAsync() returns, so
+ * that messages not yet delivered when the application stops are sent after it restarts.
+ * Each Mailer needs a directory of its own:
+ *
+ * prefix.spool.dir = (none, messages are only kept in memory)
+ * prefix.spool.segmentSize = 16MB
+ * prefix.spool.maxSegments = 4 (older segments kept before undelivered messages are compacted)
+ *
+ * sendTemplate(), sendTemplateAsync() and sendBulk() render the message from a template
+ * compiled once per Mailer, see {@link MailTemplate}. Templates are read from
+ *
+ * prefix.templates.dir =
+ *
+ * Sends are rate limited with token buckets to stay under the relay's limits. A message that
+ * would wait longer than maxWait for a token fails, and queued messages are then retried:
+ *
+ * prefix.rate.perSecond = 0 (messages per second, 0 for no limit)
+ * prefix.rate.burst = perSecond (messages sent at once after a quiet period)
+ * prefix.rate.domainPerSecond = 0 (messages per second to each recipient domain)
+ * prefix.rate.domainBurst = domainPerSecond
+ * prefix.rate.domain.<domain> = (messages per second to that domain, in place of domainPerSecond)
+ * prefix.rate.maxWait = 30s
+ *
+ * Each Mailer has its own mail session built from its prefix. When a connection or prefix.pool.*
+ * value changes the session and connection pool are rebuilt, so a reloaded host or password is
+ * used for the following sends. Rate limits and templates are reloaded when they change. Queue
+ * and spool settings take effect after a restart.
+ *
+ * Call close() when the Mailer is no longer needed to send the queued messages and close the
+ * open connections.
+ *
  */
-public class Mailer
+public class Mailer implements ConfigChangeListener
 {
     private static final Logger logger = LoggerFactory.getLogger(Mailer.class);
-    private final Config config;
-    private final String SMTP_HOST_NAME;
-    private final String SMTP_DEBUG;
-    private final String SMTP_ACTIVE;
-    private final String SMTP_PORT;
-    private final String SMTP_ACCOUNT_USER;
-    private final String SMTP_ACCOUNT_PASS;
-    private final String SMTP_ADMIN;
-    private final String SMTP_TLS_ENABLE;
-    private final String SMTP_SSL_ENABLE;
-    private final String SMTP_CONTEXT;
+
+    /** Keys under prefix that the session and connection pool are built from. */
+    private static final String[] SETTINGS_KEYS = {
+        "host", "port", "user", "pass", "admin", "context", "active", "debug", "tls", "ssl", "pool"
+    };
+
+    private final ConfigView config;
+    private final String prefix;
+    private final MailQueue queue;
+    private final RateLimiter limiter;
+
+    /** Compiled templates by name, cleared when prefix.templates.* changes. */
+    private final ConcurrentMap<String, MailTemplate> templates = new ConcurrentHashMap<String, MailTemplate>();
+
+    private boolean closed = false;
+
+    /** Registered with Lifecycle until the Mailer is closed. */
+    private final Lifecycle.Resource resource = new Lifecycle.Resource() {
+        @Override
+        public boolean drain(long timeoutMillis)
+        {
+            return close(timeoutMillis);
+        }
+
+        @Override
+        public void forceClose()
+        {
+            close(0);
+        }
+    };
+
+    /** Connection settings, session and connection pool, replaced as a whole when they change. */
+    private volatile Settings settings;
 
     public Mailer(Config appConfig, String prefix)
     {
+        this.config = appConfig.subset(prefix);
+        this.prefix = prefix;
+        this.limiter = new RateLimiter(prefix);
+        configureLimiter();
+        this.settings = new Settings(this.config, prefix, this.limiter);
 
-        this.config = appConfig;
-        SMTP_HOST_NAME = config.getValue(prefix+".host");
-        SMTP_DEBUG = config.getValue(prefix+".debug");
-        SMTP_ACTIVE = config.getValue(prefix+".active");
-        SMTP_PORT = config.getValue(prefix+".port");
-        SMTP_ACCOUNT_USER = config.getValue(prefix+".user");
-        SMTP_ACCOUNT_PASS = config.getValue(prefix+".pass");
-        SMTP_ADMIN = config.getValue(prefix+".admin");
-        SMTP_TLS_ENABLE = config.getValue(prefix+".tls.enable");
-        SMTP_SSL_ENABLE = config.getValue(prefix+".ssl.enable");
-        SMTP_CONTEXT = config.getValue(prefix+".context");
-        logger.info("Setting up mailer for "+SMTP_ACCOUNT_USER+"@"+SMTP_HOST_NAME+":"+SMTP_PORT);
+        ConfigView queue = this.config.subset("queue");
+        this.queue = new MailQueue(this.settings.transports, prefix,
+            queue.getInt("capacity", 1000),
+            queue.getInt("workers", 2),
+            queue.getInt("batchSize", 20),
+            queue.getEnum("overflow", MailQueue.Overflow.class, MailQueue.Overflow.BLOCK),
+            queue.getDuration("offerTimeout", Duration.ofSeconds(10)).toMillis(),
+            queue.getInt("maxAttempts", 5),
+            queue.getDuration("retryBackoff", Duration.ofSeconds(1)).toMillis(),
+            queue.getDuration("maxRetryBackoff", Duration.ofMinutes(5)).toMillis(),
+            queue.getDuration("drainTimeout", Duration.ofSeconds(30)).toMillis(),
+            openSpool());
+        this.queue.replaySpooled(this.settings.session);
+        this.config.addChangeListener(this);
+        Lifecycle.register("Mailer " + prefix, this.resource);
+    }
+
+    /**
+     * Called on the configuration dispatch thread when a prefix.* value changes. A change to the
+     * connection or prefix.pool.* keys builds a new session and connection pool and retires the
+     * previous pool, whose connections are closed as the sends using them return. A change to
+     * prefix.rate.* applies the new rate limits, and one to prefix.templates.* forgets the
+     * compiled templates so they are read again. Queue and spool settings apply after a restart.
+     */
+    @Override
+    public synchronized void configChanged(ConfigChangeEvent event)
+    {
+        if (closed) {
+            return;
+        }
+        if (event.hasChangesUnder(prefix + ".rate")) {
+            configureLimiter();
+        }
+        if (event.hasChangesUnder(prefix + ".templates")) {
+            templates.clear();
+        }
+        if (changesSettings(event)) {
+            Settings previous = this.settings;
+            Settings replacement = new Settings(this.config, this.prefix, this.limiter);
+            this.settings = replacement;
+            this.queue.setTransports(replacement.transports);
+            previous.transports.retire();
+        }
+        logger.info("Configuration changed for " + this.prefix + " " + event.getChangedKeys());
+    }
+
+    /**
+     * @return boolean - True if the event changed a key read into {@link Settings}.
+     */
+    private boolean changesSettings(ConfigChangeEvent event)
+    {
+        for (String key : SETTINGS_KEYS) {
+            if (event.hasChangesUnder(prefix + "." + key)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public String getContext() {
-        return SMTP_CONTEXT;
+        return settings.context;
     }
 
     public String getAdminEmail() {
-        return SMTP_ADMIN;
+        return settings.admin;
     }
 
     public void sendMail(String to, String subject, String message) throws Exception
     {
-        sendMail(to, subject, message, SMTP_ACCOUNT_USER, "SAGE");
+        sendMail(to, subject, message, settings.user, "SAGE");
     }
 
     public void sendMail(String to, String subject, String message, String from, String fromDisplay) throws Exception
     {
-        if (!SMTP_ACTIVE.equals("true")) return;
-
-        Properties props = new Properties();
-        props.put("mail.smtp.host", SMTP_HOST_NAME);
-        props.put("mail.smtp.auth", "true");
-        props.put("mail.debug", SMTP_DEBUG);
-        props.put("mail.smtp.port", SMTP_PORT);
-        props.put("mail.smtp.starttls.enable",SMTP_TLS_ENABLE);
-        props.put("mail.smtp.socketFactory.port", SMTP_PORT);
-        props.put("mail.smtp.socketFactory.fallback", "false");
-        props.put("mail.smtp.ssl.enable",SMTP_SSL_ENABLE);
-
-        Session session = Session.getDefaultInstance(props, new jakarta.mail.Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(SMTP_ACCOUNT_USER, SMTP_ACCOUNT_PASS);
+        Settings current = settings;
+        if (!current.active) return;
+
+        MimeMessage msg = buildMessage(current.session, to, from, fromDisplay);
+        msg.setSubject(subject);
+        msg.setContent(message, "text/html");
+        current.transports.send(msg);
+        logger.debug("Message delivered!");
+    }
+
+    /**
+     * Sends a message rendered from a template.
+     *
+     * @param to        - Comma separated recipient addresses.
+     * @param template  - Template name, see {@link MailTemplate}.
+     * @param variables - Values for the template's variables.
+     * @throws java.io.FileNotFoundException if the template does not exist.
+     * @throws Exception if the message could not be sent.
+     */
+    public void sendTemplate(String to, String template, Map<String, String> variables) throws Exception
+    {
+        Settings current = settings;
+        if (!current.active) return;
+
+        MimeMessage msg = buildMessage(current.session, to, current.user, "SAGE");
+        getTemplate(template).writeTo(msg, variables);
+        current.transports.send(msg);
+    }
+
+    /**
+     * Queues a message rendered from a template to be sent in the background.
+     * @see #sendTemplate(String, String, Map)
+     * @see #sendMailAsync(String, String, String, String, String)
+     */
+    public CompletableFuture<Void> sendTemplateAsync(String to, String template, Map<String, String> variables)
+    {
+        Map<String, CompletableFuture<Void>> sent = sendBulk(template, Collections.singletonMap(to, variables));
+        return sent.get(to);
+    }
+
+    /**
+     * Renders the template once for each recipient with that recipient's variables and queues
+     * the messages, which the queue workers send in batches over pooled connections.
+     *
+     * @param template              - Template name, see {@link MailTemplate}.
+     * @param variablesByRecipient  - Template variables keyed by recipient address.
+     * @return Map<String, CompletableFuture<Void>> - Completion of each recipient's message, in
+     *         the iteration order of variablesByRecipient. All fail if the template cannot be loaded.
+     * @throws java.util.concurrent.RejectedExecutionException if the queue overflows with the
+     *         fail policy or the Mailer has been closed.
+     */
+    public Map<String, CompletableFuture<Void>> sendBulk(String template, Map<String, Map<String, String>> variablesByRecipient)
+    {
+        Map<String, CompletableFuture<Void>> sent = new LinkedHashMap<String, CompletableFuture<Void>>();
+        Settings current = settings;
+        MailTemplate compiled = null;
+        Exception loadFailure = null;
+        if (current.active) {
+            try {
+                compiled = getTemplate(template);
+            }
+            catch (Exception e) {
+                loadFailure = e;
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> recipient : variablesByRecipient.entrySet()) {
+            if (!current.active) {
+                sent.put(recipient.getKey(), CompletableFuture.<Void>completedFuture(null));
+                continue;
+            }
+            try {
+                if (loadFailure != null) {
+                    throw loadFailure;
+                }
+                MimeMessage msg = buildMessage(current.session, recipient.getKey(), current.user, "SAGE");
+                compiled.writeTo(msg, recipient.getValue());
+                sent.put(recipient.getKey(), queue.submit(msg));
+            }
+            catch (Exception e) {
+                if (e instanceof RejectedExecutionException) {
+                    throw (RejectedExecutionException) e;
+                }
+                CompletableFuture<Void> failed = new CompletableFuture<Void>();
+                failed.completeExceptionally(e);
+                sent.put(recipient.getKey(), failed);
             }
-        });
+        }
+        return sent;
+    }
+
+    /**
+     * Loads and compiles the template from prefix.templates.dir the first time it is used.
+     *
+     * @param name - Template name, see {@link MailTemplate}.
+     * @return MailTemplate
+     * @throws java.io.FileNotFoundException if the template does not exist or no directory is set.
+     * @throws IOException if the template cannot be read.
+     */
+    public MailTemplate getTemplate(String name) throws IOException
+    {
+        MailTemplate template = templates.get(name);
+        if (template == null) {
+            String dir = config.getValue("templates.dir");
+            if (dir.isEmpty()) {
+                throw new FileNotFoundException("No " + prefix + ".templates.dir configured for template " + name);
+            }
+            template = MailTemplate.load(new File(dir), name);
+            MailTemplate existing = templates.putIfAbsent(name, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Queues a message to be sent in the background.
+     * @see #sendMailAsync(String, String, String, String, String)
+     */
+    public CompletableFuture<Void> sendMailAsync(String to, String subject, String message)
+    {
+        return sendMailAsync(to, subject, message, settings.user, "SAGE");
+    }
+
+    /**
+     * Queues a message to be sent in the background. Depending on prefix.queue.overflow a full
+     * queue makes this wait for space, fail the returned future or throw.
+     *
+     * @param to          - Comma separated recipient addresses.
+     * @param subject     - Message subject.
+     * @param message     - HTML message body.
+     * @param from        - Sender address.
+     * @param fromDisplay - Sender display name.
+     * @return CompletableFuture<Void> - Completes once the server accepted the message, or
+     *                                   exceptionally if it could not be built or sent.
+     * @throws java.util.concurrent.RejectedExecutionException if the queue is full and the
+     *         overflow policy is fail or block timed out, or the Mailer has been closed.
+     */
+    public CompletableFuture<Void> sendMailAsync(String to, String subject, String message, String from, String fromDisplay)
+    {
+        Settings current = settings;
+        if (!current.active) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Message msg;
+        try {
+            msg = buildMessage(current.session, to, from, fromDisplay);
+            msg.setSubject(subject);
+            msg.setContent(message, "text/html");
+        }
+        catch (Exception e) {
+            CompletableFuture<Void> failed = new CompletableFuture<Void>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return queue.submit(msg);
+    }
+
+    /**
+     * @return MailQueue - The queue behind sendMailAsync(), for its size and counters.
+     */
+    public MailQueue getQueue()
+    {
+        return queue;
+    }
+
+    /**
+     * @return RateLimiter - The limits applied to every send, with the throttled, sent and
+     *                       failed counters.
+     */
+    public RateLimiter getRateLimiter()
+    {
+        return limiter;
+    }
+
+    /**
+     * Applies the prefix.rate.* limits. A domain listed under prefix.rate.domain uses its own
+     * rate in place of prefix.rate.domainPerSecond.
+     */
+    private void configureLimiter()
+    {
+        ConfigView rate = config.subset("rate");
+        double perSecond = rate.getDouble("perSecond", 0);
+        double domainPerSecond = rate.getDouble("domainPerSecond", 0);
+        Map<String, Double> overrides = new HashMap<String, Double>();
+        ConfigView domains = rate.subset("domain");
+        for (String domain : domains.getKeys()) {
+            overrides.put(domain.toLowerCase(), domains.getDouble(domain, 0));
+        }
+        limiter.configure(perSecond, rate.getInt("burst", (int) Math.max(1, Math.ceil(perSecond))),
+            domainPerSecond, rate.getInt("domainBurst", (int) Math.max(1, Math.ceil(domainPerSecond))),
+            overrides, rate.getDuration("maxWait", Duration.ofSeconds(30)).toMillis());
+    }
+
+    /**
+     * @return MailSpool - The spool configured under prefix.spool, or null if none is.
+     * @throws UncheckedIOException if the spool directory cannot be used.
+     */
+    private MailSpool openSpool()
+    {
+        String dir = config.getValue("spool.dir");
+        if (dir.isEmpty()) {
+            return null;
+        }
+        try {
+            return new MailSpool(new File(dir), config.getDataSize("spool.segmentSize", 16 * 1024 * 1024),
+                config.getInt("spool.maxSegments", 4));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Unable to open the mail spool in " + dir, e);
+        }
+    }
 
-        Message msg = new MimeMessage(session);
+    /**
+     * @return MimeMessage - Message with its sender and recipients set, for the caller to add
+     *                       the subject and content.
+     */
+    private static MimeMessage buildMessage(Session session, String to, String from, String fromDisplay) throws Exception
+    {
+        MimeMessage msg = new MimeMessage(session);
         InternetAddress addressFrom = new InternetAddress(from);
         addressFrom.setPersonal(fromDisplay);
         msg.setFrom(addressFrom);
@@ -108,9 +450,87 @@ public class Mailer
 
         logger.debug("Recipients list: " + rcps);
         msg.setRecipients(Message.RecipientType.TO,rcps);
-        msg.setSubject(subject);
-        msg.setContent(message, "text/html");
-        Transport.send(msg);
-        logger.debug("Message delivered!");
+        return msg;
+    }
+
+    /**
+     * Sends the queued messages, waiting up to prefix.queue.drainTimeout, then closes the
+     * pooled SMTP connections. Sends already in progress finish first.
+     */
+    public void close()
+    {
+        close(-1);
+    }
+
+    /**
+     * @param drainTimeoutMillis - Longest wait for queued messages, or -1 for prefix.queue.drainTimeout.
+     * @return boolean - True if every queued message was sent or finally failed in time.
+     */
+    private synchronized boolean close(long drainTimeoutMillis)
+    {
+        if (closed) {
+            return true;
+        }
+        closed = true;
+        Lifecycle.unregister(this.resource);
+        config.removeChangeListener(this);
+        boolean drained = (drainTimeoutMillis < 0) ? queue.close() : queue.close(drainTimeoutMillis);
+        settings.transports.close();
+        return drained;
+    }
+
+    /**
+     * The values read from prefix.*, with the session and connection pool built from them.
+     * A session only reads its properties once, so it is rebuilt rather than updated.
+     */
+    private static final class Settings
+    {
+        final String host;
+        final String port;
+        final String user;
+        final String pass;
+        final String admin;
+        final String context;
+        final boolean active;
+        final Session session;
+        final TransportPool transports;
+
+        Settings(ConfigView config, String prefix, RateLimiter limiter)
+        {
+            this.host = config.getValue("host");
+            this.port = config.getValue("port");
+            this.user = config.getValue("user");
+            this.pass = config.getValue("pass");
+            this.admin = config.getValue("admin");
+            this.context = config.getValue("context");
+            this.active = config.getBoolean("active", false);
+            logger.info("Setting up mailer for "+user+"@"+host+":"+port);
+
+            Properties props = new Properties();
+            props.put("mail.smtp.host", host);
+            props.put("mail.smtp.auth", "true");
+            props.put("mail.debug", String.valueOf(config.getBoolean("debug", false)));
+            props.put("mail.smtp.port", port);
+            props.put("mail.smtp.starttls.enable", String.valueOf(config.getBoolean("tls.enable", false)));
+            props.put("mail.smtp.socketFactory.port", port);
+            props.put("mail.smtp.socketFactory.fallback", "false");
+            props.put("mail.smtp.ssl.enable", String.valueOf(config.getBoolean("ssl.enable", false)));
+
+            /** A session of its own rather than the JVM wide default, which keeps the first properties it was given. */
+            final PasswordAuthentication authentication = new PasswordAuthentication(user, pass);
+            this.session = Session.getInstance(props, new jakarta.mail.Authenticator() {
+                @Override
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    return authentication;
+                }
+            });
+
+            ConfigView pool = config.subset("pool");
+            this.transports = new TransportPool(this.session, prefix, limiter,
+                pool.getInt("maxSize", 4),
+                pool.getDuration("maxWait", Duration.ofSeconds(30)).toMillis(),
+                pool.getDuration("idleTimeout", Duration.ofSeconds(60)).toMillis(),
+                pool.getDuration("validationInterval", Duration.ofSeconds(5)).toMillis());
+        }
     }
 }
@@ -0,0 +1,63 @@
+package gov.nysenate.util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.tomcat.jdbc.pool.Validator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Validates pooled connections the same way the pool would, by running the validation
+ * query or calling Connection.isValid() when there is none, and counts the failures in
+ * the DB's metrics. The pool only calls the validator once per validation interval.
+ */
+final class MetricsValidator implements Validator
+{
+    private static final Logger logger = LoggerFactory.getLogger(MetricsValidator.class);
+
+    private final DBMetrics metrics;
+    private final String validationQuery;
+    private final int timeoutSeconds;
+
+    MetricsValidator(DBMetrics metrics, String validationQuery, int timeoutSeconds)
+    {
+        this.metrics = metrics;
+        this.validationQuery = validationQuery;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    @Override
+    public boolean validate(Connection connection, int validateAction)
+    {
+        boolean valid;
+        try {
+            if (this.validationQuery == null || this.validationQuery.isEmpty()) {
+                valid = connection.isValid(Math.max(this.timeoutSeconds, 0));
+            }
+            else {
+                Statement statement = connection.createStatement();
+                try {
+                    if (this.timeoutSeconds > 0) {
+                        statement.setQueryTimeout(this.timeoutSeconds);
+                    }
+                    statement.execute(this.validationQuery);
+                    valid = true;
+                }
+                finally {
+                    statement.close();
+                }
+            }
+        }
+        catch (SQLException e) {
+            logger.debug("Connection failed validation: " + e.getMessage());
+            valid = false;
+        }
+        if (!valid) {
+            this.metrics.validationFailed();
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,404 @@
+package gov.nysenate.util;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Opt-in read-through cache of query results for a {@link DB}, for lookups of reference
+ * tables that rarely change. Obtain it from {@link DB#cache()} and define each cached query
+ * once, naming the tables it reads:
+ *
+ *   QueryCache.Query<Committee> committees = db.cache().define("committees",
+ *       "SELECT id, name FROM committee WHERE chamber = ?", committeeMapper, "committee");
+ *   List<Committee> senate = committees.get("senate");
+ *
+ * Results are cached by SQL and parameters. Concurrent misses for the same key wait for a
+ * single query rather than each running their own. After writing to a table, call
+ * invalidateTable() to drop every result read from it. A query that was running when the
+ * table was invalidated still returns its rows to the callers already waiting on it, but
+ * does not cache them, and later callers run the query again rather than join it.
+ *
+ * The cache is configured under the DB's prefix and is disabled unless maxEntries is set:
+ *
+ *  prefix.cache.maxEntries = 0 (results cached at once, 0 disables the cache)
+ *  prefix.cache.maxRows = 100000 (rows cached at once, each result weighing at least 1)
+ *  prefix.cache.ttl = 5m (how long a result is served before it is queried again)
+ *  prefix.cache.query.NAME.ttl = (overrides prefix.cache.ttl for the named query)
+ *
+ * Reads of cached results take no lock. When either bound is exceeded the results read
+ * longest ago are evicted. The cache is cleared whenever the DB replaces its pool after a
+ * configuration change.
+ */
+public final class QueryCache
+{
+    private final DB db;
+    private final ConfigView config;
+
+    /** Cached results by key. Read without locking, changed only while holding lock. */
+    private final ConcurrentHashMap<List<Object>, Entry> entries = new ConcurrentHashMap<List<Object>, Entry>();
+
+    /** Guards changes to entries, cachedRows and the registration of loads. */
+    private final Object lock = new Object();
+    private long cachedRows = 0;
+
+    /** Loads in progress by key, joined by concurrent misses and dropped on invalidation. */
+    private final ConcurrentHashMap<List<Object>, Load> loading = new ConcurrentHashMap<List<Object>, Load>();
+
+    /** Incremented by every invalidation, so loads that overlap one are not cached. */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+
+    QueryCache(DB db, ConfigView config)
+    {
+        this.db = db;
+        this.config = config;
+    }
+
+    /**
+     * @param name   - Name of the query, used for its prefix.cache.query.NAME.ttl.
+     * @param sql    - Query with a parameter for each value passed to get().
+     * @param mapper - Maps each row to a value. Values are shared between callers, so they
+     *                 should be immutable.
+     * @param tables - Tables the query reads, whose invalidation drops its results.
+     * @return Query<T>
+     */
+    public <T> Query<T> define(String name, String sql, DBQuery.RowMapper<T> mapper, String... tables)
+    {
+        String[] tags = new String[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            tags[i] = tables[i].toLowerCase(Locale.ROOT);
+        }
+        return new Query<T>(this, name, sql, mapper, tags);
+    }
+
+    /**
+     * Drops every cached result of queries that read the table, and stops later callers from
+     * joining their loads in progress.
+     *
+     * @param table - Table name, matched case insensitively against the defined tables.
+     * @return int - Number of results dropped.
+     */
+    public int invalidateTable(String table)
+    {
+        String tag = table.toLowerCase(Locale.ROOT);
+        int dropped = 0;
+        synchronized (this.lock) {
+            this.invalidations.incrementAndGet();
+            Iterator<Entry> iterator = this.entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (Arrays.asList(entry.tables).contains(tag)) {
+                    iterator.remove();
+                    this.cachedRows -= entry.weight;
+                    dropped++;
+                }
+            }
+            Iterator<Load> loads = this.loading.values().iterator();
+            while (loads.hasNext()) {
+                if (Arrays.asList(loads.next().tables).contains(tag)) {
+                    loads.remove();
+                }
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Drops every cached result and stops later callers from joining loads in progress.
+     */
+    public void invalidateAll()
+    {
+        synchronized (this.lock) {
+            this.invalidations.incrementAndGet();
+            this.entries.clear();
+            this.cachedRows = 0;
+            this.loading.clear();
+        }
+    }
+
+    /** @return int - Number of results cached. */
+    public int size()
+    {
+        return this.entries.size();
+    }
+
+    /** @return long - Reads served from the cache, including those that waited on another caller's query. */
+    public long getHits()
+    {
+        return this.hits.sum();
+    }
+
+    /** @return long - Reads that ran the query. */
+    public long getMisses()
+    {
+        return this.misses.sum();
+    }
+
+    /** @return double - Fraction of reads served from the cache, 0 before the first read. */
+    public double getHitRatio()
+    {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return (total > 0) ? (double) hits / total : 0;
+    }
+
+    /** @return long - Results evicted to stay within prefix.cache.maxEntries and maxRows. */
+    public long getEvictions()
+    {
+        return this.evictions.sum();
+    }
+
+    /** @return LatencyHistogram - Time taken by the queries run on a miss. */
+    public LatencyHistogram getLoadLatency()
+    {
+        return this.loadLatency;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("QueryCache{size=%d, hitRatio=%.3f, hits=%d, misses=%d, evictions=%d, load=%s}",
+            size(), getHitRatio(), getHits(), getMisses(), getEvictions(), this.loadLatency);
+    }
+
+    /**
+     * Returns the cached result for the key or runs the query, letting only one caller run it.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> get(Query<T> query, Object[] params) throws SQLException
+    {
+        int maxEntries = this.config.getInt("cache.maxEntries", 0);
+        if (maxEntries <= 0) {
+            return load(query, params);
+        }
+        List<Object> key = new ArrayList<Object>(params.length + 1);
+        key.add(query.sql);
+        key.addAll(Arrays.asList(params));
+
+        Entry entry = this.entries.get(key);
+        if (entry != null) {
+            long now = System.nanoTime();
+            if (now - entry.expiresAt < 0) {
+                entry.lastRead = now;
+                this.hits.increment();
+                return (List<T>) entry.rows;
+            }
+            synchronized (this.lock) {
+                if (this.entries.remove(key, entry)) {
+                    this.cachedRows -= entry.weight;
+                }
+            }
+        }
+
+        Load pending = new Load(query.tables);
+        Load existing;
+        long invalidationsAtStart;
+        /** Registered under the lock so an invalidation either precedes the load or drops it. */
+        synchronized (this.lock) {
+            existing = this.loading.putIfAbsent(key, pending);
+            invalidationsAtStart = this.invalidations.get();
+        }
+        if (existing != null) {
+            this.hits.increment();
+            return (List<T>) await(existing.rows, query);
+        }
+
+        this.misses.increment();
+        try {
+            List<T> rows = load(query, params);
+            store(key, rows, query, invalidationsAtStart, maxEntries);
+            pending.rows.complete(rows);
+            return rows;
+        }
+        catch (SQLException | RuntimeException e) {
+            pending.rows.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            this.loading.remove(key, pending);
+        }
+    }
+
+    private <T> List<T> load(Query<T> query, Object[] params) throws SQLException
+    {
+        final DBQuery.RowMapper<T> mapper = query.mapper;
+        final List<T> rows = new ArrayList<T>();
+        long start = System.nanoTime();
+        try {
+            this.db.query().forEach(query.sql, new DBQuery.RowCallback() {
+                @Override
+                public void processRow(ResultSet results) throws SQLException
+                {
+                    rows.add(mapper.map(results));
+                }
+            }, params);
+        }
+        finally {
+            this.loadLatency.record(System.nanoTime() - start);
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * Caches the rows unless the query's tables may have been invalidated while it ran, then
+     * evicts the least recently read results until both bounds hold.
+     */
+    private void store(List<Object> key, List<?> rows, Query<?> query, long invalidationsAtStart, int maxEntries)
+    {
+        Duration ttl = this.config.getDuration("cache.query." + query.name + ".ttl",
+            this.config.getDuration("cache.ttl", Duration.ofMinutes(5)));
+        if (ttl.isZero() || ttl.isNegative()) {
+            return;
+        }
+        long maxRows = this.config.getLong("cache.maxRows", 100000);
+        Entry entry = new Entry(rows, query.tables, System.nanoTime() + ttl.toNanos());
+        synchronized (this.lock) {
+            if (this.invalidations.get() != invalidationsAtStart) {
+                return;
+            }
+            Entry replaced = this.entries.put(key, entry);
+            if (replaced != null) {
+                this.cachedRows -= replaced.weight;
+            }
+            this.cachedRows += entry.weight;
+            while ((this.entries.size() > maxEntries || this.cachedRows > maxRows) && evictLeastRecentlyRead()) {
+                this.evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes the result read longest ago. Runs on a miss, after a query, so the scan is cheap
+     * next to the query and keeps the reads free of any shared ordering.
+     *
+     * @return boolean - False if the cache was empty.
+     */
+    private boolean evictLeastRecentlyRead()
+    {
+        Map.Entry<List<Object>, Entry> eldest = null;
+        for (Map.Entry<List<Object>, Entry> candidate : this.entries.entrySet()) {
+            if (eldest == null || candidate.getValue().lastRead - eldest.getValue().lastRead < 0) {
+                eldest = candidate;
+            }
+        }
+        if (eldest == null) {
+            return false;
+        }
+        this.entries.remove(eldest.getKey());
+        this.cachedRows -= eldest.getValue().weight;
+        return true;
+    }
+
+    /** Waits for another caller's query and returns its rows or rethrows its failure. */
+    private static List<?> await(CompletableFuture<List<?>> load, Query<?> query) throws SQLException
+    {
+        try {
+            return load.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for cached query " + query.name, e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("Cached query " + query.name + " failed", cause);
+        }
+    }
+
+    /**
+     * A query defined with define(), reading through the cache.
+     *
+     * @param <T> - Type of the mapped rows.
+     */
+    public static final class Query<T>
+    {
+        private final QueryCache cache;
+        private final String name;
+        private final String sql;
+        private final DBQuery.RowMapper<T> mapper;
+        private final String[] tables;
+
+        private Query(QueryCache cache, String name, String sql, DBQuery.RowMapper<T> mapper, String[] tables)
+        {
+            this.cache = cache;
+            this.name = name;
+            this.sql = sql;
+            this.mapper = mapper;
+            this.tables = tables;
+        }
+
+        /**
+         * @param params - Query parameters, set with setObject. Must have equals() and hashCode().
+         * @return List<T> - Unmodifiable mapped rows, shared with other callers.
+         * @throws SQLException if the query fails.
+         */
+        public List<T> get(Object... params) throws SQLException
+        {
+            return this.cache.get(this, params);
+        }
+
+        /**
+         * @return String - Name of the query.
+         */
+        public String getName()
+        {
+            return this.name;
+        }
+    }
+
+    /** A query in progress and the tables it reads. */
+    private static final class Load
+    {
+        final CompletableFuture<List<?>> rows = new CompletableFuture<List<?>>();
+        final String[] tables;
+
+        Load(String[] tables)
+        {
+            this.tables = tables;
+        }
+    }
+
+    /** A cached result and the tables it was read from. */
+    private static final class Entry
+    {
+        final List<?> rows;
+        final String[] tables;
+        final long weight;
+        final long expiresAt;
+
+        /** System.nanoTime() of the last read, written by readers without a lock. */
+        volatile long lastRead = System.nanoTime();
+
+        Entry(List<?> rows, String[] tables, long expiresAt)
+        {
+            this.rows = rows;
+            this.tables = tables;
+            this.weight = Math.max(1, rows.size());
+            this.expiresAt = expiresAt;
+        }
+    }
+}
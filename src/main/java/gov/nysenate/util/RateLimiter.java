@@ -0,0 +1,320 @@
+package gov.nysenate.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Token bucket rate limits for the messages a Mailer sends, so that it stays under the
+ * relay's messages per second limit instead of being refused with 421 replies.
+ *
+ * There is one bucket for every message and, optionally, one per recipient domain. A message
+ * takes a token from the shared bucket and from the bucket of each domain it is addressed to,
+ * and waits when any of them is empty. A message refused by one bucket, or interrupted while
+ * waiting, gives back the tokens it took from the others. Each bucket is a single AtomicLong
+ * holding the time its next token becomes available, updated with compare-and-set, so senders
+ * never block on each other to take a token. Domain buckets that have refilled are dropped once
+ * there are more than MAX_DOMAIN_BUCKETS of them, since a full bucket is the same as a new one.
+ *
+ * Also counts the messages that had to wait, and the send attempts that succeeded or failed.
+ */
+public final class RateLimiter
+{
+    private static final Logger logger = LoggerFactory.getLogger(RateLimiter.class);
+
+    /** Domain buckets kept before those that have refilled are dropped. */
+    static final int MAX_DOMAIN_BUCKETS = 1000;
+
+    private final String name;
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Replaced as a whole when the limits are reconfigured. */
+    private volatile Limits limits;
+
+    /**
+     * @param name - Name used in log messages.
+     */
+    RateLimiter(String name)
+    {
+        this.name = name;
+        this.limits = new Limits(0, 1, 0, 1, Collections.<String, Double>emptyMap(), 0);
+    }
+
+    /**
+     * Replaces the limits. Tokens already taken under the previous limits are forgotten.
+     *
+     * @param perSecond       - Messages per second over all domains, 0 for no limit.
+     * @param burst           - Messages that may be sent at once after a quiet period.
+     * @param domainPerSecond - Messages per second to each recipient domain, 0 for no limit.
+     * @param domainBurst     - Messages that may be sent to one domain at once.
+     * @param domainOverrides - Messages per second for particular domains, by lower case domain.
+     * @param maxWaitMillis   - Longest a message waits for its tokens before the send fails.
+     */
+    void configure(double perSecond, int burst, double domainPerSecond, int domainBurst,
+                   Map<String, Double> domainOverrides, long maxWaitMillis)
+    {
+        this.limits = new Limits(perSecond, burst, domainPerSecond, domainBurst, domainOverrides, maxWaitMillis);
+    }
+
+    /**
+     * Takes a token for the message from the shared bucket and each of its recipient domains,
+     * waiting until they are all available.
+     *
+     * @param message - Message with its recipients set.
+     * @throws MessagingException if the tokens are not available within the maximum wait, or
+     *         the thread was interrupted while waiting.
+     */
+    void acquire(Message message) throws MessagingException
+    {
+        Limits current = this.limits;
+        long now = System.nanoTime();
+        List<Bucket> reserved = new ArrayList<Bucket>();
+        long waitNanos = 0;
+        if (current.global != null) {
+            waitNanos = current.global.reserve(now, current.maxWaitNanos);
+            if (waitNanos >= 0) {
+                reserved.add(current.global);
+            }
+        }
+        if (waitNanos >= 0 && current.limitsDomains()) {
+            for (String domain : domains(message)) {
+                Bucket bucket = current.bucket(domain, now);
+                if (bucket != null) {
+                    long domainWait = bucket.reserve(now, current.maxWaitNanos);
+                    if (domainWait < 0) {
+                        waitNanos = -1;
+                        break;
+                    }
+                    reserved.add(bucket);
+                    waitNanos = Math.max(waitNanos, domainWait);
+                }
+            }
+        }
+        if (waitNanos < 0) {
+            release(reserved);
+            this.throttled.incrementAndGet();
+            throw new MessagingException("Rate limit for " + this.name + " would delay the message more than "
+                + TimeUnit.NANOSECONDS.toMillis(current.maxWaitNanos) + "ms");
+        }
+        if (waitNanos > 0) {
+            this.throttled.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            catch (InterruptedException e) {
+                release(reserved);
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting for the " + this.name + " rate limit", e);
+            }
+        }
+    }
+
+    /** Returns the tokens of a message that will not be sent, so they are not wasted. */
+    private static void release(List<Bucket> reserved)
+    {
+        for (Bucket bucket : reserved) {
+            bucket.release();
+        }
+    }
+
+    void recordSent()
+    {
+        this.sent.incrementAndGet();
+    }
+
+    void recordFailed()
+    {
+        this.failed.incrementAndGet();
+    }
+
+    /** @return long - Messages that waited for, or failed to get, a token. */
+    public long getThrottledCount()
+    {
+        return this.throttled.get();
+    }
+
+    /** @return long - Send attempts the server accepted, including synchronous sends. */
+    public long getSentCount()
+    {
+        return this.sent.get();
+    }
+
+    /** @return long - Send attempts that failed, each retry counted separately. */
+    public long getFailedCount()
+    {
+        return this.failed.get();
+    }
+
+    /**
+     * @return Set<String> - The lower case domains of the message's recipients.
+     */
+    private static Set<String> domains(Message message) throws MessagingException
+    {
+        Address[] recipients = message.getAllRecipients();
+        if (recipients == null) {
+            return Collections.emptySet();
+        }
+        Set<String> domains = new LinkedHashSet<String>();
+        for (Address recipient : recipients) {
+            if (recipient instanceof InternetAddress) {
+                String address = ((InternetAddress) recipient).getAddress();
+                int at = address == null ? -1 : address.lastIndexOf('@');
+                if (at >= 0) {
+                    domains.add(address.substring(at + 1).toLowerCase());
+                }
+            }
+        }
+        return domains;
+    }
+
+    /**
+     * The buckets built from one configuration. Domain buckets are created on first use.
+     */
+    private final class Limits
+    {
+        final Bucket global;
+        final double domainPerSecond;
+        final int domainBurst;
+        final Map<String, Double> domainOverrides;
+        final long maxWaitNanos;
+        final ConcurrentMap<String, Bucket> domains = new ConcurrentHashMap<String, Bucket>();
+
+        Limits(double perSecond, int burst, double domainPerSecond, int domainBurst,
+               Map<String, Double> domainOverrides, long maxWaitMillis)
+        {
+            this.global = perSecond > 0 ? new Bucket(perSecond, burst) : null;
+            this.domainPerSecond = domainPerSecond;
+            this.domainBurst = domainBurst;
+            this.domainOverrides = new HashMap<String, Double>(domainOverrides);
+            this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            if (this.global != null || this.limitsDomains()) {
+                logger.info("Rate limits for " + name + ": " + perSecond + "/s, " + domainPerSecond
+                    + "/s per domain, overrides " + this.domainOverrides);
+            }
+        }
+
+        boolean limitsDomains()
+        {
+            return this.domainPerSecond > 0 || !this.domainOverrides.isEmpty();
+        }
+
+        /**
+         * @param domain - Lower case recipient domain.
+         * @param now    - Current System.nanoTime().
+         * @return Bucket - The domain's bucket, or null if mail to it is not limited.
+         */
+        Bucket bucket(String domain, long now)
+        {
+            Bucket bucket = this.domains.get(domain);
+            if (bucket == null) {
+                Double override = this.domainOverrides.get(domain);
+                double perSecond = override != null ? override : this.domainPerSecond;
+                if (perSecond <= 0) {
+                    return null;
+                }
+                if (this.domains.size() >= MAX_DOMAIN_BUCKETS) {
+                    dropFullBuckets(now);
+                }
+                Bucket created = new Bucket(perSecond, this.domainBurst);
+                bucket = this.domains.putIfAbsent(domain, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            return bucket;
+        }
+
+        /** Drops the domain buckets that have refilled, which a new bucket would replace exactly. */
+        private void dropFullBuckets(long now)
+        {
+            Iterator<Bucket> buckets = this.domains.values().iterator();
+            while (buckets.hasNext()) {
+                if (buckets.next().isFull(now)) {
+                    buckets.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * A token bucket kept as the time at which it would be full again less one burst, in the
+     * style of the generic cell rate algorithm. Taking a token moves that time forward by one
+     * interval; a sender whose token lies in the future waits until then.
+     */
+    static final class Bucket
+    {
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong nextFree = new AtomicLong(Long.MIN_VALUE);
+
+        /**
+         * @param perSecond - Tokens added per second.
+         * @param burst     - Most tokens the bucket holds.
+         */
+        Bucket(double perSecond, int burst)
+        {
+            this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+            this.burstNanos = this.intervalNanos * (Math.max(1, burst) - 1);
+        }
+
+        /**
+         * Takes the next token if it is available within maxWaitNanos of now.
+         *
+         * @param now          - Current System.nanoTime().
+         * @param maxWaitNanos - Longest acceptable wait.
+         * @return long - Nanoseconds to wait before using the token, or -1 if none was taken.
+         */
+        long reserve(long now, long maxWaitNanos)
+        {
+            while (true) {
+                long previous = this.nextFree.get();
+                long start = previous == Long.MIN_VALUE || previous - now < 0 ? now : previous;
+                long wait = Math.max(0, start - now - this.burstNanos);
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (this.nextFree.compareAndSet(previous, start + this.intervalNanos)) {
+                    return wait;
+                }
+            }
+        }
+
+        /**
+         * Gives back a token taken with reserve() that will not be used.
+         */
+        void release()
+        {
+            this.nextFree.addAndGet(-this.intervalNanos);
+        }
+
+        /**
+         * @param now - Current System.nanoTime().
+         * @return boolean - Whether every token is available, as in a new bucket.
+         */
+        boolean isFull(long now)
+        {
+            long next = this.nextFree.get();
+            return next == Long.MIN_VALUE || next - now <= 0;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package gov.nysenate.util;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.PoolProperties.InterceptorProperty;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+import org.apache.tomcat.jdbc.pool.interceptor.StatementCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Tomcat's StatementCache with a limit per connection, a choice of what happens when a
+ * connection's cache is full, and hit, miss and eviction counts recorded in the
+ * {@link DBMetrics} named by the metrics property. DB adds it to the interceptor chain ahead
+ * of the {@link StatementTimingInterceptor}, so statements served from the cache are timed:
+ *
+ *   gov.nysenate.util.StatementCacheInterceptor(metrics=db-1,maxPerConnection=50,eviction=lru,max=5001)
+ *
+ * Closing a cached statement returns it to its connection's cache, and preparing the same
+ * SQL with the same arguments on that connection again reuses it. The statements of a
+ * connection are closed when the pool disconnects it, whether it was abandoned, retired or
+ * its pool was replaced. Tomcat's max property still bounds the whole pool; DB sets it just
+ * above maxPerConnection times maxActive so that the per connection limit applies.
+ */
+public class StatementCacheInterceptor extends StatementCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(StatementCacheInterceptor.class);
+
+    /** Interceptor property holding the id of the metrics to record to. */
+    public static final String METRICS_PROPERTY = "metrics";
+
+    /** Interceptor property holding the most statements cached for one connection. */
+    public static final String MAX_PER_CONNECTION_PROPERTY = "maxPerConnection";
+
+    /** Interceptor property holding the {@link Eviction} policy. */
+    public static final String EVICTION_PROPERTY = "eviction";
+
+    /** What to do with a closed statement when its connection's cache is full. */
+    public enum Eviction
+    {
+        /** Close the statement that has been cached the longest to make room. */
+        LRU,
+        /** Close the statement being returned and keep the cache as it is. */
+        NONE
+    }
+
+    private DBMetrics metrics;
+    private int maxPerConnection = 50;
+    private Eviction eviction = Eviction.LRU;
+
+    /** This connection's cached statements by cache key, longest cached first. Guarded by itself. */
+    private final LinkedHashMap<Object, CachedStatement> cached = new LinkedHashMap<Object, CachedStatement>();
+
+    @Override
+    public void setProperties(Map<String, InterceptorProperty> properties)
+    {
+        super.setProperties(properties);
+        InterceptorProperty id = properties.get(METRICS_PROPERTY);
+        if (id != null) {
+            this.metrics = DBMetrics.forId(id.getValue());
+            if (this.metrics == null) {
+                logger.warn("No DB metrics registered for " + id.getValue() + ", statement cache use will not be counted.");
+            }
+        }
+        InterceptorProperty max = properties.get(MAX_PER_CONNECTION_PROPERTY);
+        if (max != null) {
+            this.maxPerConnection = Math.max(0, max.getValueAsInt(this.maxPerConnection));
+        }
+        InterceptorProperty eviction = properties.get(EVICTION_PROPERTY);
+        if (eviction != null) {
+            this.eviction = Eviction.valueOf(eviction.getValue().trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Called for every prepareStatement, counting whether a cached statement was found.
+     */
+    @Override
+    public CachedStatement isCached(Method method, Object[] args)
+    {
+        CachedStatement statement = super.isCached(method, args);
+        if (this.metrics != null) {
+            this.metrics.statementCacheLookup(statement != null);
+        }
+        return statement;
+    }
+
+    /**
+     * Called when a statement is closed, making room first if the connection's cache is full.
+     */
+    @Override
+    public boolean cacheStatement(CachedStatement statement)
+    {
+        CachedStatement evicted = null;
+        synchronized (this.cached) {
+            if (this.cached.containsKey(statement.getCacheKey())) {
+                return false;
+            }
+            if (this.cached.size() >= this.maxPerConnection) {
+                if (this.eviction == Eviction.NONE || this.cached.isEmpty()) {
+                    return false;
+                }
+                Iterator<CachedStatement> oldest = this.cached.values().iterator();
+                evicted = oldest.next();
+                oldest.remove();
+            }
+        }
+        if (evicted != null) {
+            /** Removes the statement from Tomcat's cache and closes it. */
+            evicted.forceClose();
+            if (this.metrics != null) {
+                this.metrics.statementCacheEvicted();
+            }
+        }
+        if (!super.cacheStatement(statement)) {
+            return false;
+        }
+        synchronized (this.cached) {
+            this.cached.put(statement.getCacheKey(), statement);
+        }
+        return true;
+    }
+
+    /**
+     * Called when a cached statement is handed out again, evicted or closed.
+     */
+    @Override
+    public boolean removeStatement(CachedStatement statement)
+    {
+        synchronized (this.cached) {
+            if (this.cached.get(statement.getCacheKey()) == statement) {
+                this.cached.remove(statement.getCacheKey());
+            }
+        }
+        return super.removeStatement(statement);
+    }
+
+    @Override
+    public void disconnected(ConnectionPool parent, PooledConnection con, boolean finalizing)
+    {
+        synchronized (this.cached) {
+            this.cached.clear();
+        }
+        super.disconnected(parent, con, finalizing);
+    }
+
+    /**
+     * @return int - Number of statements cached for this interceptor's connection.
+     */
+    public int getCachedCount()
+    {
+        synchronized (this.cached) {
+            return this.cached.size();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package gov.nysenate.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Map;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.PoolProperties.InterceptorProperty;
+import org.apache.tomcat.jdbc.pool.interceptor.AbstractCreateStatementInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * JDBC interceptor that times every statement execution with System.nanoTime() and records
+ * it in the {@link DBMetrics} named by the metrics property. DB adds it to the interceptor
+ * chain of every pool it builds, after ConnectionState and StatementFinalizer:
+ *
+ *   gov.nysenate.util.StatementTimingInterceptor(metrics=db-1)
+ *
+ * Statements are wrapped in a proxy implementing only the JDBC interface they were created
+ * through, so callers must not cast them to driver specific classes.
+ */
+public class StatementTimingInterceptor extends AbstractCreateStatementInterceptor
+{
+    private static final Logger logger = LoggerFactory.getLogger(StatementTimingInterceptor.class);
+
+    /** Interceptor property holding the id of the metrics to record to. */
+    public static final String METRICS_PROPERTY = "metrics";
+
+    private DBMetrics metrics;
+
+    @Override
+    public void setProperties(Map<String, InterceptorProperty> properties)
+    {
+        super.setProperties(properties);
+        InterceptorProperty id = properties.get(METRICS_PROPERTY);
+        if (id != null) {
+            this.metrics = DBMetrics.forId(id.getValue());
+            if (this.metrics == null) {
+                logger.warn("No DB metrics registered for " + id.getValue() + ", statements will not be timed.");
+            }
+        }
+    }
+
+    @Override
+    public void poolStarted(ConnectionPool pool)
+    {
+        super.poolStarted(pool);
+        if (this.metrics != null) {
+            this.metrics.poolStarted(pool);
+        }
+    }
+
+    @Override
+    public void poolClosed(ConnectionPool pool)
+    {
+        if (this.metrics != null) {
+            this.metrics.poolClosed(pool);
+        }
+        super.poolClosed(pool);
+    }
+
+    @Override
+    public Object createStatement(Object proxy, Method method, Object[] args, Object statement, long time)
+    {
+        if (this.metrics == null) {
+            return statement;
+        }
+        try {
+            String name = method.getName();
+            String sql = null;
+            Constructor<?> constructor;
+            if (compare(PREPARE_STATEMENT, name)) {
+                sql = (String) args[0];
+                constructor = getConstructor(PREPARE_STATEMENT_IDX, PreparedStatement.class);
+            }
+            else if (compare(PREPARE_CALL, name)) {
+                sql = (String) args[0];
+                constructor = getConstructor(PREPARE_CALL_IDX, CallableStatement.class);
+            }
+            else {
+                constructor = getConstructor(CREATE_STATEMENT_IDX, Statement.class);
+            }
+            return constructor.newInstance(new TimedStatement(statement, sql));
+        }
+        catch (ReflectiveOperationException e) {
+            logger.warn("Unable to time statement, returning it unwrapped.", e);
+            return statement;
+        }
+    }
+
+    @Override
+    public void closeInvoked() {}
+
+    /** Times the execute methods of a statement. */
+    private class TimedStatement implements InvocationHandler
+    {
+        private final Object delegate;
+
+        /** SQL the statement was prepared with, null for plain statements. */
+        private final String sql;
+
+        TimedStatement(Object delegate, String sql)
+        {
+            this.delegate = delegate;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (!isExecute(method, false)) {
+                try {
+                    return method.invoke(this.delegate, args);
+                }
+                catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+
+            String executed = (this.sql != null) ? this.sql
+                : (args != null && args.length > 0 && args[0] instanceof String) ? (String) args[0] : null;
+            long start = System.nanoTime();
+            try {
+                return method.invoke(this.delegate, args);
+            }
+            catch (InvocationTargetException e) {
+                metrics.statementFailed();
+                throw e.getCause();
+            }
+            finally {
+                metrics.statementExecuted(executed, System.nanoTime() - start);
+            }
+        }
+    }
+}
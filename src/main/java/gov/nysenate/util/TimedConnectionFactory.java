@@ -0,0 +1,136 @@
+package gov.nysenate.util;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+
+/**
+ * Opens physical connections for a pool through the configured JDBC driver and records how
+ * long each one takes. DB hands it to the pool as its DataSource so that connection setup
+ * latency can be measured; it is not a pool itself and is not meant to be used directly.
+ */
+final class TimedConnectionFactory implements DataSource
+{
+    private final String driverClassName;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final LatencyHistogram connectLatency;
+    private volatile Driver driver;
+    private int loginTimeout = 0;
+
+    TimedConnectionFactory(String driverClassName, String url, String user, String password, LatencyHistogram connectLatency)
+    {
+        this.driverClassName = driverClassName;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.connectLatency = connectLatency;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException
+    {
+        return getConnection(this.user, this.password);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException
+    {
+        Properties properties = new Properties();
+        if (username != null) {
+            properties.setProperty("user", username);
+        }
+        if (password != null) {
+            properties.setProperty("password", password);
+        }
+        long start = System.nanoTime();
+        try {
+            Connection connection = driver().connect(this.url, properties);
+            if (connection == null) {
+                throw new SQLException("Driver " + this.driverClassName + " does not accept the url " + this.url);
+            }
+            return connection;
+        }
+        finally {
+            this.connectLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private Driver driver() throws SQLException
+    {
+        Driver current = this.driver;
+        if (current == null) {
+            if (this.driverClassName == null || this.driverClassName.isEmpty()) {
+                current = DriverManager.getDriver(this.url);
+            }
+            else {
+                try {
+                    current = (Driver) loadClass(this.driverClassName).getDeclaredConstructor().newInstance();
+                }
+                catch (ReflectiveOperationException e) {
+                    throw new SQLException("Unable to load JDBC driver " + this.driverClassName, e);
+                }
+            }
+            this.driver = current;
+        }
+        return current;
+    }
+
+    private static Class<?> loadClass(String name) throws ClassNotFoundException
+    {
+        try {
+            return Class.forName(name, true, TimedConnectionFactory.class.getClassLoader());
+        }
+        catch (ClassNotFoundException e) {
+            return Class.forName(name, true, Thread.currentThread().getContextClassLoader());
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter()
+    {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {}
+
+    @Override
+    public void setLoginTimeout(int seconds)
+    {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout()
+    {
+        return this.loginTimeout;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException
+    {
+        throw new SQLException(getClass().getName() + " does not wrap " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface)
+    {
+        return false;
+    }
+}
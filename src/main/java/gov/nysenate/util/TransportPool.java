@@ -0,0 +1,444 @@
+package gov.nysenate.util;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+
+/**
+ * A bounded pool of connected SMTP transports, so that consecutive messages reuse one TCP
+ * connection, TLS handshake and login instead of paying for them on every send.
+ *
+ * At most maxSize transports exist at a time, each either idle in the pool or in use by
+ * one sender. Senders wait up to maxWait for a transport when all of them are in use.
+ * Idle transports are reused most recently used first, checked with an SMTP NOOP when they
+ * have been idle longer than the validation interval, and closed by a background sweep
+ * once idle longer than the idle timeout.
+ */
+final class TransportPool
+{
+    private static final Logger logger = LoggerFactory.getLogger(TransportPool.class);
+
+    /** SMTP reply sent by a server that is closing the connection. */
+    private static final int SERVICE_NOT_AVAILABLE = 421;
+
+    /** Shared thread closing idle transports for every pool. */
+    private static ScheduledExecutorService evictor;
+
+    private final Session session;
+    private final String name;
+    private final RateLimiter limiter;
+    private final Semaphore permits;
+    private final long maxWaitMillis;
+    private final long idleTimeoutNanos;
+    private final long validationIntervalNanos;
+    private final LinkedBlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<PooledTransport>();
+    private final ScheduledFuture<?> evictionTask;
+    private volatile boolean closed = false;
+    private volatile boolean retired = false;
+
+    /**
+     * @param session            - Session holding the SMTP settings and credentials.
+     * @param name               - Name used in log messages.
+     * @param limiter            - Rate limits each message waits for before it is sent.
+     * @param maxSize            - Most transports open at a time.
+     * @param maxWaitMillis      - How long a sender waits for a transport when all are in use.
+     * @param idleTimeoutMillis  - How long a transport may stay idle before it is closed.
+     * @param validationMillis   - Idle time after which a transport is checked with NOOP before reuse.
+     */
+    TransportPool(Session session, String name, RateLimiter limiter, int maxSize, long maxWaitMillis, long idleTimeoutMillis, long validationMillis)
+    {
+        this.session = session;
+        this.name = name;
+        this.limiter = limiter;
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+        this.maxWaitMillis = maxWaitMillis;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(validationMillis);
+
+        long sweepMillis = Math.max(10, Math.min(idleTimeoutMillis / 2, 30000));
+        this.evictionTask = evictor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run()
+            {
+                closeIdle();
+            }
+        }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the message over a pooled transport. A failure on a reused transport is assumed
+     * to be a connection the server dropped, and the message is sent once more over a new one.
+     *
+     * @param message - Message with its recipients set.
+     * @throws SendFailedException if the server rejected the message or its recipients.
+     * @throws MessagingException if the message could not be sent.
+     */
+    void send(Message message) throws MessagingException
+    {
+        MessagingException failure = sendAll(Collections.singletonList(message))[0];
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Sends the messages one after another over a single pooled transport, reconnecting as
+     * needed. Each message first waits for the rate limiter. A failure on a transport that
+     * had already sent a message is assumed to be a connection the server dropped, and that
+     * message is sent once more over a new one.
+     *
+     * @param messages - Messages with their recipients set.
+     * @return MessagingException[] - The failure for each message, null for those that were sent.
+     */
+    MessagingException[] sendAll(List<? extends Message> messages)
+    {
+        MessagingException[] failures = new MessagingException[messages.size()];
+        for (int i = 0; i < failures.length; i++) {
+            try {
+                saveChanges(messages.get(i));
+            }
+            catch (MessagingException e) {
+                failures[i] = e;
+            }
+        }
+
+        PooledTransport pooled = null;
+        boolean reconnect = false;
+        try {
+            for (int i = 0; i < failures.length; i++) {
+                if (failures[i] != null) {
+                    continue;
+                }
+                if (!reconnect) {
+                    /** A message sent again after a dropped connection keeps the token it took. */
+                    try {
+                        this.limiter.acquire(messages.get(i));
+                    }
+                    catch (MessagingException e) {
+                        failures[i] = e;
+                        continue;
+                    }
+                }
+                if (pooled == null) {
+                    try {
+                        pooled = reconnect ? borrowNew() : borrow();
+                    }
+                    catch (MessagingException e) {
+                        /** Without a connection none of the remaining messages can be sent. */
+                        for (int j = i; j < failures.length; j++) {
+                            if (failures[j] == null) {
+                                failures[j] = e;
+                            }
+                        }
+                        break;
+                    }
+                }
+                Message message = messages.get(i);
+                try {
+                    pooled.transport.sendMessage(message, message.getAllRecipients());
+                    pooled.reused = true;
+                    reconnect = false;
+                }
+                catch (MessagingException e) {
+                    int code = replyCode(e);
+                    if (e instanceof SendFailedException && code > 0) {
+                        failures[i] = e;
+                        /** 421 means the server is closing the channel, otherwise check it is still open. */
+                        if (code == SERVICE_NOT_AVAILABLE || !pooled.transport.isConnected()) {
+                            discard(pooled);
+                            pooled = null;
+                        }
+                        reconnect = false;
+                        continue;
+                    }
+                    boolean reused = pooled.reused;
+                    discard(pooled);
+                    pooled = null;
+                    if (reused && !reconnect) {
+                        logger.debug("Reused transport for " + this.name + " failed, reconnecting: " + e.getMessage());
+                        reconnect = true;
+                        i--;
+                    }
+                    else {
+                        failures[i] = e;
+                        reconnect = false;
+                    }
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            if (pooled != null) {
+                discard(pooled);
+                pooled = null;
+            }
+            throw e;
+        }
+        finally {
+            if (pooled != null) {
+                release(pooled);
+            }
+        }
+        for (MessagingException failure : failures) {
+            if (failure == null) {
+                this.limiter.recordSent();
+            }
+            else {
+                this.limiter.recordFailed();
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return int - Connected transports waiting in the pool.
+     */
+    int getIdleCount()
+    {
+        return this.idle.size();
+    }
+
+    /**
+     * Closes the idle transports and refuses further sends. Transports in use are closed when
+     * they are returned.
+     */
+    void close()
+    {
+        this.closed = true;
+        retire();
+    }
+
+    /**
+     * Stops keeping transports open, for a pool that has been replaced. Idle transports are
+     * closed now and those in use when they are returned. Senders that still hold this pool
+     * are not refused; they send over a transport of their own that is closed afterwards.
+     */
+    void retire()
+    {
+        this.retired = true;
+        this.evictionTask.cancel(false);
+        PooledTransport pooled;
+        while ((pooled = this.idle.pollFirst()) != null) {
+            closeQuietly(pooled);
+        }
+    }
+
+    /**
+     * Takes the most recently used idle transport that is still connected, or connects a new one.
+     */
+    private PooledTransport borrow() throws MessagingException
+    {
+        acquire();
+        try {
+            PooledTransport pooled;
+            while ((pooled = this.idle.pollFirst()) != null) {
+                long idleNanos = System.nanoTime() - pooled.lastUsed;
+                if (idleNanos > this.idleTimeoutNanos) {
+                    closeQuietly(pooled);
+                }
+                else if (idleNanos > this.validationIntervalNanos && !pooled.transport.isConnected()) {
+                    /** isConnected() on an SMTP transport issues a NOOP. */
+                    logger.debug("Discarding a dropped transport for " + this.name);
+                    closeQuietly(pooled);
+                }
+                else {
+                    pooled.reused = true;
+                    return pooled;
+                }
+            }
+            return connect();
+        }
+        catch (MessagingException e) {
+            this.permits.release();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /** Connects a new transport, used to retry after a reused one failed. */
+    private PooledTransport borrowNew() throws MessagingException
+    {
+        acquire();
+        try {
+            return connect();
+        }
+        catch (MessagingException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    private void acquire() throws MessagingException
+    {
+        if (this.closed) {
+            throw new MessagingException("Mail transport pool for " + this.name + " is closed");
+        }
+        try {
+            if (!this.permits.tryAcquire(this.maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("Timed out after " + this.maxWaitMillis + "ms waiting for a mail transport for " + this.name);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted waiting for a mail transport for " + this.name, e);
+        }
+    }
+
+    private PooledTransport connect() throws MessagingException
+    {
+        Transport transport = this.session.getTransport("smtp");
+        transport.connect();
+        logger.debug("Opened a mail transport for " + this.name);
+        return new PooledTransport(transport);
+    }
+
+    private void release(PooledTransport pooled)
+    {
+        pooled.lastUsed = System.nanoTime();
+        this.idle.offerFirst(pooled);
+        if (this.retired && this.idle.removeFirstOccurrence(pooled)) {
+            /** Checked after the offer so that a transport returned while retire() runs is still closed. */
+            closeQuietly(pooled);
+        }
+        this.permits.release();
+    }
+
+    private void discard(PooledTransport pooled)
+    {
+        closeQuietly(pooled);
+        this.permits.release();
+    }
+
+    /**
+     * Closes transports idle longer than the idle timeout. The least recently used are at
+     * the end of the deque.
+     */
+    private void closeIdle()
+    {
+        long now = System.nanoTime();
+        Iterator<PooledTransport> it = this.idle.descendingIterator();
+        while (it.hasNext()) {
+            PooledTransport pooled = it.next();
+            if (now - pooled.lastUsed <= this.idleTimeoutNanos) {
+                break;
+            }
+            if (this.idle.removeLastOccurrence(pooled)) {
+                logger.debug("Closing an idle mail transport for " + this.name);
+                closeQuietly(pooled);
+            }
+        }
+    }
+
+    private static void closeQuietly(PooledTransport pooled)
+    {
+        try {
+            pooled.transport.close();
+        }
+        catch (MessagingException e) {
+            logger.debug("Unable to close mail transport: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Updates the message headers to match its content, keeping the Message-ID of an earlier
+     * save so that a spooled or retried message is sent with the same id each time.
+     *
+     * @param message - Message to save.
+     */
+    static void saveChanges(Message message) throws MessagingException
+    {
+        String[] messageId = message.getHeader("Message-ID");
+        message.saveChanges();
+        if (messageId != null && messageId.length > 0) {
+            message.setHeader("Message-ID", messageId[0]);
+        }
+    }
+
+    /** @return int - The SMTP reply code carried by the exception or those chained to it, -1 if none. */
+    static int replyCode(Exception failure)
+    {
+        int code = -1;
+        for (Exception e = failure; e != null; e = (e instanceof MessagingException) ? ((MessagingException) e).getNextException() : null) {
+            int current = -1;
+            if (e instanceof SMTPSendFailedException) {
+                current = ((SMTPSendFailedException) e).getReturnCode();
+            }
+            else if (e instanceof SMTPAddressFailedException) {
+                current = ((SMTPAddressFailedException) e).getReturnCode();
+            }
+            else if (e instanceof SMTPSenderFailedException) {
+                current = ((SMTPSenderFailedException) e).getReturnCode();
+            }
+            /** A permanent rejection anywhere in the chain makes the whole failure permanent. */
+            if (current >= 500) {
+                return current;
+            }
+            if (current > 0) {
+                code = current;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Stops the shared idle transport eviction thread. It is started again if it is needed after this.
+     */
+    static synchronized void shutdownEvictor()
+    {
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService evictor()
+    {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "mail-transport-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return evictor;
+    }
+
+    private static final class PooledTransport
+    {
+        final Transport transport;
+        volatile long lastUsed = System.nanoTime();
+        boolean reused = false;
+
+        PooledTransport(Transport transport)
+        {
+            this.transport = transport;
+        }
+    }
+}
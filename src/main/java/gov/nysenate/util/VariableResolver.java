@@ -0,0 +1,173 @@
+package gov.nysenate.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.ConfigurationException;
+
+
+/**
+ * Resolves {{variables}} across a whole set of property values at once.
+ *
+ * Each raw value is parsed a single time into a {@link Template} of alternating literal
+ * text and key references. Keys are then resolved depth first so that every referenced
+ * key is resolved (and cached) before the keys that depend on it, making the total work
+ * linear in the combined length of the values. References to keys that do not exist
+ * resolve to the empty string. A chain of references that leads back to itself is
+ * reported as a ConfigurationException naming the keys involved.
+ */
+final class VariableResolver
+{
+    private static final String VARIABLE_START = "{{";
+    private static final String VARIABLE_END = "}}";
+
+    /** Parsed templates for keys that contain at least one variable. */
+    private final Map<String, Template> templates = new HashMap<String, Template>();
+
+    /** Keys resolved so far, including every key without variables. */
+    private final Map<String, String> resolved;
+
+    /** Keys currently being resolved, in order, used to detect and report cycles. */
+    private final LinkedHashSet<String> resolving = new LinkedHashSet<String>();
+
+    private VariableResolver(Map<String, String> rawValues)
+    {
+        this.resolved = new HashMap<String, String>(rawValues.size() * 2);
+        for (Map.Entry<String, String> entry : rawValues.entrySet()) {
+            Template template = Template.parse(entry.getValue());
+            if (template == null) {
+                this.resolved.put(entry.getKey(), entry.getValue());
+            }
+            else {
+                this.templates.put(entry.getKey(), template);
+            }
+        }
+    }
+
+    /**
+     * @param rawValues - Property values as read from the property file.
+     * @return Map<String, String> - New map of the same keys with all variables resolved.
+     * @throws ConfigurationException if the values reference each other in a cycle.
+     */
+    static Map<String, String> resolveAll(Map<String, String> rawValues) throws ConfigurationException
+    {
+        VariableResolver resolver = new VariableResolver(rawValues);
+        for (String key : resolver.templates.keySet()) {
+            resolver.resolve(key);
+        }
+        return resolver.resolved;
+    }
+
+    private String resolve(String key) throws ConfigurationException
+    {
+        String value = this.resolved.get(key);
+        if (value != null) {
+            return value;
+        }
+        Template template = this.templates.get(key);
+        if (template == null) {
+            return "";
+        }
+        if (!this.resolving.add(key)) {
+            throw new ConfigurationException("Cyclic variable reference: " + describeCycle(key));
+        }
+
+        StringBuilder sb = new StringBuilder(template.length);
+        sb.append(template.literals[0]);
+        for (int i = 0; i < template.references.length; i++) {
+            sb.append(resolve(template.references[i]));
+            sb.append(template.literals[i + 1]);
+        }
+        value = sb.toString();
+
+        this.resolving.remove(key);
+        this.resolved.put(key, value);
+        return value;
+    }
+
+    private String describeCycle(String repeatedKey)
+    {
+        StringBuilder sb = new StringBuilder();
+        boolean inCycle = false;
+        for (String key : this.resolving) {
+            inCycle |= key.equals(repeatedKey);
+            if (inCycle) {
+                sb.append(key).append(" -> ");
+            }
+        }
+        return sb.append(repeatedKey).toString();
+    }
+
+    /**
+     * A property value split into literal text and the keys referenced between them.
+     * There is always one more literal than there are references; literals may be empty.
+     */
+    static final class Template
+    {
+        final String[] literals;
+        final String[] references;
+
+        /** Length of the literal text, used to presize the resolved value. */
+        final int length;
+
+        private Template(String[] literals, String[] references, int length)
+        {
+            this.literals = literals;
+            this.references = references;
+            this.length = length;
+        }
+
+        /**
+         * @param value - Text without variables.
+         * @return Template - Template that renders as the text itself.
+         */
+        static Template literal(String value)
+        {
+            return new Template(new String[] {value}, new String[0], value.length());
+        }
+
+        /**
+         * @param value - Raw property value.
+         * @return Template - Parsed template or null if the value contains no variables.
+         */
+        static Template parse(String value)
+        {
+            List<String> literals = null;
+            List<String> references = null;
+            int literalStart = 0;
+            int length = 0;
+            int start = value.indexOf(VARIABLE_START);
+            while (start >= 0) {
+                int end = value.indexOf(VARIABLE_END, start + VARIABLE_START.length());
+                if (end < 0) {
+                    break;
+                }
+                String reference = value.substring(start + VARIABLE_START.length(), end);
+                if (reference.indexOf('\n') >= 0 || reference.indexOf('\r') >= 0) {
+                    /** Variables never span lines; skip this opening and keep looking. */
+                    start = value.indexOf(VARIABLE_START, start + 1);
+                    continue;
+                }
+                if (literals == null) {
+                    literals = new ArrayList<String>();
+                    references = new ArrayList<String>();
+                }
+                literals.add(value.substring(literalStart, start));
+                references.add(reference);
+                length += start - literalStart;
+                literalStart = end + VARIABLE_END.length();
+                start = value.indexOf(VARIABLE_START, literalStart);
+            }
+            if (literals == null) {
+                return null;
+            }
+            literals.add(value.substring(literalStart));
+            length += value.length() - literalStart;
+            return new Template(literals.toArray(new String[literals.size()]),
+                                references.toArray(new String[references.size()]), length);
+        }
+    }
+}
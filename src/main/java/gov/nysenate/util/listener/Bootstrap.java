@@ -0,0 +1,293 @@
+package gov.nysenate.util.listener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Starts a set of {@link Component}s in dependency order, running those that do not depend
+ * on each other in parallel on a bounded number of threads, and stops them in the reverse
+ * order.
+ *
+ * Startup fails fast: once a component fails no further components are started, and the
+ * ones that had already started are stopped before start() throws. The time each component
+ * took to start is logged and kept for {@link #getStartTimes()}. Once started, the
+ * components can optionally be warmed up in parallel with {@link #warmUp()}.
+ */
+public final class Bootstrap
+{
+    private static final Logger logger = LoggerFactory.getLogger(Bootstrap.class);
+
+    /** Components in an order where every component follows its dependencies. */
+    private final List<Component> ordered;
+    private final int threads;
+
+    /** Components that started, in the order they finished starting. */
+    private final List<Component> started = new ArrayList<Component>();
+    private final Map<String, Long> startTimes = new LinkedHashMap<String, Long>();
+    private final Map<String, Long> warmUpTimes = new LinkedHashMap<String, Long>();
+    private final Map<String, String> warmUpFailures = new LinkedHashMap<String, String>();
+
+    /**
+     * @param components - The application's components.
+     * @param threads    - Most components started at the same time.
+     * @throws IllegalArgumentException if two components share a name, a dependency does not
+     *         exist, or the dependencies form a cycle.
+     */
+    public Bootstrap(Collection<? extends Component> components, int threads)
+    {
+        this.ordered = order(components);
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Starts every component and waits for them to finish starting.
+     *
+     * @throws Exception the first failure of a component's start(), after the components that
+     *         had started were stopped.
+     */
+    public void start() throws Exception
+    {
+        ExecutorService executor = newExecutor();
+        final CompletableFuture<Void> failed = new CompletableFuture<Void>();
+        Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<String, CompletableFuture<Void>>();
+        long bootStart = System.nanoTime();
+        try {
+            for (final Component component : this.ordered) {
+                List<CompletableFuture<Void>> dependencies = new ArrayList<CompletableFuture<Void>>();
+                for (String dependency : component.getDependencies()) {
+                    dependencies.add(futures.get(dependency));
+                }
+                CompletableFuture<Void> ready = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]));
+                futures.put(component.getName(), ready.thenRunAsync(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        /** Fail fast: components queued behind a failure are skipped. */
+                        if (!failed.isDone()) {
+                            startComponent(component, failed);
+                        }
+                    }
+                }, executor));
+            }
+            try {
+                CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).join();
+            }
+            catch (CompletionException e) {
+                /** The failure itself is reported through the failed future. */
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        if (failed.isCompletedExceptionally()) {
+            stop();
+            try {
+                failed.join();
+            }
+            catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw (Error) cause;
+            }
+        }
+        logger.info("Started " + this.started.size() + " components in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - bootStart) + "ms");
+    }
+
+    /**
+     * Runs warmUp() on every started component in parallel and waits for them to finish.
+     * Failures are logged and kept for {@link #getWarmUpFailures()}.
+     */
+    public void warmUp()
+    {
+        List<Component> warming;
+        synchronized (this) {
+            warming = new ArrayList<Component>(this.started);
+        }
+        ExecutorService executor = newExecutor();
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        try {
+            for (final Component component : warming) {
+                futures.add(CompletableFuture.runAsync(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        warmUpComponent(component);
+                    }
+                }, executor));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Stops the started components, each after the components that depend on it. A failure to
+     * stop one component is logged and the rest are still stopped.
+     */
+    public void stop()
+    {
+        List<Component> stopping;
+        synchronized (this) {
+            stopping = new ArrayList<Component>(this.started);
+            this.started.clear();
+        }
+        Collections.reverse(stopping);
+        for (Component component : stopping) {
+            long start = System.nanoTime();
+            try {
+                component.stop();
+                logger.info("Stopped " + component.getName() + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            }
+            catch (Exception e) {
+                logger.error("Unable to stop " + component.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * @return Map<String, Long> - Milliseconds each started component took to start, in the
+     *                             order they finished.
+     */
+    public synchronized Map<String, Long> getStartTimes()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(this.startTimes));
+    }
+
+    /**
+     * @return Map<String, Long> - Milliseconds each component took to warm up, in the order
+     *                             they finished.
+     */
+    public synchronized Map<String, Long> getWarmUpTimes()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(this.warmUpTimes));
+    }
+
+    /**
+     * @return Map<String, String> - Error message of each component whose warm-up failed.
+     */
+    public synchronized Map<String, String> getWarmUpFailures()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, String>(this.warmUpFailures));
+    }
+
+    private ExecutorService newExecutor()
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "bootstrap-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void warmUpComponent(Component component)
+    {
+        long start = System.nanoTime();
+        try {
+            component.warmUp();
+        }
+        catch (Throwable e) {
+            logger.warn("Unable to warm up " + component.getName(), e);
+            synchronized (this) {
+                this.warmUpFailures.put(component.getName(), String.valueOf(e));
+            }
+            return;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logger.info("Warmed up " + component.getName() + " in " + elapsed + "ms");
+        synchronized (this) {
+            this.warmUpTimes.put(component.getName(), elapsed);
+        }
+    }
+
+    private void startComponent(Component component, CompletableFuture<Void> failed)
+    {
+        long start = System.nanoTime();
+        try {
+            component.start();
+        }
+        catch (Throwable e) {
+            logger.error("Unable to start " + component.getName(), e);
+            failed.completeExceptionally(e);
+            return;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logger.info("Started " + component.getName() + " in " + elapsed + "ms");
+        synchronized (this) {
+            this.started.add(component);
+            this.startTimes.put(component.getName(), elapsed);
+        }
+    }
+
+    /**
+     * @return List<Component> - The components with each one after its dependencies.
+     * @throws IllegalArgumentException if the components cannot be ordered.
+     */
+    private static List<Component> order(Collection<? extends Component> components)
+    {
+        Map<String, Component> byName = new LinkedHashMap<String, Component>();
+        for (Component component : components) {
+            if (byName.put(component.getName(), component) != null) {
+                throw new IllegalArgumentException("Duplicate component name: " + component.getName());
+            }
+        }
+        List<Component> ordered = new ArrayList<Component>(byName.size());
+        Set<String> visited = new HashSet<String>();
+        for (Component component : byName.values()) {
+            visit(component, byName, visited, new ArrayList<String>(), ordered);
+        }
+        return ordered;
+    }
+
+    private static void visit(Component component, Map<String, Component> byName, Set<String> visited,
+                              List<String> path, List<Component> ordered)
+    {
+        if (visited.contains(component.getName())) {
+            return;
+        }
+        if (path.contains(component.getName())) {
+            List<String> cycle = new ArrayList<String>(path.subList(path.indexOf(component.getName()), path.size()));
+            cycle.add(component.getName());
+            throw new IllegalArgumentException("Cyclic component dependencies: " + cycle);
+        }
+        path.add(component.getName());
+        for (String dependency : component.getDependencies()) {
+            Component required = byName.get(dependency);
+            if (required == null) {
+                throw new IllegalArgumentException(component.getName() + " depends on unknown component " + dependency);
+            }
+            visit(required, byName, visited, path, ordered);
+        }
+        path.remove(path.size() - 1);
+        visited.add(component.getName());
+        ordered.add(component);
+    }
+}
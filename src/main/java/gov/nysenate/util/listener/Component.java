@@ -0,0 +1,102 @@
+package gov.nysenate.util.listener;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * A piece of application state started at deploy and stopped at undeploy, such as a Config,
+ * a DB pool or a Mailer. Components name the components they depend on, and are started only
+ * after those have started and stopped before them.
+ *
+ * Components that do not depend on each other may be started at the same time on different
+ * threads, so start() must not rely on anything outside its dependencies.
+ *
+ * @see Bootstrap
+ */
+public abstract class Component
+{
+    private final String name;
+    private final List<String> dependencies;
+    private final List<HotPath> hotPaths = new CopyOnWriteArrayList<HotPath>();
+
+    /**
+     * @param name         - Unique name of the component, used in logs and by dependents.
+     * @param dependencies - Names of the components that must start before this one.
+     */
+    protected Component(String name, String... dependencies)
+    {
+        this.name = name;
+        this.dependencies = Collections.unmodifiableList(Arrays.asList(dependencies.clone()));
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public List<String> getDependencies()
+    {
+        return this.dependencies;
+    }
+
+    /**
+     * Builds the component's state.
+     * @throws Exception to abort the application startup.
+     */
+    public abstract void start() throws Exception;
+
+    /**
+     * Frees the component's resources. Only called if start() succeeded.
+     * @throws Exception which is logged; the remaining components are still stopped.
+     */
+    public void stop() throws Exception {}
+
+    /**
+     * Prepares the component for its first requests when warm-up is enabled, after every
+     * component has started. Runs the registered hot paths; override to also pre-touch pools or
+     * preload caches, calling super.warmUp().
+     *
+     * @throws Exception which is logged and reported; the application still becomes ready.
+     */
+    public void warmUp() throws Exception
+    {
+        for (HotPath hotPath : this.hotPaths) {
+            for (int i = 0; i < hotPath.iterations; i++) {
+                hotPath.path.run();
+            }
+        }
+    }
+
+    /**
+     * Registers code run repeatedly during warm-up, so that the JIT has compiled it before the
+     * first requests arrive.
+     *
+     * @param iterations - Number of times to run it, e.g. 10000 for C2 to compile a method.
+     * @param path       - Code that exercises a hot path without side effects.
+     */
+    protected void addHotPath(int iterations, Runnable path)
+    {
+        this.hotPaths.add(new HotPath(iterations, path));
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name;
+    }
+
+    private static final class HotPath
+    {
+        final int iterations;
+        final Runnable path;
+
+        HotPath(int iterations, Runnable path)
+        {
+            this.iterations = iterations;
+            this.path = path;
+        }
+    }
+}
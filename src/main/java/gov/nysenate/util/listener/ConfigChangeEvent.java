@@ -0,0 +1,140 @@
+package gov.nysenate.util.listener;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+
+/**
+ * The set of property keys changed by one or more reloads along with their old and new
+ * values. A key that was added has no old value and a key that was removed has no new value.
+ */
+public final class ConfigChangeEvent
+{
+    /** An event without any changed keys. */
+    public static final ConfigChangeEvent EMPTY =
+        new ConfigChangeEvent(Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap());
+
+    /** Old and new values of each changed key. A missing key maps to null. */
+    private final Map<String, String> oldValues;
+    private final Map<String, String> newValues;
+
+    /**
+     * @param oldValues - Value of each changed key before the reload, null if it was added.
+     * @param newValues - Value of each changed key after the reload, null if it was removed.
+     *                    Must contain the same keys as oldValues.
+     */
+    public ConfigChangeEvent(Map<String, String> oldValues, Map<String, String> newValues)
+    {
+        this.oldValues = Collections.unmodifiableMap(new HashMap<String, String>(oldValues));
+        this.newValues = Collections.unmodifiableMap(new HashMap<String, String>(newValues));
+    }
+
+    /**
+     * @return Set<String> - Keys changed by the reload.
+     */
+    public Set<String> getChangedKeys()
+    {
+        return this.oldValues.keySet();
+    }
+
+    /**
+     * @param key - Changed property key.
+     * @return String - Resolved value before the reload, null if the key did not exist.
+     */
+    public String getOldValue(String key)
+    {
+        return this.oldValues.get(key);
+    }
+
+    /**
+     * @param key - Changed property key.
+     * @return String - Resolved value after the reload, null if the key was removed.
+     */
+    public String getNewValue(String key)
+    {
+        return this.newValues.get(key);
+    }
+
+    /**
+     * @return boolean - True if no keys changed.
+     */
+    public boolean isEmpty()
+    {
+        return this.oldValues.isEmpty();
+    }
+
+    /**
+     * @param prefix - Key prefix such as "db", matching "db" itself and keys starting with "db.".
+     * @return boolean - True if any changed key falls under the prefix.
+     */
+    public boolean hasChangesUnder(String prefix)
+    {
+        for (String key : getChangedKeys()) {
+            if (isUnder(key, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param prefix - Key prefix such as "db", matching "db" itself and keys starting with "db.".
+     * @return ConfigChangeEvent - This event restricted to the keys under the prefix.
+     */
+    public ConfigChangeEvent forPrefix(String prefix)
+    {
+        Map<String, String> oldValues = new HashMap<String, String>();
+        Map<String, String> newValues = new HashMap<String, String>();
+        for (String key : getChangedKeys()) {
+            if (isUnder(key, prefix)) {
+                oldValues.put(key, this.oldValues.get(key));
+                newValues.put(key, this.newValues.get(key));
+            }
+        }
+        return new ConfigChangeEvent(oldValues, newValues);
+    }
+
+    /**
+     * Combines this event with one that happened after it. Keys keep their oldest old value
+     * and latest new value; keys that ended up back at their original value are dropped
+     * unless the later event reported them with equal values (e.g. a change to list values).
+     *
+     * @param later - Event that followed this one.
+     * @return ConfigChangeEvent
+     */
+    public ConfigChangeEvent merge(ConfigChangeEvent later)
+    {
+        Map<String, String> oldValues = new HashMap<String, String>(later.oldValues);
+        Map<String, String> newValues = new HashMap<String, String>(later.newValues);
+        for (String key : getChangedKeys()) {
+            oldValues.put(key, this.oldValues.get(key));
+            if (!later.newValues.containsKey(key)) {
+                newValues.put(key, this.newValues.get(key));
+            }
+        }
+        for (String key : getChangedKeys()) {
+            boolean reportedUnchanged = later.oldValues.containsKey(key)
+                && Objects.equals(later.oldValues.get(key), later.newValues.get(key));
+            if (Objects.equals(oldValues.get(key), newValues.get(key)) && !reportedUnchanged) {
+                oldValues.remove(key);
+                newValues.remove(key);
+            }
+        }
+        return new ConfigChangeEvent(oldValues, newValues);
+    }
+
+    static boolean isUnder(String key, String prefix)
+    {
+        return prefix.isEmpty() || (key.startsWith(prefix)
+            && (key.length() == prefix.length() || key.charAt(prefix.length()) == '.'));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ConfigChangeEvent" + getChangedKeys();
+    }
+}
@@ -0,0 +1,17 @@
+package gov.nysenate.util.listener;
+
+
+/**
+ * Receives the values that changed when a property file was reloaded. Register through
+ * {@link gov.nysenate.util.Config#addChangeListener(String, ConfigChangeListener)}.
+ *
+ * Events are delivered on the configuration's dispatch thread, never on the thread that
+ * read or reloaded the configuration, and one at a time in reload order.
+ */
+public interface ConfigChangeListener
+{
+    /**
+     * @param event - The keys that changed along with their old and new values.
+     */
+    void configChanged(ConfigChangeEvent event);
+}
@@ -1,7 +1,14 @@
 package gov.nysenate.util.listener;
 
+import java.util.List;
 import java.util.Observable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.configuration.AbstractFileConfiguration;
 import org.apache.commons.configuration.event.ConfigurationErrorEvent;
 import org.apache.commons.configuration.event.ConfigurationErrorListener;
 import org.apache.commons.configuration.event.ConfigurationEvent;
@@ -13,21 +20,126 @@ import org.slf4j.LoggerFactory;
 /**
  * NYSenateConfigurationListener listens to any changes to property files that have been loaded with
  * the {@link org.apache.commons.configuration.PropertiesConfiguration} class.
+ *
+ * Observers are only notified of completed file reloads. Individual property changes made
+ * through the configuration API are ignored so that they cannot trigger a rebuild in every
+ * observer.
+ *
+ * Notifications are delivered on a dedicated dispatch thread rather than the thread that
+ * reloaded the file, which is often a request thread reading the configuration. Reloads
+ * that arrive while a notification is still waiting to be delivered are coalesced into it,
+ * so a burst of reloads results in a single notification. ConfigChangeListeners receive the
+ * keys that changed and are only called when a key under their prefix changed.
  */
 public class NYSenateConfigurationListener extends Observable
              implements ConfigurationListener, ConfigurationErrorListener
 {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
-    public NYSenateConfigurationListener() {}
 
+    /** Single thread that delivers notifications in order. The thread exits when idle. */
+    private final ThreadPoolExecutor dispatcher;
+
+    private final List<Registration> changeListeners = new CopyOnWriteArrayList<Registration>();
+
+    /** Changes waiting to be delivered, null if no dispatch is scheduled. Guarded by this. */
+    private ConfigChangeEvent pendingEvent = null;
+
+    public NYSenateConfigurationListener()
+    {
+        this.dispatcher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "config-change-dispatch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        this.dispatcher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param listener - Listener to call when any key changes.
+     */
+    public void addChangeListener(ConfigChangeListener listener)
+    {
+        addChangeListener("", listener);
+    }
+
+    /**
+     * @param prefix   - Only keys equal to the prefix or starting with "prefix." are delivered.
+     * @param listener - Listener to call when a matching key changes.
+     */
+    public void addChangeListener(String prefix, ConfigChangeListener listener)
+    {
+        this.changeListeners.add(new Registration(prefix, listener));
+    }
+
+    /**
+     * @param listener - Listener to stop calling, for every prefix it was registered with.
+     */
+    public void removeChangeListener(ConfigChangeListener listener)
+    {
+        for (Registration registration : this.changeListeners) {
+            if (registration.listener == listener) {
+                this.changeListeners.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Stops delivering notifications once the one already scheduled, if any, has been delivered.
+     */
+    public void shutdown()
+    {
+        synchronized (this) {
+            this.dispatcher.shutdown();
+        }
+    }
+
+    /**
+     * Schedules notification of the given changes, merging them into any notification that
+     * has not been delivered yet. Does nothing once shut down.
+     *
+     * @param event - Keys changed by the reload.
+     */
+    public void configurationReloaded(ConfigChangeEvent event)
+    {
+        /** Checked and handed off under the lock shutdown() takes, so execute() is never rejected. */
+        synchronized (this) {
+            if (this.dispatcher.isShutdown()) {
+                return;
+            }
+            if (this.pendingEvent != null) {
+                this.pendingEvent = this.pendingEvent.merge(event);
+                return;
+            }
+            this.pendingEvent = event;
+            this.dispatcher.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    /**
+     * Notifies the Observers after a reload reported by a commons-configuration object this
+     * listener was registered with. The event does not say which keys changed, so no
+     * ConfigChangeListener is called.
+     * @deprecated Config reports its reloads through configurationReloaded(ConfigChangeEvent)
+     *             and no longer registers this listener with the property file.
+     */
+    @Deprecated
     @Override
     public void configurationChanged(ConfigurationEvent configurationEvent)
     {
-        if (!configurationEvent.isBeforeUpdate())
+        if (configurationEvent.getType() == AbstractFileConfiguration.EVENT_RELOAD && !configurationEvent.isBeforeUpdate())
         {
-            logger.info(String.format("Configuration updated - notifying %d observers", this.countObservers()));
-            setChanged();
-            notifyObservers(this.getClass());
+            configurationReloaded(ConfigChangeEvent.EMPTY);
         }
     }
 
@@ -38,4 +150,46 @@ public class NYSenateConfigurationListener extends Observable
         logger.error(configurationErrorEvent.getCause().getMessage() + " " +
                configurationErrorEvent.getCause().getStackTrace());
     }
+
+    private void dispatch()
+    {
+        ConfigChangeEvent event;
+        synchronized (this) {
+            event = this.pendingEvent;
+            this.pendingEvent = null;
+        }
+
+        logger.info(String.format("Configuration updated - notifying %d observers", this.countObservers()));
+        try {
+            setChanged();
+            notifyObservers(this.getClass());
+        }
+        catch (RuntimeException e) {
+            logger.error("Configuration observer failed for " + event, e);
+        }
+
+        for (Registration registration : this.changeListeners) {
+            if (event.hasChangesUnder(registration.prefix)) {
+                try {
+                    registration.listener.configChanged(
+                        registration.prefix.isEmpty() ? event : event.forPrefix(registration.prefix));
+                }
+                catch (RuntimeException e) {
+                    logger.error("Configuration change listener failed for " + event, e);
+                }
+            }
+        }
+    }
+
+    private static final class Registration
+    {
+        final String prefix;
+        final ConfigChangeListener listener;
+
+        Registration(String prefix, ConfigChangeListener listener)
+        {
+            this.prefix = prefix;
+            this.listener = listener;
+        }
+    }
 }
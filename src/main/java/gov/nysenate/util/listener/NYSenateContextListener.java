@@ -2,7 +2,11 @@ package gov.nysenate.util.listener;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
+import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletContextEvent;
 import jakarta.servlet.ServletContextListener;
 import jakarta.servlet.annotation.WebListener;
@@ -10,6 +14,9 @@ import jakarta.servlet.annotation.WebListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import gov.nysenate.util.ConfigParsers;
+import gov.nysenate.util.Lifecycle;
+
 
 /**
  * NYSenateContextListener is used to call initialization methods when the context is (re)deployed and
@@ -30,16 +37,54 @@ import org.slf4j.LoggerFactory;
  *   * boolean bootstrap() - returns false on failure
  *   * boolean shutdown() - returns false on failure to free resources
  *
+ * Or it can declare its state as components with their dependencies, which are started in
+ * parallel where the dependencies allow and stopped in reverse order, see {@link Bootstrap}:
+ *
+ *   * Collection<Component> components()
+ *
+ * bootstrap() and shutdown() are then optional; bootstrap() runs after the components have
+ * started and shutdown() before they are stopped. The number of components started at once
+ * defaults to the number of processors, up to 4, and can be set with:
+ *
+ *   <context-param>
+ *      <param-name>BootstrapThreads</param-name>
+ *      <param-value>4</param-value>
+ *   </context-param>
+ *
+ * Deploy time is recorded by phase in a {@link StartupReport} kept in the servlet context under
+ * the "startupReport" attribute. An optional warm-up phase runs warmUp() on every component,
+ * and a static warmUp() method of the Application class if it has one, before the report
+ * says the application is ready. It is enabled with:
+ *
+ *   <context-param>
+ *      <param-name>WarmUp</param-name>
+ *      <param-value>true</param-value>
+ *   </context-param>
+ *
+ * After shutdown() and the components have stopped, every Config, DB, DBRegistry and Mailer
+ * that is still open is drained in parallel and closed, see {@link Lifecycle}. Those still
+ * busy after the shutdown timeout are closed immediately and reported:
+ *
+ *   <context-param>
+ *      <param-name>ShutdownTimeout</param-name>
+ *      <param-value>30s</param-value>
+ *   </context-param>
+ *
  */
 @WebListener()
 public class NYSenateContextListener implements ServletContextListener
 {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    /** Time allowed for open pools and mail queues to drain on undeploy. */
+    private static final Duration DEFAULT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
     public String appClassName = "";
     public Class<?> appClass = null;
     Method bootstrap = null;
     Method shutdown = null;
+    Bootstrap components = null;
+    Duration shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
 
     public NYSenateContextListener() {}
 
@@ -50,33 +95,148 @@ public class NYSenateContextListener implements ServletContextListener
     public void contextInitialized(ServletContextEvent sce)
     {
         logger.info("Servlet Context Listener started.");
+        StartupReport report = new StartupReport();
+        sce.getServletContext().setAttribute(StartupReport.ATTRIBUTE, report);
+        shutdownTimeout = readShutdownTimeout(sce.getServletContext());
+        Method calling = null;
 
         try {
+            long phaseStart = System.nanoTime();
             appClassName = sce.getServletContext().getInitParameter("Application");
             appClass = Class.forName(appClassName);
 
-            bootstrap = appClass.getMethod("bootstrap");
-            shutdown = appClass.getMethod("shutdown");
+            Method componentList = findMethod(appClass, "components");
+            if (componentList == null) {
+                bootstrap = appClass.getMethod("bootstrap");
+                shutdown = appClass.getMethod("shutdown");
+            }
+            else {
+                bootstrap = findMethod(appClass, "bootstrap");
+                shutdown = findMethod(appClass, "shutdown");
+            }
+            Method warmUp = findMethod(appClass, "warmUp");
+            phaseStart = endPhase(report, "classLoad", phaseStart);
+
+            boolean buildStatus = true;
+            if (componentList != null) {
+                calling = componentList;
+                buildStatus = startComponents(sce, componentList, report);
+                phaseStart = endPhase(report, "components", phaseStart);
+            }
 
             /** Build instances, initialize cache, and set the init attribute to true if succeeded */
-            boolean buildStatus = (Boolean)bootstrap.invoke(null); // null ignored for static methods
-            logger.info("Bootstrapped using ApplicationFactory: " + buildStatus);
+            if (buildStatus && bootstrap != null) {
+                calling = bootstrap;
+                buildStatus = (Boolean)bootstrap.invoke(null); // null ignored for static methods
+                logger.info("Bootstrapped using ApplicationFactory: " + buildStatus);
+                phaseStart = endPhase(report, "bootstrap", phaseStart);
+                if (!buildStatus) {
+                    report.failed(appClassName + ".bootstrap() returned false");
+                }
+            }
+
+            if (buildStatus && Boolean.parseBoolean(sce.getServletContext().getInitParameter("WarmUp"))) {
+                warmUp(warmUp, report);
+                endPhase(report, "warmUp", phaseStart);
+            }
+            if (buildStatus) {
+                report.ready();
+            }
+            logger.info(report.toString());
             sce.getServletContext().setAttribute("init", buildStatus);
         }
         catch (NoSuchMethodException e) {
             logger.error("Factory class: "+appClassName+" must implement static boolean boostrap() and boolean shutdown() methods.", e);
+            report.failed(e.toString());
         }
         catch (ClassNotFoundException e) {
             logger.error("Factory class: "+appClassName+" not found.", e);
+            report.failed(e.toString());
         }
         catch (IllegalAccessException e) {
-            logger.error("Unable to call "+appClassName+"."+bootstrap.getName(), e);
+            logger.error("Unable to call "+appClassName+"."+calling.getName(), e);
+            report.failed(e.toString());
         }
         catch (IllegalArgumentException e) {
-            logger.error("Unable to call "+appClassName+"."+bootstrap.getName(), e);
+            logger.error("Unable to call "+appClassName+"."+calling.getName(), e);
+            report.failed(e.toString());
         }
         catch (InvocationTargetException e) {
-            logger.error("Unable to call "+appClassName+"."+bootstrap.getName(), e);
+            logger.error("Unable to call "+appClassName+"."+calling.getName(), e);
+            report.failed(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * Starts the components returned by the Application's components() method.
+     * @return boolean - False if a component failed to start.
+     */
+    private boolean startComponents(ServletContextEvent sce, Method componentList, StartupReport report)
+        throws IllegalAccessException, InvocationTargetException
+    {
+        @SuppressWarnings("unchecked")
+        Collection<? extends Component> declared = (Collection<? extends Component>)componentList.invoke(null);
+        String threads = sce.getServletContext().getInitParameter("BootstrapThreads");
+        Bootstrap starting = null;
+        try {
+            starting = new Bootstrap(declared, (threads == null || threads.trim().isEmpty())
+                ? Math.min(4, Runtime.getRuntime().availableProcessors()) : Integer.parseInt(threads.trim()));
+            starting.start();
+            components = starting;
+            return true;
+        }
+        catch (Exception e) {
+            logger.error("Unable to start the components of "+appClassName, e);
+            report.failed(e.toString());
+            return false;
+        }
+        finally {
+            if (starting != null) {
+                report.componentsStarted(starting.getStartTimes());
+            }
+        }
+    }
+
+    /**
+     * Warms up the started components and calls the Application's warmUp() method if it has
+     * one. Failures are logged and reported but do not stop the application becoming ready.
+     */
+    private void warmUp(Method warmUp, StartupReport report)
+    {
+        if (components != null) {
+            components.warmUp();
+            report.componentsWarmedUp(components.getWarmUpTimes(), components.getWarmUpFailures());
+        }
+        if (warmUp != null) {
+            try {
+                warmUp.invoke(null);
+            }
+            catch (Exception e) {
+                logger.warn("Unable to call "+appClassName+"."+warmUp.getName(), e);
+                report.warmUpFailed(appClassName + ".warmUp()", String.valueOf(e instanceof InvocationTargetException ? e.getCause() : e));
+            }
+        }
+    }
+
+    /**
+     * Records the time since phaseStart as the phase's duration.
+     * @return long - The start of the next phase.
+     */
+    private static long endPhase(StartupReport report, String phase, long phaseStart)
+    {
+        long now = System.nanoTime();
+        report.phase(phase, TimeUnit.NANOSECONDS.toMillis(now - phaseStart));
+        return now;
+    }
+
+    /** @return Method - The public static no argument method, or null if there is none. */
+    private static Method findMethod(Class<?> appClass, String name)
+    {
+        try {
+            return appClass.getMethod(name);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
         }
     }
 
@@ -102,5 +262,33 @@ public class NYSenateContextListener implements ServletContextListener
                 logger.error("Unable to call "+appClassName+"."+shutdown.getName(), e);
             }
         }
+        if (components != null) {
+            logger.info("Stopping application components.");
+            components.stop();
+            components = null;
+        }
+        Lifecycle.shutdownAll(shutdownTimeout);
+    }
+
+    /**
+     * Reads the ShutdownTimeout init parameter when the context starts, so that a malformed
+     * value is reported then and can never stop the shutdown from running.
+     *
+     * @param context - Servlet context holding the init parameters.
+     * @return Duration - The configured timeout, or the default if it is missing or malformed.
+     */
+    private Duration readShutdownTimeout(ServletContext context)
+    {
+        String timeout = context.getInitParameter("ShutdownTimeout");
+        if (timeout == null || timeout.trim().isEmpty()) {
+            return DEFAULT_SHUTDOWN_TIMEOUT;
+        }
+        try {
+            return ConfigParsers.DURATION.parse(timeout);
+        }
+        catch (IllegalArgumentException e) {
+            logger.error("Invalid ShutdownTimeout '" + timeout + "', using " + DEFAULT_SHUTDOWN_TIMEOUT.getSeconds() + "s", e);
+            return DEFAULT_SHUTDOWN_TIMEOUT;
+        }
     }
 }
@@ -0,0 +1,118 @@
+package gov.nysenate.util.listener;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Where the deploy time went and whether the application is ready, kept in the servlet
+ * context under {@link #ATTRIBUTE} by {@link NYSenateContextListener}.
+ *
+ * Phases are recorded in the order they ran:
+ *
+ *   classLoad  - loading the Application class
+ *   components - starting the declared components, see {@link Bootstrap}
+ *   bootstrap  - the Application's bootstrap() method
+ *   warmUp     - the optional warm-up of pools and hot code paths
+ *
+ * along with the time each component took to start and to warm up. The report is ready once
+ * startup succeeded and warm-up, if enabled, has finished.
+ */
+public final class StartupReport
+{
+    public static final String ATTRIBUTE = "startupReport";
+
+    private final long createdMillis = System.currentTimeMillis();
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private final Map<String, Long> componentStarts = new LinkedHashMap<String, Long>();
+    private final Map<String, Long> componentWarmUps = new LinkedHashMap<String, Long>();
+    private final Map<String, String> warmUpFailures = new LinkedHashMap<String, String>();
+    private volatile boolean ready = false;
+    private volatile String failure = null;
+    private volatile long readyMillis = -1;
+
+    synchronized void phase(String name, long millis)
+    {
+        this.phases.put(name, millis);
+    }
+
+    synchronized void componentsStarted(Map<String, Long> startTimes)
+    {
+        this.componentStarts.putAll(startTimes);
+    }
+
+    synchronized void componentsWarmedUp(Map<String, Long> warmUpTimes, Map<String, String> failures)
+    {
+        this.componentWarmUps.putAll(warmUpTimes);
+        this.warmUpFailures.putAll(failures);
+    }
+
+    synchronized void warmUpFailed(String name, String error)
+    {
+        this.warmUpFailures.put(name, error);
+    }
+
+    void ready()
+    {
+        this.readyMillis = System.currentTimeMillis() - this.createdMillis;
+        this.ready = true;
+    }
+
+    void failed(String reason)
+    {
+        this.failure = reason;
+    }
+
+    /** @return boolean - True once startup and warm-up have finished without a startup failure. */
+    public boolean isReady()
+    {
+        return this.ready;
+    }
+
+    /** @return String - Why startup failed, or null if it has not. */
+    public String getFailure()
+    {
+        return this.failure;
+    }
+
+    /** @return long - Milliseconds from the start of deploy until ready, or -1 if not ready. */
+    public long getReadyMillis()
+    {
+        return this.readyMillis;
+    }
+
+    /** @return Map<String, Long> - Milliseconds spent in each phase, in the order they ran. */
+    public synchronized Map<String, Long> getPhases()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(this.phases));
+    }
+
+    /** @return Map<String, Long> - Milliseconds each component took to start. */
+    public synchronized Map<String, Long> getComponentStarts()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(this.componentStarts));
+    }
+
+    /** @return Map<String, Long> - Milliseconds each component took to warm up. */
+    public synchronized Map<String, Long> getComponentWarmUps()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(this.componentWarmUps));
+    }
+
+    /** @return Map<String, String> - Error message of each warm-up that failed, by component. */
+    public synchronized Map<String, String> getWarmUpFailures()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, String>(this.warmUpFailures));
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "StartupReport{ready=" + this.ready + ", readyMillis=" + this.readyMillis
+            + (this.failure != null ? ", failure=" + this.failure : "")
+            + ", phases=" + this.phases + ", componentStarts=" + this.componentStarts
+            + ", componentWarmUps=" + this.componentWarmUps
+            + (this.warmUpFailures.isEmpty() ? "" : ", warmUpFailures=" + this.warmUpFailures) + "}";
+    }
+}
@@ -2,26 +2,47 @@ package gov.nysenate.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import gov.nysenate.util.listener.ConfigChangeEvent;
+import gov.nysenate.util.listener.ConfigChangeListener;
 import gov.nysenate.util.listener.NYSenateConfigurationListener;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.configuration.ConversionException;
+import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /** Test the Config implementation using the test.app.properties resource file. *
  * @see Config */
 
 public class ConfigTest
 {
-    private NYSenateConfigurationListener listener;
     private Config config;
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     private static class DummyConfigConsumer implements Observer
     {
-        boolean isUpdated = false;
+        volatile boolean isUpdated = false;
         Observable observable;
 
         @Override
@@ -62,30 +83,301 @@ public class ConfigTest
     }
 
     @Test
-    public void configNotifiesObserversProperly() throws Exception
+    public void configReturnsListValues()
+    {
+        assertEquals(Arrays.asList("first", "second", "third"), config.getList("list.key"));
+        assertEquals(Arrays.asList("default"), config.getList("bad key", Arrays.asList("default")));
+    }
+
+    @Test
+    public void configReturnsTypedValues()
+    {
+        assertEquals(42, config.getInt("int.key", 0));
+        assertEquals(7L, config.getLong("bad key", 7L));
+        assertTrue(config.getBoolean("boolean.key", false));
+        assertEquals(Duration.ofSeconds(30), config.getDuration("duration.key", Duration.ZERO));
+        assertEquals(64L << 20, config.getDataSize("size.key", 0));
+        assertEquals(TimeUnit.SECONDS, config.getEnum("enum.key", TimeUnit.class, TimeUnit.DAYS));
+        assertEquals(Arrays.asList(1, 2, 3), config.getList("int.list.key", ConfigParsers.INT));
+
+        ConfigKey<Integer> key = config.key("int.key", ConfigParsers.INT, 0);
+        assertEquals(Integer.valueOf(42), key.get());
+        assertEquals(Integer.valueOf(-1), config.key("bad key", ConfigParsers.INT, -1).get());
+    }
+
+    @Test(expected = ConversionException.class)
+    public void configRejectsInvalidTypedValues()
+    {
+        config.getInt("bad.int.key", 0);
+    }
+
+    @Test
+    public void configReadsDoNotNotifyObservers() throws Exception
     {
         DummyConfigConsumer d1 = new DummyConfigConsumer();
         DummyConfigConsumer d2 = new DummyConfigConsumer();
+        config.notifyOnChange(d1);
+        config.notifyOnChange(d2);
+
+        /** Reading a variable value is served from the resolved snapshot and must not
+         * write back to the configuration. */
+        assertEquals("simple_value variable", config.getValue("variable.key"));
+        assertEquals("simple_value variable", config.getValue("variable.key"));
 
         assertFalse(d1.isUpdated);
         assertFalse(d2.isUpdated);
+    }
 
-        config.notifyOnChange(d1);
-        assertEquals(1, listener.countObservers());
-
-        config.notifyOnChange(d2);
-        assertEquals(2, listener.countObservers());
+    @Test
+    public void configNotifiesObserversOnlyWhenReloadChangesValues() throws Exception
+    {
+        File propertyFile = tempFolder.newFile("reload.properties");
+        writeProperties(propertyFile, "reload.key = first\nvariable.key = {{reload.key}} value\n");
 
-        /** Trigger an update on the properties file using a variable value
-         * which sets the key value again. */
-        config.getValue("variable.key");
+        FileChangedReloadingStrategy strategy = new FileChangedReloadingStrategy();
+        strategy.setRefreshDelay(0);
+        Config reloadConfig = new Config(propertyFile.getAbsolutePath(), strategy);
+        DummyConfigConsumer d1 = new DummyConfigConsumer();
+        reloadConfig.notifyOnChange(d1);
+        assertEquals("first value", reloadConfig.getValue("variable.key"));
 
-        /** Check that update was called on observers */
-        assertTrue(d1.isUpdated);
-        assertTrue(d2.isUpdated);
+        /** Touching the file without changing a value reloads it but is not a change. */
+        writeProperties(propertyFile, "reload.key = first\nvariable.key = {{reload.key}} value\n");
+        reloadConfig.refresh();
+        assertFalse(d1.isUpdated);
 
-        /** And that the Observable type was correct */
+        writeProperties(propertyFile, "reload.key = second\nvariable.key = {{reload.key}} value\n");
+        reloadConfig.refresh();
+        awaitUpdate(d1);
         assertEquals(NYSenateConfigurationListener.class, d1.observable.getClass());
-        assertEquals(NYSenateConfigurationListener.class, d2.observable.getClass());
+        assertEquals("second value", reloadConfig.getValue("variable.key"));
+    }
+
+    @Test
+    public void configKeepsPreviousValuesWhenReloadCannotBeParsed() throws Exception
+    {
+        File propertyFile = tempFolder.newFile("typed.properties");
+        writeProperties(propertyFile, "port = 25\nname = first\n");
+
+        FileChangedReloadingStrategy strategy = new FileChangedReloadingStrategy();
+        strategy.setRefreshDelay(0);
+        Config reloadConfig = new Config(propertyFile.getAbsolutePath(), strategy);
+        ConfigKey<Integer> port = reloadConfig.key("port", ConfigParsers.INT, 0);
+        assertEquals(Integer.valueOf(25), port.get());
+
+        writeProperties(propertyFile, "port = twenty five\nname = second\n");
+        reloadConfig.refresh();
+        assertEquals(Integer.valueOf(25), port.get());
+        assertEquals("first", reloadConfig.getValue("name"));
+
+        writeProperties(propertyFile, "port = 587\nname = third\n");
+        reloadConfig.refresh();
+        assertEquals(Integer.valueOf(587), port.get());
+        assertEquals("third", reloadConfig.getValue("name"));
+    }
+
+    @Test
+    public void configReloadsWatchedFileInBackground() throws Exception
+    {
+        File propertyFile = tempFolder.newFile("watched.properties");
+        writeProperties(propertyFile, "watched.key = first\n");
+        Config watchedConfig = new Config(propertyFile.getAbsolutePath());
+        DummyConfigConsumer d1 = new DummyConfigConsumer();
+        watchedConfig.notifyOnChange(d1);
+        watchedConfig.watchForChanges(Duration.ofMillis(50));
+        try {
+            writeProperties(propertyFile, "watched.key = second\n");
+            awaitUpdate(d1);
+            assertEquals("second", watchedConfig.getValue("watched.key"));
+        }
+        finally {
+            watchedConfig.stopWatching();
+        }
+    }
+
+    @Test
+    public void configDeliversChangedKeysToPrefixListeners() throws Exception
+    {
+        File propertyFile = tempFolder.newFile("listened.properties");
+        writeProperties(propertyFile, "db.host = one\ndb.name = app\nmail.host = smtp\n");
+
+        FileChangedReloadingStrategy strategy = new FileChangedReloadingStrategy();
+        strategy.setRefreshDelay(0);
+        Config reloadConfig = new Config(propertyFile.getAbsolutePath(), strategy);
+        final BlockingQueue<ConfigChangeEvent> dbEvents = new LinkedBlockingQueue<ConfigChangeEvent>();
+        final BlockingQueue<ConfigChangeEvent> mailEvents = new LinkedBlockingQueue<ConfigChangeEvent>();
+        reloadConfig.addChangeListener("db", new ConfigChangeListener() {
+            @Override
+            public void configChanged(ConfigChangeEvent event)
+            {
+                dbEvents.add(event);
+            }
+        });
+        reloadConfig.addChangeListener("mail", new ConfigChangeListener() {
+            @Override
+            public void configChanged(ConfigChangeEvent event)
+            {
+                mailEvents.add(event);
+            }
+        });
+
+        writeProperties(propertyFile, "db.host = two\ndb.name = app\nmail.host = smtp\ndb.pass = secret\n");
+        reloadConfig.refresh();
+
+        ConfigChangeEvent event = dbEvents.poll(10, TimeUnit.SECONDS);
+        assertEquals(new HashSet<String>(Arrays.asList("db.host", "db.pass")), event.getChangedKeys());
+        assertEquals("one", event.getOldValue("db.host"));
+        assertEquals("two", event.getNewValue("db.host"));
+        assertEquals(null, event.getOldValue("db.pass"));
+        assertTrue(mailEvents.isEmpty());
+    }
+
+    @Test
+    public void configSubsetReadsKeysUnderPrefix() throws Exception
+    {
+        File propertyFile = tempFolder.newFile("subset.properties");
+        writeProperties(propertyFile, "db = main\ndb.host = one\ndb.pool.maxActive = 7\ndb-old.host = legacy\n"
+                                      + "dbx.host = other\nmail.host = smtp\n");
+        FileChangedReloadingStrategy strategy = new FileChangedReloadingStrategy();
+        strategy.setRefreshDelay(0);
+        Config reloadConfig = new Config(propertyFile.getAbsolutePath(), strategy);
+
+        ConfigView db = reloadConfig.subset("db");
+        assertEquals("one", db.getValue("host"));
+        assertEquals(7, db.subset("pool").getInt("maxActive", 0));
+        assertEquals("db.pool.maxActive", db.subset("pool").fullKey("maxActive"));
+        assertEquals(Arrays.asList("host", "pool.maxActive"), new ArrayList<String>(db.getKeys()));
+        assertSame(db.getKeys(), db.getKeys());
+        assertEquals(Arrays.asList("db", "db.host", "db.pool.maxActive"), new ArrayList<String>(reloadConfig.getKeys("db")));
+
+        final BlockingQueue<ConfigChangeEvent> poolEvents = new LinkedBlockingQueue<ConfigChangeEvent>();
+        db.subset("pool").addChangeListener(new ConfigChangeListener() {
+            @Override
+            public void configChanged(ConfigChangeEvent event)
+            {
+                poolEvents.add(event);
+            }
+        });
+        writeProperties(propertyFile, "db = main\ndb.host = two\ndb.pool.maxActive = 7\nmail.host = smtp\n");
+        reloadConfig.refresh();
+        assertEquals("two", db.getValue("host"));
+
+        writeProperties(propertyFile, "db = main\ndb.host = two\ndb.pool.maxActive = 9\nmail.host = smtp\n");
+        reloadConfig.refresh();
+        ConfigChangeEvent event = poolEvents.poll(10, TimeUnit.SECONDS);
+        assertEquals(Collections.singleton("db.pool.maxActive"), event.getChangedKeys());
+        assertEquals(9, db.subset("pool").getInt("maxActive", 0));
+        assertTrue(poolEvents.isEmpty());
+    }
+
+    @Test
+    public void configLayersOverrideInPrecedenceOrder() throws Exception
+    {
+        File defaults = tempFolder.newFile("defaults.properties");
+        File file = tempFolder.newFile("layered.properties");
+        File local = tempFolder.newFile("local.properties");
+        writeProperties(defaults, "db.host = defaulthost\ndb.port = 5432\ndb.name = app\ndb.user = app\ndb.pool.size = 4\n");
+        writeProperties(file, "db.host = filehost\ndb.port = 5433\ndb.name = app_test\ndb.url = {{db.host}}:{{db.port}}\n"
+            + "db.tags = a, b\n");
+        writeProperties(local, "db.user = me\n");
+
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("APP_DB_PORT", "6000");
+        environment.put("APP_DB_NAME", "envname");
+        environment.put("APP_UNRELATED", "ignored");
+        environment.put("APP_DB_TAGS", ",");
+        ConfigLayers layers = new ConfigLayers(environment)
+            .defaults(defaults.getAbsolutePath())
+            .environmentVariables("APP_")
+            .systemProperties()
+            .localOverride(local.getAbsolutePath());
+
+        System.setProperty("db.name", "sysname");
+        Config config;
+        Config shared;
+        try {
+            config = new Config(file.getAbsolutePath(), layers);
+            shared = new Config(file.getAbsolutePath(), layers);
+        }
+        finally {
+            System.clearProperty("db.name");
+        }
+
+        assertEquals("4", config.getValue("db.pool.size"));
+        assertEquals("defaults " + defaults.getAbsolutePath(), config.getSource("db.pool.size"));
+        assertEquals("filehost", config.getValue("db.host"));
+        assertEquals("file " + file.getAbsolutePath(), config.getSource("db.host"));
+        assertEquals("6000", config.getValue("db.port"));
+        assertEquals("env APP_DB_PORT", config.getSource("db.port"));
+        assertEquals("sysname", config.getValue("db.name"));
+        assertEquals("system db.name", config.getSource("db.name"));
+        assertEquals("me", config.getValue("db.user"));
+        assertEquals("override " + local.getAbsolutePath(), config.getSource("db.user"));
+        assertEquals("filehost:6000", config.getValue("db.url"));
+        assertEquals("", config.getValue("unrelated"));
+        assertEquals(null, config.getSource("unrelated"));
+        assertEquals("", config.getValue("db.tags"));
+        assertEquals(Arrays.asList("", ""), config.getList("db.tags"));
+
+        /** Layer files are checked along with the property file. */
+        writeProperties(local, "db.user = you\n");
+        config.refresh();
+        assertEquals("you", config.getValue("db.user"));
+        /** Each Config tracks the layer files it loaded, so sharing the layers does not hide the change. */
+        shared.refresh();
+        assertEquals("you", shared.getValue("db.user"));
+        shared.close();
+        writeProperties(defaults, "db.host = defaulthost\ndb.pool.size = 8\n");
+        config.refresh();
+        assertEquals("8", config.getValue("db.pool.size"));
+        config.close();
+    }
+
+    @Test
+    public void configWatchesLayerFilesInBackground() throws Exception
+    {
+        File file = tempFolder.newFile("watchedlayers.properties");
+        File local = new File(tempFolder.getRoot(), "watchedlocal.properties");
+        writeProperties(file, "db.user = app\n");
+        Config config = new Config(file.getAbsolutePath(), new ConfigLayers().localOverride(local.getAbsolutePath()));
+        DummyConfigConsumer d1 = new DummyConfigConsumer();
+        config.notifyOnChange(d1);
+        config.watchForChanges(Duration.ofMillis(50));
+        try {
+            /** The override file is created after the watch began. */
+            writeProperties(local, "db.user = me\n");
+            awaitUpdate(d1);
+            assertEquals("me", config.getValue("db.user"));
+            assertEquals("override " + local.getAbsolutePath(), config.getSource("db.user"));
+        }
+        finally {
+            config.close();
+        }
+    }
+
+    /** Waits for the dispatch thread to notify the observer. */
+    private static void awaitUpdate(DummyConfigConsumer consumer) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!consumer.isUpdated && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(consumer.isUpdated);
+    }
+
+    /** Writes the file and pushes its modification time forward so the change is always detected.
+     * The short sleep keeps the strategy's next check out of the millisecond it last checked in. */
+    private static void writeProperties(File file, String contents) throws Exception
+    {
+        Thread.sleep(10);
+        long lastModified = file.lastModified();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        }
+        finally {
+            writer.close();
+        }
+        file.setLastModified(Math.max(lastModified, System.currentTimeMillis()) + 2000);
     }
 }
@@ -0,0 +1,186 @@
+package gov.nysenate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test primary and replica routing against in-memory H2 databases.
+ * @see DBRegistry */
+
+public class DBRegistryTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File propertyFile;
+    private Config config;
+    private DBRegistry registry;
+
+    /** Keeps the locked replica database open with a password the registry does not know. */
+    private Connection lockedReplica;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        lockedReplica = DriverManager.getConnection("jdbc:h2:mem:registry_locked;DB_CLOSE_DELAY=-1", "sa", "unknown");
+        propertyFile = tempFolder.newFile("registry.properties");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (registry != null) {
+            registry.close();
+        }
+        lockedReplica.close();
+    }
+
+    @Test
+    public void readsAreBalancedAcrossReplicas() throws Exception
+    {
+        writeProperties("registry_replica_a", "registry_replica_b");
+        registry = newRegistry();
+
+        Connection first = registry.getReadConnection();
+        Connection second = registry.getReadConnection();
+        assertTrue(first.isReadOnly());
+        assertNotEquals(databaseName(first), databaseName(second));
+        assertTrue(databaseName(first).startsWith("registry_replica_"));
+
+        /** Returning one connection makes its replica the least loaded. */
+        String freed = databaseName(first);
+        first.close();
+        Connection third = registry.getReadConnection();
+        assertEquals(freed, databaseName(third));
+        second.close();
+        third.close();
+
+        Connection write = registry.getConnection();
+        assertEquals("registry_primary", databaseName(write));
+        assertFalse(write.isReadOnly());
+        write.close();
+    }
+
+    @Test
+    public void failedReplicaIsEjectedUntilHealthy() throws Exception
+    {
+        writeProperties("registry_locked");
+        registry = newRegistry();
+
+        /** The replica rejects the login, so reads fall back to the primary. */
+        Connection read = registry.getReadConnection();
+        assertEquals("registry_primary", databaseName(read));
+        assertTrue(read.isReadOnly());
+        read.close();
+        assertFalse(registry.getReplicaHealth().get("1"));
+
+        Connection write = registry.getConnection();
+        assertFalse(write.isReadOnly());
+        write.close();
+
+        Statement statement = lockedReplica.createStatement();
+        statement.execute("ALTER USER SA SET PASSWORD ''");
+        statement.close();
+        registry.checkHealth();
+        assertTrue(registry.getReplicaHealth().get("1"));
+
+        read = registry.getReadConnection();
+        assertEquals("registry_locked", databaseName(read));
+        read.close();
+    }
+
+    @Test
+    public void removedReplicaClosesOnceItsConnectionsAreReturned() throws Exception
+    {
+        writeProperties("registry_replica_a", "registry_replica_b");
+        registry = newRegistry();
+        Connection first = registry.getReadConnection();
+        Connection second = registry.getReadConnection();
+        Connection held = databaseName(first).equals("registry_replica_b") ? first : second;
+        (held == first ? second : first).close();
+        ConnectionPool removedPool = registry.getReplica("2").getDataSource().getPool();
+
+        /** Health checks are off, so only returning the connection can close the replica. */
+        writeProperties("registry_replica_a");
+        propertyFile.setLastModified(propertyFile.lastModified() + 2000);
+        config.refresh();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (registry.getReplica("2") != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNull(registry.getReplica("2"));
+        assertFalse(removedPool.isClosed());
+        assertEquals("registry_replica_b", databaseName(held));
+
+        held.close();
+        assertTrue(removedPool.isClosed());
+        Connection read = registry.getReadConnection();
+        assertEquals("registry_replica_a", databaseName(read));
+        read.close();
+    }
+
+    private DBRegistry newRegistry() throws Exception
+    {
+        FileChangedReloadingStrategy strategy = new FileChangedReloadingStrategy();
+        strategy.setRefreshDelay(0);
+        config = new Config(propertyFile.getAbsolutePath(), strategy);
+        return new DBRegistry(config, "db");
+    }
+
+    private static String databaseName(Connection connection) throws Exception
+    {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet rs = statement.executeQuery("SELECT DATABASE()");
+            rs.next();
+            return rs.getString(1).toLowerCase();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    private void writeProperties(String... replicas) throws Exception
+    {
+        FileWriter writer = new FileWriter(propertyFile);
+        try {
+            writer.write("db.health.interval = 0\n");
+            writeDatabase(writer, "db.primary", "registry_primary");
+            for (int i = 0; i < replicas.length; i++) {
+                writeDatabase(writer, "db.replica." + (i + 1), replicas[i]);
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private static void writeDatabase(FileWriter writer, String prefix, String databaseName) throws Exception
+    {
+        writer.write(prefix + ".driver = org.h2.Driver\n");
+        writer.write(prefix + ".url = jdbc:h2:mem:" + databaseName + ";DB_CLOSE_DELAY=-1\n");
+        writer.write(prefix + ".user = sa\n");
+        writer.write(prefix + ".pass =\n");
+        writer.write(prefix + ".pool.initialSize = 1\n");
+        writer.write(prefix + ".pool.minIdle = 1\n");
+        writer.write(prefix + ".pool.maxActive = 4\n");
+        writer.write(prefix + ".pool.maxIdle = 4\n");
+    }
+}
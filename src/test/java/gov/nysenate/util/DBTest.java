@@ -0,0 +1,585 @@
+package gov.nysenate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolConfiguration;
+import org.h2.jdbc.JdbcConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test the DB connection pool against in-memory H2 databases.
+ * @see DB */
+
+public class DBTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File propertyFile;
+    private Config config;
+    private DB db;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        propertyFile = tempFolder.newFile("db.properties");
+        writeProperties(propertyFile, "first");
+        FileChangedReloadingStrategy strategy = new FileChangedReloadingStrategy();
+        strategy.setRefreshDelay(0);
+        config = new Config(propertyFile.getAbsolutePath(), strategy);
+        db = new DB(config, "db");
+    }
+
+    @After
+    public void tearDown()
+    {
+        db.close();
+    }
+
+    @Test
+    public void dbSwapsPoolAndDrainsPreviousOnConfigChange() throws Exception
+    {
+        DataSource original = db.getDataSource();
+        ConnectionPool originalPool = original.getPool();
+        Connection held = db.getConnection();
+        assertEquals("first", databaseName(held));
+
+        writeProperties(propertyFile, "second");
+        config.refresh();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (db.getDataSource() == original && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNotSame(original, db.getDataSource());
+
+        /** New borrows use the new pool while the held connection keeps working. */
+        Connection fresh = db.getConnection();
+        assertEquals("second", databaseName(fresh));
+        fresh.close();
+        assertEquals("first", databaseName(held));
+
+        held.close();
+        deadline = System.currentTimeMillis() + 10000;
+        while (!originalPool.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(originalPool.isClosed());
+    }
+
+    @Test
+    public void dbKeepsPoolAndMetricsWhenReplacementCannotConnect() throws Exception
+    {
+        DataSource original = db.getDataSource();
+        Connection held = db.getConnection();
+        try {
+            /** H2 refuses to create the missing database, so the replacement pool cannot start. */
+            writeProperties(propertyFile, "missing;IFEXISTS=TRUE");
+            config.refresh();
+            Thread.sleep(500);
+            assertSame(original, db.getDataSource());
+            assertEquals(1, db.getMetrics().getActive());
+            assertEquals("first", databaseName(held));
+        }
+        finally {
+            held.close();
+        }
+        assertEquals(0, db.getMetrics().getActive());
+    }
+
+    @Test
+    public void dbKeepsPoolWhenOnlyMetricsAndCacheSettingsChange() throws Exception
+    {
+        DataSource original = db.getDataSource();
+        writeProperties(propertyFile, "db", "first", "metrics.slowQueryThreshold = 0ms", "cache.maxEntries = 10");
+        config.refresh();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (db.getMetrics().getSlowQueries() == 0 && System.currentTimeMillis() < deadline) {
+            Connection connection = db.getConnection();
+            try {
+                databaseName(connection);
+            }
+            finally {
+                connection.close();
+            }
+            Thread.sleep(20);
+        }
+        assertTrue(db.getMetrics().getSlowQueries() > 0);
+        assertSame(original, db.getDataSource());
+    }
+
+    @Test
+    public void dbReadsPoolPropertiesUnderPrefix()
+    {
+        PoolConfiguration p = db.getDataSource().getPoolProperties();
+        assertEquals(2, p.getInitialSize());
+        assertEquals(5, p.getMaxActive());
+        assertEquals(10000, p.getMaxWait());
+        assertEquals(300, p.getRemoveAbandonedTimeout());
+        assertFalse(p.isTestOnBorrow());
+        assertTrue(p.isTestWhileIdle());
+    }
+
+    @Test
+    public void dbRecordsStatementMetrics() throws Exception
+    {
+        Connection connection = db.getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            statement.execute("CREATE TABLE metrics_test (id INT, name VARCHAR(20))");
+            statement.execute("INSERT INTO metrics_test VALUES (1, 'one')");
+            statement.execute("INSERT INTO metrics_test VALUES (2, 'two')");
+            statement.close();
+        }
+        finally {
+            connection.close();
+        }
+
+        DBMetrics metrics = db.getMetrics();
+        assertEquals(3, metrics.getStatements().getCount());
+        assertEquals(1, metrics.getBorrowWait().getCount());
+        assertTrue(metrics.getConnectionCreate().getCount() >= 2);
+        assertEquals(2, metrics.getStatementsByShape().get("INSERT INTO metrics_test VALUES (?...)").getCount());
+        assertEquals(2, metrics.getIdle());
+        assertEquals(0, metrics.getActive());
+    }
+
+    @Test
+    public void queryBatchesInsertsAndStreamsRows() throws Exception
+    {
+        Connection connection = db.getConnection();
+        try {
+            connection.createStatement().execute("CREATE TABLE query_test (id INT PRIMARY KEY, name VARCHAR(20))");
+        }
+        finally {
+            connection.close();
+        }
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 1234; i++) {
+            ids.add(i);
+        }
+        DBQuery.Binder<Integer> binder = new DBQuery.Binder<Integer>() {
+            @Override
+            public void bind(PreparedStatement statement, Integer id) throws SQLException
+            {
+                statement.setInt(1, id);
+                statement.setString(2, "row " + id);
+            }
+        };
+        assertEquals(1234, db.query().batchUpdate("INSERT INTO query_test VALUES (?, ?)", ids, binder));
+
+        /** A duplicate key in the last batch rolls back every batch before it. */
+        try {
+            db.query().batchUpdate("INSERT INTO query_test VALUES (?, ?)", Arrays.asList(5000, 5001, 0), binder, 2);
+            fail("Expected the duplicate key to fail the batch");
+        }
+        catch (SQLException e) {
+            assertEquals(0, db.query().forEach("SELECT id FROM query_test WHERE id >= 5000", new DBQuery.RowCallback() {
+                @Override
+                public void processRow(ResultSet results) {}
+            }));
+        }
+
+        /** An Error from the binder after a batch was sent rolls it back too. */
+        try {
+            db.query().batchUpdate("INSERT INTO query_test VALUES (?, ?)", Arrays.asList(6000, 6001, 6002),
+                new DBQuery.Binder<Integer>() {
+                    @Override
+                    public void bind(PreparedStatement statement, Integer id) throws SQLException
+                    {
+                        if (id == 6002) {
+                            throw new OutOfMemoryError("binding " + id);
+                        }
+                        statement.setInt(1, id);
+                        statement.setString(2, "row " + id);
+                    }
+                }, 2);
+            fail("Expected the Error to fail the batch");
+        }
+        catch (OutOfMemoryError e) {
+            assertEquals(0, db.query().forEach("SELECT id FROM query_test WHERE id >= 6000", new DBQuery.RowCallback() {
+                @Override
+                public void processRow(ResultSet results) {}
+            }));
+        }
+
+        DBQuery.RowMapper<Integer> idMapper = new DBQuery.RowMapper<Integer>() {
+            @Override
+            public Integer map(ResultSet results) throws SQLException
+            {
+                return results.getInt(1);
+            }
+        };
+        Stream<Integer> rows = db.query().stream("SELECT id FROM query_test WHERE id >= ? ORDER BY id", idMapper, 1000);
+        try {
+            assertEquals(Arrays.asList(1000, 1001, 1002), rows.limit(3).collect(Collectors.toList()));
+            assertEquals(1, db.getMetrics().getActive());
+        }
+        finally {
+            rows.close();
+        }
+        assertEquals(0, db.getMetrics().getActive());
+        assertEquals(1234, db.query().stream("SELECT id FROM query_test", idMapper).count());
+        assertEquals(0, db.getMetrics().getActive());
+    }
+
+    @Test
+    public void queryReportsAutoCommitFailureWithBatchFailure() throws Exception
+    {
+        Connection connection = db.getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            statement.execute("CREATE TABLE commit_test (id INT PRIMARY KEY)");
+            statement.close();
+        }
+        finally {
+            connection.close();
+        }
+        try {
+            db.query().batchUpdate("INSERT INTO commit_test VALUES (?)", Arrays.asList(1),
+                new DBQuery.Binder<Integer>() {
+                    @Override
+                    public void bind(PreparedStatement statement, Integer id) throws SQLException
+                    {
+                        /** Closes the driver connection under the pool, so restoring auto-commit fails too. */
+                        statement.getConnection().unwrap(JdbcConnection.class).close();
+                        throw new SQLException("binding " + id);
+                    }
+                });
+            fail("Expected the binder to fail the batch");
+        }
+        catch (SQLException e) {
+            assertEquals("binding 1", e.getMessage());
+            assertTrue(e.getSuppressed().length > 0);
+        }
+    }
+
+    @Test
+    public void dbCachesPreparedStatementsPerConnection() throws Exception
+    {
+        Connection connection = db.getConnection();
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertEquals("first", preparedDatabaseName(connection, "SELECT DATABASE()"));
+            }
+            assertEquals(1, db.getMetrics().getStatementCacheMisses());
+            assertEquals(2, db.getMetrics().getStatementCacheHits());
+
+            /** With two statements per connection, a third evicts the longest cached one. */
+            assertEquals("first", preparedDatabaseName(connection, "SELECT DATABASE() FROM DUAL"));
+            assertEquals("first", preparedDatabaseName(connection, "SELECT LOWER(DATABASE())"));
+            assertEquals(1, db.getMetrics().getStatementCacheEvictions());
+            assertEquals("first", preparedDatabaseName(connection, "SELECT DATABASE()"));
+            assertEquals(4, db.getMetrics().getStatementCacheMisses());
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void dbStatementCacheSurvivesAbandonmentAndPoolSwap() throws Exception
+    {
+        File cachedFile = tempFolder.newFile("cached.properties");
+        writeProperties(cachedFile, "cached", "cached_first", "pool.removeAbandonedTimeout = 1s", "pool.logAbandoned = false");
+        FileChangedReloadingStrategy strategy = new FileChangedReloadingStrategy();
+        strategy.setRefreshDelay(0);
+        Config cachedConfig = new Config(cachedFile.getAbsolutePath(), strategy);
+        DB cached = new DB(cachedConfig, "cached");
+        try {
+            /** A connection abandoned with a cached statement has it closed with the connection. */
+            Connection abandoned = cached.getConnection();
+            PreparedStatement statement = abandoned.prepareStatement("SELECT DATABASE()");
+            Statement driverStatement = statement.unwrap(Statement.class);
+            statement.close();
+            assertFalse(driverStatement.isClosed());
+            Thread.sleep(1100);
+            cached.getDataSource().getPool().checkAbandoned();
+            assertEquals(1, cached.getMetrics().getAbandonedRemovals());
+            assertTrue(driverStatement.isClosed());
+            Connection fresh = cached.getConnection();
+            assertEquals("cached_first", preparedDatabaseName(fresh, "SELECT DATABASE()"));
+            fresh.close();
+
+            /** Statements cached by the replaced pool are never handed out by the new one. */
+            DataSource original = cached.getDataSource();
+            writeProperties(cachedFile, "cached", "cached_second", "pool.removeAbandonedTimeout = 1s", "pool.logAbandoned = false");
+            cachedConfig.refresh();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cached.getDataSource() == original && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            for (int i = 0; i < 2; i++) {
+                Connection swapped = cached.getConnection();
+                assertEquals("cached_second", preparedDatabaseName(swapped, "SELECT DATABASE()"));
+                swapped.close();
+            }
+            assertTrue(cached.getMetrics().getStatementCacheHits() >= 1);
+        }
+        finally {
+            cached.close();
+            cachedConfig.close();
+        }
+    }
+
+    @Test
+    public void cacheServesRepeatedQueriesUntilInvalidated() throws Exception
+    {
+        Connection connection = db.getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            statement.execute("CREATE TABLE cache_test (id INT PRIMARY KEY, name VARCHAR(20))");
+            statement.execute("INSERT INTO cache_test VALUES (1, 'one'), (2, 'two'), (3, 'three')");
+            statement.close();
+        }
+        finally {
+            connection.close();
+        }
+        final CountDownLatch loading = new CountDownLatch(1);
+        final QueryCache.Query<String> names = db.cache().define("names", "SELECT name FROM cache_test WHERE id = ?",
+            new DBQuery.RowMapper<String>() {
+                @Override
+                public String map(ResultSet results) throws SQLException
+                {
+                    loading.countDown();
+                    try {
+                        Thread.sleep(100);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return results.getString(1);
+                }
+            }, "CACHE_TEST");
+        QueryCache cache = db.cache();
+
+        /** Concurrent misses for the same key share one query. */
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<String>>> reads = new ArrayList<Future<List<String>>>();
+            for (int i = 0; i < 4; i++) {
+                reads.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception
+                    {
+                        return names.get(1);
+                    }
+                }));
+                loading.await(10, TimeUnit.SECONDS);
+            }
+            for (Future<List<String>> read : reads) {
+                assertEquals(Arrays.asList("one"), read.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getLoadLatency().getCount());
+
+        /** Writes are not seen until the table is invalidated. */
+        connection = db.getConnection();
+        try {
+            connection.createStatement().execute("UPDATE cache_test SET name = 'uno' WHERE id = 1");
+        }
+        finally {
+            connection.close();
+        }
+        assertEquals(Arrays.asList("one"), names.get(1));
+        assertEquals(1, cache.invalidateTable("cache_test"));
+        assertEquals(Arrays.asList("uno"), names.get(1));
+
+        /** Two entries at most, the least recently read is evicted. */
+        names.get(2);
+        names.get(1);
+        names.get(3);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        long misses = cache.getMisses();
+        names.get(1);
+        assertEquals(misses, cache.getMisses());
+        names.get(2);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void cacheInvalidationDuringLoadIsSeenByLaterCallers() throws Exception
+    {
+        Connection connection = db.getConnection();
+        try {
+            connection.createStatement().execute("CREATE TABLE cache_race (id INT PRIMARY KEY, name VARCHAR(20))");
+            connection.createStatement().execute("INSERT INTO cache_race VALUES (1, 'before')");
+        }
+        finally {
+            connection.close();
+        }
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean slow = new AtomicBoolean(true);
+        final QueryCache.Query<String> names = db.cache().define("race", "SELECT name FROM cache_race WHERE id = ?",
+            new DBQuery.RowMapper<String>() {
+                @Override
+                public String map(ResultSet results) throws SQLException
+                {
+                    String name = results.getString(1);
+                    if (slow.compareAndSet(true, false)) {
+                        loading.countDown();
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return name;
+                }
+            }, "cache_race");
+        Callable<List<String>> read = new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception
+            {
+                return names.get(1);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<String>> stale = executor.submit(read);
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+            /** Written and invalidated while the first load is still running. */
+            connection = db.getConnection();
+            try {
+                connection.createStatement().execute("UPDATE cache_race SET name = 'after' WHERE id = 1");
+            }
+            finally {
+                connection.close();
+            }
+            db.cache().invalidateTable("cache_race");
+
+            /** A later caller runs its own query rather than waiting on the one that began before. */
+            assertEquals(Arrays.asList("after"), executor.submit(read).get(5, TimeUnit.SECONDS));
+            release.countDown();
+            assertEquals(Arrays.asList("before"), stale.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("after"), names.get(1));
+        }
+        finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shapeReplacesLiteralsAndCollapsesLists()
+    {
+        assertEquals("SELECT * FROM t WHERE a = ? AND b IN (?...)",
+            DBMetrics.shapeOf("SELECT *  FROM t\n WHERE a = 'x' AND b IN (1, 2, 3)"));
+        assertEquals("INSERT INTO t VALUES (?...),(?...)",
+            DBMetrics.shapeOf("INSERT INTO t VALUES (1,'a', ?),(2 , 'b',?)"));
+    }
+
+    private static String databaseName(Connection connection) throws Exception
+    {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet rs = statement.executeQuery("SELECT DATABASE()");
+            rs.next();
+            return rs.getString(1).toLowerCase();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    private static String preparedDatabaseName(Connection connection, String sql) throws Exception
+    {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            ResultSet rs = statement.executeQuery();
+            rs.next();
+            return rs.getString(1).toLowerCase();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    private static void writeProperties(File file, String databaseName) throws Exception
+    {
+        writeProperties(file, "db", databaseName);
+    }
+
+    /**
+     * Writes the settings of one database under the prefix, replacing the rewritten file's
+     * modification time so that the next refresh reloads it.
+     *
+     * @param overrides - Settings such as "pool.maxActive = 2" that replace the defaults below.
+     */
+    private static void writeProperties(File file, String prefix, String databaseName, String... overrides) throws Exception
+    {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("driver", "org.h2.Driver");
+        settings.put("url", "jdbc:h2:mem:" + databaseName + ";DB_CLOSE_DELAY=-1");
+        settings.put("user", "sa");
+        settings.put("pass", "");
+        settings.put("pool.initialSize", "2");
+        settings.put("pool.maxActive", "5");
+        settings.put("pool.minIdle", "2");
+        settings.put("pool.validation", "idle");
+        settings.put("pool.removeAbandonedTimeout", "5m");
+        settings.put("query.batchSize", "100");
+        settings.put("query.fetchSize", "50");
+        settings.put("statementCache.maxPerConnection", "2");
+        settings.put("cache.maxEntries", "2");
+        for (String override : overrides) {
+            int equals = override.indexOf('=');
+            settings.put(override.substring(0, equals).trim(), override.substring(equals + 1).trim());
+        }
+
+        Thread.sleep(10);
+        long lastModified = file.lastModified();
+        FileWriter writer = new FileWriter(file);
+        try {
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                writer.write(prefix + "." + setting.getKey() + " = " + setting.getValue() + "\n");
+            }
+        }
+        finally {
+            writer.close();
+        }
+        file.setLastModified(Math.max(lastModified, System.currentTimeMillis()) + 2000);
+    }
+}
@@ -0,0 +1,66 @@
+package gov.nysenate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test shutting down the registered resources.
+ * @see Lifecycle */
+
+public class LifecycleTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void shutdownDrainsIdleResourcesAndForcesBusyOnes() throws Exception
+    {
+        File propertyFile = tempFolder.newFile("lifecycle.properties");
+        FileWriter writer = new FileWriter(propertyFile);
+        try {
+            for (String prefix : new String[] {"busy", "idle"}) {
+                writer.write(prefix + ".driver = org.h2.Driver\n");
+                writer.write(prefix + ".url = jdbc:h2:mem:lifecycle_" + prefix + ";DB_CLOSE_DELAY=-1\n");
+                writer.write(prefix + ".user = sa\n");
+                writer.write(prefix + ".pool.initialSize = 1\n");
+                writer.write(prefix + ".pool.minIdle = 1\n");
+            }
+        }
+        finally {
+            writer.close();
+        }
+        Config config = new Config(propertyFile.getAbsolutePath());
+        DB busy = new DB(config, "busy");
+        DB idle = new DB(config, "idle");
+        idle.getConnection().close();
+        Connection held = busy.getConnection();
+        assertTrue(Lifecycle.getRegistered().contains("DB busy"));
+
+        Lifecycle.Report report = Lifecycle.shutdownAll(Duration.ofMillis(300));
+
+        assertEquals("drain timed out", report.getForced().get("DB busy"));
+        assertTrue(report.getDrained().contains("DB idle"));
+        assertTrue(report.getDrained().contains("Config " + propertyFile.getAbsolutePath()));
+        assertFalse(Lifecycle.getRegistered().contains("DB busy"));
+        assertTrue(report.getLeakedThreads().isEmpty());
+        try {
+            busy.getConnection();
+            fail("Expected the closed DB to refuse connections");
+        }
+        catch (SQLException e) {
+            assertTrue(e.getMessage().contains("closed"));
+        }
+        held.close();
+    }
+}
@@ -0,0 +1,142 @@
+package gov.nysenate.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test the segment journal behind the Mailer spool.
+ * @see MailSpool */
+
+public class MailSpoolTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = tempFolder.newFolder("spool");
+    }
+
+    @Test
+    public void spoolRecoversUndeliveredMessagesInOrder() throws Exception
+    {
+        MailSpool spool = new MailSpool(directory, 1024 * 1024, 4);
+        long first = spool.append(bytes("first"));
+        long second = spool.append(bytes("second"));
+        spool.append(bytes("third"));
+        spool.done(second);
+        spool.close();
+
+        spool = new MailSpool(directory, 1024 * 1024, 4);
+        List<MailSpool.SpooledMessage> recovered = spool.takeRecovered();
+        assertEquals(2, recovered.size());
+        assertEquals(first, recovered.get(0).id);
+        assertArrayEquals(bytes("first"), recovered.get(0).payload);
+        assertArrayEquals(bytes("third"), recovered.get(1).payload);
+        assertTrue(spool.append(bytes("fourth")) > recovered.get(1).id);
+        spool.close();
+    }
+
+    @Test
+    public void spoolTruncatesTornRecords() throws Exception
+    {
+        MailSpool spool = new MailSpool(directory, 1024 * 1024, 4);
+        spool.append(bytes("first"));
+        spool.append(bytes("second"));
+        spool.close();
+
+        /** A crash in the middle of an append leaves part of a record behind. */
+        File segment = directory.listFiles()[0];
+        long validLength = segment.length();
+        FileOutputStream out = new FileOutputStream(segment, true);
+        out.write(new byte[] {0, 0, 0, 100, 1, 2, 3});
+        out.close();
+
+        spool = new MailSpool(directory, 1024 * 1024, 4);
+        assertEquals(2, spool.takeRecovered().size());
+        assertEquals(validLength, segment.length());
+        spool.close();
+    }
+
+    @Test
+    public void spoolDeletesDeliveredSegmentsAndCompactsOldOnes() throws Exception
+    {
+        MailSpool spool = new MailSpool(directory, 1024, 2);
+        byte[] payload = new byte[600];
+        long stuck = spool.append(payload);
+        for (int i = 0; i < 20; i++) {
+            spool.done(spool.append(payload));
+        }
+        assertTrue(directory.listFiles().length <= 4);
+        assertEquals(1, spool.getPendingCount());
+        spool.close();
+
+        spool = new MailSpool(directory, 1024, 2);
+        List<MailSpool.SpooledMessage> recovered = spool.takeRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals(stuck, recovered.get(0).id);
+        spool.close();
+    }
+
+    @Test
+    public void spoolKeepsConcurrentAppends() throws Exception
+    {
+        final MailSpool spool = new MailSpool(directory, 64 * 1024, 4);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            spool.append(bytes(thread + "-" + i));
+                        }
+                    }
+                    catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        spool.close();
+
+        MailSpool reopened = new MailSpool(directory, 64 * 1024, 4);
+        Set<String> payloads = new HashSet<String>();
+        for (MailSpool.SpooledMessage message : reopened.takeRecovered()) {
+            payloads.add(new String(message.payload, StandardCharsets.UTF_8));
+        }
+        reopened.close();
+        assertEquals(400, payloads.size());
+        assertTrue(payloads.containsAll(Arrays.asList("0-0", "7-49")));
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
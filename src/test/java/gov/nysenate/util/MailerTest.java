@@ -0,0 +1,421 @@
+package gov.nysenate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import gov.nysenate.util.listener.ConfigChangeEvent;
+
+/** Test the Mailer against an in-process SMTP server.
+ * @see Mailer */
+
+public class MailerTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private SmtpStub smtp;
+    private Mailer mailer;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        smtp = new SmtpStub();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (mailer != null) {
+            mailer.close();
+        }
+        smtp.close();
+    }
+
+    @Test
+    public void mailerReusesConnectionAcrossSends() throws Exception
+    {
+        mailer = newMailer("mail.pool.validationInterval = 1h");
+        for (int i = 0; i < 5; i++) {
+            mailer.sendMail("someone@localhost", "Subject " + i, "<p>Message " + i + "</p>");
+        }
+        assertEquals(5, smtp.getMessages().size());
+        assertEquals(1, smtp.getConnectionCount());
+        assertTrue(smtp.getMessages().get(4).contains("Subject 4"));
+    }
+
+    @Test
+    public void mailerReconnectsWhenConnectionWasDropped() throws Exception
+    {
+        mailer = newMailer("mail.pool.validationInterval = 1h");
+        mailer.sendMail("someone@localhost", "First", "first");
+        smtp.dropConnections();
+        mailer.sendMail("someone@localhost", "Second", "second");
+        assertEquals(2, smtp.getMessages().size());
+        assertEquals(2, smtp.getConnectionCount());
+    }
+
+    @Test
+    public void mailerValidatesIdleConnectionsWithNoop() throws Exception
+    {
+        mailer = newMailer("mail.pool.validationInterval = 0s");
+        mailer.sendMail("someone@localhost", "First", "first");
+        Thread.sleep(5);
+        mailer.sendMail("someone@localhost", "Second", "second");
+        assertTrue(smtp.getNoopCount() > 0);
+        assertEquals(1, smtp.getConnectionCount());
+    }
+
+    @Test
+    public void mailerClosesIdleConnections() throws Exception
+    {
+        mailer = newMailer("mail.pool.validationInterval = 1h", "mail.pool.idleTimeout = 100ms");
+        mailer.sendMail("someone@localhost", "Subject", "message");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (smtp.getOpenConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, smtp.getOpenConnectionCount());
+    }
+
+    @Test
+    public void mailerSendsQueuedMessagesInBackground() throws Exception
+    {
+        mailer = newMailer("mail.queue.workers = 1");
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(mailer.sendMailAsync("someone@localhost", "Subject " + i, "message"));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(10, smtp.getMessages().size());
+        assertEquals(1, smtp.getConnectionCount());
+        assertEquals(10, mailer.getQueue().getSentCount());
+    }
+
+    @Test
+    public void mailerRetriesTransientFailures() throws Exception
+    {
+        mailer = newMailer("mail.queue.retryBackoff = 10ms");
+        smtp.rejectNext(2, "451 Try again later");
+        mailer.sendMailAsync("someone@localhost", "Subject", "message").get(10, TimeUnit.SECONDS);
+        assertEquals(1, smtp.getMessages().size());
+    }
+
+    @Test
+    public void mailerFailsPermanentRejectionsWithoutRetrying() throws Exception
+    {
+        mailer = newMailer("mail.queue.retryBackoff = 10ms");
+        smtp.rejectNext(1, "550 Mailbox unavailable");
+        try {
+            mailer.sendMailAsync("someone@localhost", "Subject", "message").get(10, TimeUnit.SECONDS);
+            fail("Expected the rejected message to fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MessagingException);
+        }
+        assertEquals(0, smtp.getMessages().size());
+        assertEquals(1, mailer.getQueue().getFailedCount());
+    }
+
+    @Test
+    public void mailerDrainsQueueOnClose() throws Exception
+    {
+        mailer = newMailer();
+        for (int i = 0; i < 5; i++) {
+            mailer.sendMailAsync("someone@localhost", "Subject " + i, "message");
+        }
+        mailer.close();
+        mailer = null;
+        assertEquals(5, smtp.getMessages().size());
+    }
+
+    @Test
+    public void mailerSendsSpooledMessagesAfterRestart() throws Exception
+    {
+        String spool = "mail.spool.dir = " + tempFolder.newFolder("spool").getAbsolutePath().replace("\\", "/");
+        mailer = newMailer(spool, "mail.queue.retryBackoff = 1h", "mail.queue.drainTimeout = 100ms");
+        smtp.rejectNext(1, "451 Try again later");
+        CompletableFuture<Void> future = mailer.sendMailAsync("someone@localhost", "Spooled", "message");
+        mailer.close();
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, smtp.getMessages().size());
+        String spooledId = null;
+        for (File segment : new File(spool.substring(spool.indexOf('=') + 1).trim()).listFiles()) {
+            String id = messageId(new String(Files.readAllBytes(segment.toPath()), StandardCharsets.ISO_8859_1));
+            if (id != null) {
+                spooledId = id;
+            }
+        }
+
+        mailer = newMailer(spool);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (smtp.getMessages().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, smtp.getMessages().size());
+        assertTrue(smtp.getMessages().get(0).contains("Spooled"));
+        assertNotNull(spooledId);
+        assertEquals(spooledId, messageId(smtp.getMessages().get(0)));
+    }
+
+    @Test
+    public void mailerLimitsSendRate() throws Exception
+    {
+        mailer = newMailer("mail.rate.perSecond = 20", "mail.rate.burst = 1");
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            mailer.sendMail("someone@localhost", "Subject " + i, "message");
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Sent too fast: " + elapsedMillis + "ms", elapsedMillis >= 190);
+        assertEquals(4, mailer.getRateLimiter().getThrottledCount());
+        assertEquals(5, mailer.getRateLimiter().getSentCount());
+    }
+
+    @Test
+    public void mailerFailsSendsOverDomainLimit() throws Exception
+    {
+        mailer = newMailer("mail.rate.perSecond = 1", "mail.rate.burst = 2", "mail.rate.domain.Slow.example = 1",
+            "mail.rate.maxWait = 100ms");
+        mailer.sendMail("someone@slow.example", "First", "first");
+        try {
+            mailer.sendMail("other@slow.example", "Second", "second");
+            fail("Expected the second message to the domain to be throttled");
+        }
+        catch (MessagingException e) {
+            assertTrue(e.getMessage().contains("Rate limit"));
+        }
+        /** The refused message gave back its shared token, leaving one for this message. */
+        mailer.sendMail("someone@localhost", "Third", "third");
+        assertEquals(2, smtp.getMessages().size());
+        assertEquals(1, mailer.getRateLimiter().getThrottledCount());
+        assertEquals(2, mailer.getRateLimiter().getSentCount());
+        assertEquals(1, mailer.getRateLimiter().getFailedCount());
+    }
+
+    @Test
+    public void mailerSendsTemplateAsTextAndHtml() throws Exception
+    {
+        mailer = newMailer(templateDirectory());
+        Map<String, String> variables = new HashMap<String, String>();
+        variables.put("name", "Pat <admin>");
+        mailer.sendTemplate("someone@localhost", "welcome", variables);
+        String sent = smtp.getMessages().get(0);
+        assertTrue(sent.contains("Subject: Welcome Pat <admin>"));
+        assertTrue(sent.contains("multipart/alternative"));
+        assertTrue(sent.contains("Hello Pat <admin>, welcome."));
+        assertTrue(sent.contains("<p>Hello Pat &lt;admin&gt;, welcome.</p>"));
+    }
+
+    @Test
+    public void mailerSendsTemplateToManyRecipients() throws Exception
+    {
+        mailer = newMailer(templateDirectory(), "mail.queue.workers = 1");
+        Map<String, Map<String, String>> recipients = new LinkedHashMap<String, Map<String, String>>();
+        for (int i = 0; i < 5; i++) {
+            recipients.put("user" + i + "@localhost", Collections.singletonMap("name", "User " + i));
+        }
+        Map<String, CompletableFuture<Void>> sent = mailer.sendBulk("welcome", recipients);
+        for (CompletableFuture<Void> future : sent.values()) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(5, smtp.getMessages().size());
+        assertEquals(1, smtp.getConnectionCount());
+        assertTrue(smtp.getMessages().get(4).contains("Hello User 4, welcome."));
+        assertSame(mailer.getTemplate("welcome"), mailer.getTemplate("welcome"));
+
+        try {
+            mailer.sendTemplateAsync("someone@localhost", "missing", recipients.get("user0@localhost")).get(10, TimeUnit.SECONDS);
+            fail("Expected the missing template to fail the send");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FileNotFoundException);
+        }
+    }
+
+    @Test
+    public void mailerRebuildsSessionWhenSettingsChange() throws Exception
+    {
+        File propertyFile = tempFolder.newFile();
+        writeProperties(propertyFile, smtp.getPort());
+        FileChangedReloadingStrategy strategy = new FileChangedReloadingStrategy();
+        strategy.setRefreshDelay(0);
+        Config config = new Config(propertyFile.getAbsolutePath(), strategy);
+        mailer = new Mailer(config, "mail");
+        mailer.sendMail("someone@localhost", "First", "first");
+
+        SmtpStub moved = new SmtpStub();
+        try {
+            writeProperties(propertyFile, moved.getPort());
+            config.refresh();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (moved.getMessages().isEmpty() && System.currentTimeMillis() < deadline) {
+                mailer.sendMail("someone@localhost", "Second", "second");
+                Thread.sleep(20);
+            }
+            assertTrue(smtp.getMessages().get(0).contains("First"));
+            assertTrue(moved.getMessages().get(0).contains("Second"));
+            assertEquals(0, smtp.getOpenConnectionCount());
+        }
+        finally {
+            mailer.close();
+            mailer = null;
+            moved.close();
+        }
+    }
+
+    @Test
+    public void mailerKeepsConnectionsWhenQueueSettingsChange() throws Exception
+    {
+        mailer = newMailer("mail.pool.validationInterval = 1h");
+        mailer.sendMail("someone@localhost", "First", "first");
+        mailer.configChanged(new ConfigChangeEvent(Collections.singletonMap("mail.queue.capacity", "1000"),
+            Collections.singletonMap("mail.queue.capacity", "10")));
+        mailer.sendMail("someone@localhost", "Second", "second");
+        assertEquals(2, smtp.getMessages().size());
+        assertEquals(1, smtp.getConnectionCount());
+    }
+
+    @Test
+    public void retiredTransportPoolFinishesSendsStillUsingIt() throws Exception
+    {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(smtp.getPort()));
+        Session session = Session.getInstance(props);
+        RateLimiter limiter = new RateLimiter("mail");
+        limiter.configure(0, 1, 0, 1, Collections.<String, Double>emptyMap(), 1000);
+        TransportPool pool = new TransportPool(session, "mail", limiter, 1, 1000, 60000, 3600000);
+        try {
+            pool.send(testMessage(session, "First"));
+            assertEquals(1, smtp.getOpenConnectionCount());
+            pool.retire();
+            pool.send(testMessage(session, "Second"));
+            assertEquals(2, smtp.getMessages().size());
+            assertEquals(0, pool.getIdleCount());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (smtp.getOpenConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, smtp.getOpenConnectionCount());
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void transportPoolReconnectsAfterServiceNotAvailable() throws Exception
+    {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(smtp.getPort()));
+        Session session = Session.getInstance(props);
+        RateLimiter limiter = new RateLimiter("mail");
+        limiter.configure(0, 1, 0, 1, Collections.<String, Double>emptyMap(), 1000);
+        TransportPool pool = new TransportPool(session, "mail", limiter, 1, 1000, 60000, 3600000);
+        try {
+            smtp.rejectNext(1, "421 Service not available, closing channel");
+            MessagingException[] failures = pool.sendAll(Arrays.asList(testMessage(session, "First"), testMessage(session, "Second")));
+            assertEquals(421, TransportPool.replyCode(failures[0]));
+            assertNull(failures[1]);
+            assertEquals(1, smtp.getMessages().size());
+            assertEquals(2, smtp.getConnectionCount());
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    private static MimeMessage testMessage(Session session, String subject) throws Exception
+    {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("sender@localhost"));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse("someone@localhost"));
+        message.setSubject(subject);
+        message.setText(subject);
+        return message;
+    }
+
+    /** @return String - Setting for a template directory holding a welcome template. */
+    private String templateDirectory() throws Exception
+    {
+        File directory = tempFolder.newFolder("templates");
+        Files.write(new File(directory, "welcome.subject").toPath(), "Welcome {{name}}\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(directory, "welcome.txt").toPath(), "Hello {{name}}, welcome.".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(directory, "welcome.html").toPath(), "<p>Hello {{name}}, welcome.</p>".getBytes(StandardCharsets.UTF_8));
+        return "mail.templates.dir = " + directory.getAbsolutePath().replace("\\", "/");
+    }
+
+    /** @return String - The Message-ID header value in the raw message, null if it has none. */
+    private static String messageId(String raw)
+    {
+        Matcher matcher = Pattern.compile("(?m)^Message-ID: (\\S+)").matcher(raw);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private Mailer newMailer(String... settings) throws Exception
+    {
+        File propertyFile = tempFolder.newFile();
+        writeProperties(propertyFile, smtp.getPort(), settings);
+        return new Mailer(new Config(propertyFile.getAbsolutePath()), "mail");
+    }
+
+    private static void writeProperties(File propertyFile, int port, String... settings) throws Exception
+    {
+        Thread.sleep(10);
+        long lastModified = propertyFile.lastModified();
+        FileWriter writer = new FileWriter(propertyFile);
+        try {
+            writer.write("mail.host = 127.0.0.1\n");
+            writer.write("mail.port = " + port + "\n");
+            writer.write("mail.active = true\n");
+            writer.write("mail.user = sender@localhost\n");
+            writer.write("mail.pass = secret\n");
+            for (String setting : settings) {
+                writer.write(setting + "\n");
+            }
+        }
+        finally {
+            writer.close();
+        }
+        propertyFile.setLastModified(Math.max(lastModified, System.currentTimeMillis()) + 2000);
+    }
+}
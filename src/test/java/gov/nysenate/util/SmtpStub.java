@@ -0,0 +1,175 @@
+package gov.nysenate.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-process SMTP server for tests. Accepts any login and any message, and counts
+ * the connections opened, the connections still open and the messages received.
+ */
+class SmtpStub
+{
+    private final ServerSocket server;
+    private final List<Socket> open = new CopyOnWriteArrayList<Socket>();
+    private final List<String> messages = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger noops = new AtomicInteger();
+    private final AtomicInteger rejections = new AtomicInteger();
+    private volatile String rejection;
+
+    SmtpStub() throws IOException
+    {
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        open.add(socket);
+                        Thread session = new Thread(new Runnable() {
+                            @Override
+                            public void run()
+                            {
+                                try {
+                                    converse(socket);
+                                }
+                                catch (IOException e) {
+                                    /** Client went away or the connection was dropped. */
+                                }
+                                finally {
+                                    open.remove(socket);
+                                    try {
+                                        socket.close();
+                                    }
+                                    catch (IOException e) {}
+                                }
+                            }
+                        }, "smtp-stub-session");
+                        session.setDaemon(true);
+                        session.start();
+                    }
+                }
+                catch (IOException e) {
+                    /** Server socket closed. */
+                }
+            }
+        }, "smtp-stub-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort()
+    {
+        return this.server.getLocalPort();
+    }
+
+    int getConnectionCount()
+    {
+        return this.connections.get();
+    }
+
+    int getOpenConnectionCount()
+    {
+        return this.open.size();
+    }
+
+    int getNoopCount()
+    {
+        return this.noops.get();
+    }
+
+    List<String> getMessages()
+    {
+        return this.messages;
+    }
+
+    /** Answers the next MAIL FROM commands with the given reply, e.g. "451 Try again later". */
+    void rejectNext(int count, String reply)
+    {
+        this.rejection = reply;
+        this.rejections.set(count);
+    }
+
+    /** Closes every client connection without a reply, as a server restart would. */
+    void dropConnections() throws IOException
+    {
+        for (Socket socket : this.open) {
+            socket.close();
+        }
+    }
+
+    void close() throws IOException
+    {
+        this.server.close();
+        dropConnections();
+    }
+
+    private void converse(Socket socket) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        OutputStream out = socket.getOutputStream();
+        reply(out, "220 localhost SMTP stub");
+        String line;
+        while ((line = in.readLine()) != null) {
+            String command = line.toUpperCase();
+            if (command.startsWith("EHLO")) {
+                reply(out, "250-localhost\r\n250-AUTH PLAIN LOGIN\r\n250 8BITMIME");
+            }
+            else if (command.startsWith("AUTH LOGIN")) {
+                reply(out, "334 VXNlcm5hbWU6");
+                in.readLine();
+                reply(out, "334 UGFzc3dvcmQ6");
+                in.readLine();
+                reply(out, "235 Authenticated");
+            }
+            else if (command.startsWith("AUTH")) {
+                reply(out, "235 Authenticated");
+            }
+            else if (command.startsWith("MAIL FROM") && this.rejections.getAndDecrement() > 0) {
+                reply(out, this.rejection);
+                if (this.rejection.startsWith("421")) {
+                    /** The server is closing the channel. */
+                    return;
+                }
+            }
+            else if (command.startsWith("DATA")) {
+                reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                StringBuilder message = new StringBuilder();
+                while ((line = in.readLine()) != null && !line.equals(".")) {
+                    message.append(line).append("\n");
+                }
+                this.messages.add(message.toString());
+                reply(out, "250 Queued");
+            }
+            else if (command.startsWith("NOOP")) {
+                this.noops.incrementAndGet();
+                reply(out, "250 OK");
+            }
+            else if (command.startsWith("QUIT")) {
+                reply(out, "221 Bye");
+                return;
+            }
+            else {
+                reply(out, "250 OK");
+            }
+        }
+    }
+
+    private static void reply(OutputStream out, String response) throws IOException
+    {
+        out.write((response + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
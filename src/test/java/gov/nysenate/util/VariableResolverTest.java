@@ -0,0 +1,60 @@
+package gov.nysenate.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.junit.Test;
+
+/** Test the {{variable}} resolution used when building config snapshots.
+ * @see VariableResolver */
+
+public class VariableResolverTest
+{
+    @Test
+    public void resolverReplacesReferencesTransitively() throws Exception
+    {
+        Map<String, String> raw = new HashMap<String, String>();
+        raw.put("a", "A");
+        raw.put("b", "{{a}}-{{a}}");
+        raw.put("c", "[{{b}}|{{missing}}|{{a}}]");
+        raw.put("d", "{{ unterminated");
+
+        Map<String, String> resolved = VariableResolver.resolveAll(raw);
+        assertEquals("A", resolved.get("a"));
+        assertEquals("A-A", resolved.get("b"));
+        assertEquals("[A-A||A]", resolved.get("c"));
+        assertEquals("{{ unterminated", resolved.get("d"));
+    }
+
+    @Test
+    public void resolverReportsCycles()
+    {
+        Map<String, String> raw = new HashMap<String, String>();
+        raw.put("a", "{{b}}");
+        raw.put("b", "x {{c}}");
+        raw.put("c", "{{a}} y");
+        try {
+            VariableResolver.resolveAll(raw);
+            fail("Expected cyclic reference to be reported");
+        }
+        catch (ConfigurationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("-> "));
+        }
+    }
+
+    @Test
+    public void resolverHandlesLongReferenceChains() throws Exception
+    {
+        Map<String, String> raw = new HashMap<String, String>();
+        raw.put("key.0", "v");
+        for (int i = 1; i < 2000; i++) {
+            raw.put("key." + i, "{{key." + (i - 1) + "}}");
+        }
+        assertEquals("v", VariableResolver.resolveAll(raw).get("key.1999"));
+    }
+}
@@ -0,0 +1,116 @@
+package gov.nysenate.util.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/** Test starting and stopping components.
+ * @see Bootstrap */
+
+public class BootstrapTest
+{
+    private final List<String> events = new CopyOnWriteArrayList<String>();
+
+    @Test
+    public void independentComponentsStartInParallel() throws Exception
+    {
+        /** Each pool waits for the other to start, which only works if they run at the same time. */
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        Bootstrap bootstrap = new Bootstrap(Arrays.asList(
+            new Recorded("mailer", "config"),
+            new Recorded("config"),
+            new Recorded("db-a", "config") {
+                @Override
+                public void start() throws Exception
+                {
+                    bothStarted.countDown();
+                    assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+                    super.start();
+                }
+            },
+            new Recorded("db-b", "config") {
+                @Override
+                public void start() throws Exception
+                {
+                    bothStarted.countDown();
+                    assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+                    super.start();
+                }
+            }), 2);
+        bootstrap.start();
+
+        assertEquals("start config", events.get(0));
+        assertEquals(4, bootstrap.getStartTimes().size());
+        assertEquals("config", bootstrap.getStartTimes().keySet().iterator().next());
+
+        events.clear();
+        bootstrap.stop();
+        assertEquals(4, events.size());
+        assertEquals("stop config", events.get(3));
+    }
+
+    @Test
+    public void failedComponentStopsStartup() throws Exception
+    {
+        Bootstrap bootstrap = new Bootstrap(Arrays.asList(
+            new Recorded("config"),
+            new Recorded("db", "config") {
+                @Override
+                public void start() throws Exception
+                {
+                    throw new IllegalStateException("No database");
+                }
+            },
+            new Recorded("cache", "db")), 2);
+        try {
+            bootstrap.start();
+            fail("Expected the failed component to fail the startup");
+        }
+        catch (IllegalStateException e) {
+            assertEquals("No database", e.getMessage());
+        }
+        assertEquals(Arrays.asList("start config", "stop config"), events);
+        assertFalse(bootstrap.getStartTimes().containsKey("cache"));
+    }
+
+    @Test
+    public void cyclicDependenciesAreRejected()
+    {
+        try {
+            new Bootstrap(Arrays.asList(new Recorded("a", "b"), new Recorded("b", "a")), 1);
+            fail("Expected the cycle to be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("[a, b, a]"));
+        }
+    }
+
+    private class Recorded extends Component
+    {
+        Recorded(String name, String... dependencies)
+        {
+            super(name, dependencies);
+        }
+
+        @Override
+        public void start() throws Exception
+        {
+            events.add("start " + getName());
+        }
+
+        @Override
+        public void stop()
+        {
+            events.add("stop " + getName());
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package gov.nysenate.util.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletContextEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import gov.nysenate.util.Lifecycle;
+
+/** Test deploying and undeploying an application declared as components.
+ * @see NYSenateContextListener */
+
+public class NYSenateContextListenerTest
+{
+    private static final List<String> events = new CopyOnWriteArrayList<String>();
+    private static final AtomicInteger hotPathRuns = new AtomicInteger();
+
+    private final Map<String, String> parameters = new HashMap<String, String>();
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    /** Application with a config component and a database and cache that depend on it. */
+    public static class Application
+    {
+        public static Collection<Component> components()
+        {
+            return Arrays.<Component>asList(new Recorded("config"), new Recorded("db", "config"), new Recorded("cache", "config") {
+                {
+                    addHotPath(100, new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            hotPathRuns.incrementAndGet();
+                        }
+                    });
+                }
+            });
+        }
+
+        public static void warmUp()
+        {
+            throw new IllegalStateException("Cache preload failed");
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        events.clear();
+        hotPathRuns.set(0);
+        parameters.put("Application", Application.class.getName());
+    }
+
+    @Test
+    public void listenerReportsPhasesAndWarmsUp()
+    {
+        parameters.put("WarmUp", "true");
+        NYSenateContextListener listener = new NYSenateContextListener();
+        ServletContextEvent event = new ServletContextEvent(servletContext());
+        listener.contextInitialized(event);
+
+        StartupReport report = (StartupReport) attributes.get(StartupReport.ATTRIBUTE);
+        assertTrue(report.isReady());
+        assertEquals(Boolean.TRUE, attributes.get("init"));
+        assertEquals(Arrays.asList("classLoad", "components", "warmUp"), Arrays.asList(report.getPhases().keySet().toArray()));
+        assertEquals(3, report.getComponentStarts().size());
+        assertEquals(3, report.getComponentWarmUps().size());
+        assertEquals(100, hotPathRuns.get());
+        assertTrue(report.getWarmUpFailures().values().iterator().next().contains("Cache preload failed"));
+
+        events.clear();
+        listener.contextDestroyed(event);
+        assertEquals("stop config", events.get(2));
+    }
+
+    @Test
+    public void listenerSkipsWarmUpUnlessEnabled()
+    {
+        NYSenateContextListener listener = new NYSenateContextListener();
+        listener.contextInitialized(new ServletContextEvent(servletContext()));
+
+        StartupReport report = (StartupReport) attributes.get(StartupReport.ATTRIBUTE);
+        assertTrue(report.isReady());
+        assertFalse(report.getPhases().containsKey("warmUp"));
+        assertEquals(0, hotPathRuns.get());
+        listener.contextDestroyed(new ServletContextEvent(servletContext()));
+    }
+
+    @Test
+    public void listenerShutsDownWithMalformedTimeout()
+    {
+        parameters.put("ShutdownTimeout", "30 parsecs");
+        final AtomicBoolean drained = new AtomicBoolean();
+        Lifecycle.register("test resource", new Lifecycle.Resource() {
+            @Override
+            public boolean drain(long timeoutMillis)
+            {
+                drained.set(true);
+                return true;
+            }
+
+            @Override
+            public void forceClose() {}
+        });
+        NYSenateContextListener listener = new NYSenateContextListener();
+        listener.contextInitialized(new ServletContextEvent(servletContext()));
+        listener.contextDestroyed(new ServletContextEvent(servletContext()));
+        assertTrue(drained.get());
+    }
+
+    /** @return ServletContext - Context backed by the test's parameters and attributes. */
+    private ServletContext servletContext()
+    {
+        return (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ServletContext.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getInitParameter")) {
+                        return parameters.get(args[0]);
+                    }
+                    if (method.getName().equals("setAttribute")) {
+                        attributes.put((String) args[0], args[1]);
+                        return null;
+                    }
+                    if (method.getName().equals("getAttribute")) {
+                        return attributes.get(args[0]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    private static class Recorded extends Component
+    {
+        Recorded(String name, String... dependencies)
+        {
+            super(name, dependencies);
+        }
+
+        @Override
+        public void start()
+        {
+            events.add("start " + getName());
+        }
+
+        @Override
+        public void stop()
+        {
+            events.add("stop " + getName());
+        }
+    }
+}